@@ -0,0 +1,59 @@
+package benchmarks;
+
+import common.model.CardData;
+import common.util.CipherEngine;
+import common.util.CipherEngines;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating, encrypting and decrypting a card record with each cipher engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CardDataBenchmark {
+    private static final String CARD_NUMBER = "4111111111111111";
+    private static final int SHIFT = 7;
+
+    @Param({"SHIFT", "FF1"})
+    public String engineName;
+
+    private CipherEngine engine;
+    private CardData card;
+
+    @Setup
+    public void setUp() {
+        engine = CipherEngines.forName(engineName);
+        card = new CardData(CARD_NUMBER, SHIFT, engine);
+    }
+
+    @Benchmark
+    public CardData create() {
+        return new CardData(CARD_NUMBER, SHIFT, engine);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return card.encrypt();
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return card.decrypt();
+    }
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import common.model.CardData;
+import common.store.ConnectionPool;
+import common.store.JdbcCardRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Compares saving cards from concurrent ENCRYPT-like callers into the in-memory map,
+ * into H2 one row per commit, and into H2 with write-behind batching. Each save
+ * returns only once the card is stored, or committed for the database.
+ * <p>
+ * Cards are built straight from packed words, so only the storage is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class CardRepositoryBenchmark {
+    private static final long CARD_HIGH = 0x4111111111111111L;
+    private static final long CARD_LOW = -1L;
+    private static final long MEMORY_KEY_MASK = (1 << 20) - 1;
+
+    @Param({"memory", "jdbc-single", "jdbc-batched"})
+    public String backend;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private Map<Long, CardData> memory;
+    private Path directory;
+    private ConnectionPool pool;
+    private JdbcCardRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        if (backend.equals("memory")) {
+            memory = new ConcurrentHashMap<>();
+            return;
+        }
+        directory = Files.createTempDirectory("card-repository-bench");
+        pool = new ConnectionPool("jdbc:h2:file:" + directory.resolve("cards").toAbsolutePath(),
+                "sa", "", ConnectionPool.DEFAULT_SIZE);
+        repository = new JdbcCardRepository(pool,
+                backend.equals("jdbc-single") ? 1 : JdbcCardRepository.DEFAULT_MAX_BATCH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (repository != null) {
+            repository.close();
+            pool.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public void save() {
+        long id = sequence.incrementAndGet();
+        CardData card = CardData.fromPacked(CARD_HIGH, CARD_LOW, id, CARD_LOW, 3, (byte) 0,
+                System.currentTimeMillis());
+        if (memory != null) {
+            // Overwrites after a while so the map does not grow until the heap runs out
+            memory.put(id & MEMORY_KEY_MASK, card);
+        } else {
+            repository.save("bench", card);
+        }
+    }
+}
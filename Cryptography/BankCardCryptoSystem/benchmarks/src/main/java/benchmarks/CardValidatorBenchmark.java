@@ -0,0 +1,40 @@
+package benchmarks;
+
+import common.util.CardValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures card number validation and brand detection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CardValidatorBenchmark {
+
+    @Param({"4111111111111111", "378282246310005", "4111 1111 1111 1112"})
+    public String cardNumber;
+
+    @Benchmark
+    public boolean isValid() {
+        return CardValidator.isValid(cardNumber);
+    }
+
+    @Benchmark
+    public String getCardType() {
+        return CardValidator.getCardType(cardNumber);
+    }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import multithreaded.server.CommandProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end-to-end command handling for a logged-in session, from the raw
+ * command line to the response string, without the network. {@link #encrypt} sends
+ * a new card number each time, so it measures encrypting and storing a card;
+ * {@link #encryptDuplicate} resends a stored one, answered without encrypting.
+ * Each iteration starts from a fresh processor, so the stored cards do not pile up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandProcessorBenchmark {
+    private CommandProcessor processor;
+    private String sessionId;
+    private String decryptCommand;
+    private long nextCard;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        processor = new CommandProcessor();
+        String response = processor.processCommand("LOGIN admin admin123", null);
+        if (!response.startsWith("AUTH_SUCCESS ")) {
+            throw new IllegalStateException("Login failed: " + response);
+        }
+        sessionId = response.substring("AUTH_SUCCESS ".length()).trim();
+
+        response = processor.processCommand("ENCRYPT 4111111111111111 3", sessionId);
+        if (!response.startsWith("ENCRYPTED ")) {
+            throw new IllegalStateException("Encrypt failed: " + response);
+        }
+        decryptCommand = "DECRYPT " + response.substring("ENCRYPTED ".length()).trim() + " 3";
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        processor.shutdown();
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return processor.processCommand("ENCRYPT " + nextCardNumber() + " 5", sessionId);
+    }
+
+    @Benchmark
+    public String encryptDuplicate() {
+        return processor.processCommand("ENCRYPT 4111111111111111 5", sessionId);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return processor.processCommand(decryptCommand, sessionId);
+    }
+
+    // A Luhn-valid 16-digit Visa number not returned before
+    private String nextCardNumber() {
+        char[] digits = new char[16];
+        long body = 400000000000000L + nextCard++;
+        int sum = 0;
+        for (int i = 14; i >= 0; i--, body /= 10) {
+            int digit = (int) (body % 10);
+            digits[i] = (char) ('0' + digit);
+            // Counting from the check digit, every second digit is doubled
+            int value = (i & 1) == 0 ? digit * 2 : digit;
+            sum += value > 9 ? value - 9 : value;
+        }
+        digits[15] = (char) ('0' + (10 - sum % 10) % 10);
+        return new String(digits);
+    }
+}
@@ -0,0 +1,172 @@
+package benchmarks;
+
+import multithreaded.server.MultiThreadedServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link MultiThreadedServer} in each connection mode in turn and reports, side by
+ * side, how many connections it held, the request throughput and the latency of busy
+ * clients while the rest sit idle. This is a plain main class rather than a JMH
+ * benchmark, since what it measures is the server under many sockets, not a method.
+ * <p>
+ * Runs in-process against localhost, so each connection costs two file descriptors.
+ * Set {@code -Dload.idle}, {@code -Dload.clients}, {@code -Dload.seconds} and
+ * {@code -Dload.port} to change the defaults.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar benchmarks.ServerLoadTest [reactor] [platform] [virtual]
+ * </pre>
+ */
+public class ServerLoadTest {
+    private static final String CARD_PREFIX = "411111111111";
+
+    public static void main(String[] args) throws Exception {
+        int idle = Integer.getInteger("load.idle", 5000);
+        int clients = Integer.getInteger("load.clients", 32);
+        int seconds = Integer.getInteger("load.seconds", 10);
+        int port = Integer.getInteger("load.port", 18080);
+        List<String> modes = args.length > 0 ? Arrays.asList(args) : Arrays.asList(
+                MultiThreadedServer.MODE_REACTOR, MultiThreadedServer.MODE_PLATFORM, MultiThreadedServer.MODE_VIRTUAL);
+
+        List<String> results = new ArrayList<>();
+        for (String mode : modes) {
+            results.add(run(mode, port++, idle, clients, seconds));
+        }
+        System.out.println();
+        System.out.printf("%-9s %8s %8s %10s %9s %9s%n", "mode", "held", "threads", "ops/s", "p50 ms", "p99 ms");
+        results.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    private static String run(String mode, int port, int idle, int clients, int seconds) throws Exception {
+        System.setProperty(MultiThreadedServer.MODE_PROPERTY, mode);
+        MultiThreadedServer server = new MultiThreadedServer(port);
+        Thread acceptor = new Thread(server::start, "load-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        awaitListening(port);
+
+        List<SocketChannel> idleChannels = new ArrayList<>();
+        try {
+            for (int i = 0; i < idle; i++) {
+                idleChannels.add(SocketChannel.open(new InetSocketAddress("localhost", port)));
+            }
+        } catch (IOException e) {
+            System.err.println(mode + ": stopped opening idle connections at " + idleChannels.size()
+                + ": " + e.getMessage());
+        }
+
+        // Busy clients log in first, so hashing is not part of the measurement
+        long[][] latencies = new long[clients][];
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] end = new long[1];
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                    ByteBuffer buffer = ByteBuffer.allocate(4096);
+                    call(channel, buffer, "LOGIN admin admin123");
+                    String command = "ENCRYPT " + card(client) + " 3";
+                    ready.countDown();
+                    go.await();
+                    long[] samples = new long[1 << 16];
+                    int count = 0;
+                    while (System.nanoTime() < end[0]) {
+                        long start = System.nanoTime();
+                        call(channel, buffer, command);
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, count * 2);
+                        }
+                        samples[count++] = System.nanoTime() - start;
+                    }
+                    latencies[client] = Arrays.copyOf(samples, count);
+                } catch (IOException | InterruptedException e) {
+                    failures.incrementAndGet();
+                    ready.countDown();
+                    latencies[client] = new long[0];
+                }
+            }, "load-client-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        int held = server.getConnectionCount();
+        int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        end[0] = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        for (SocketChannel channel : idleChannels) {
+            channel.close();
+        }
+        server.stop();
+        if (failures.get() > 0) {
+            System.err.println(mode + ": " + failures.get() + " clients failed");
+        }
+        return String.format("%-9s %8d %8d %10.0f %9.3f %9.3f", mode, held, platformThreads,
+                all.length / (double) seconds, percentile(all, 0.50), percentile(all, 0.99));
+    }
+
+    private static String call(SocketChannel channel, ByteBuffer buffer, String command) throws IOException {
+        channel.write(ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8)));
+        buffer.clear();
+        while (buffer.position() == 0 || buffer.get(buffer.position() - 1) != '\n') {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+        return new String(buffer.array(), 0, buffer.position() - 1, StandardCharsets.UTF_8);
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    // A Luhn-valid number per client, so every client stores one card and then hits it
+    private static String card(int client) {
+        String body = CARD_PREFIX + String.format("%03d", client % 1000);
+        int sum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            int digit = body.charAt(body.length() - 1 - i) - '0';
+            if (i % 2 == 0) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+        }
+        return body + (10 - sum % 10) % 10;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1e6;
+    }
+}
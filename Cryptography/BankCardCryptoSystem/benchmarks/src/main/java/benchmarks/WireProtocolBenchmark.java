@@ -0,0 +1,101 @@
+package benchmarks;
+
+import common.util.BinaryProtocol;
+import common.util.FrameCodec;
+import multithreaded.server.CommandProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a command's server-side cost in the text protocol and in
+ * {@link BinaryProtocol}, from the frame body as read off the wire to the framed
+ * response ready to write, without the network. The setup prints the bytes each
+ * protocol puts on the wire for the same exchange.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireProtocolBenchmark {
+    private CommandProcessor processor;
+    private String sessionId;
+    private FrameCodec textCodec;
+    private FrameCodec binaryCodec;
+    private byte[] textDetokenize;
+    private byte[] binaryDetokenize;
+    private byte[] textStats;
+    private byte[] binaryStats;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        processor = new CommandProcessor();
+        String response = processor.processCommand("LOGIN admin admin123", null);
+        if (!response.startsWith("AUTH_SUCCESS ")) {
+            throw new IllegalStateException("Login failed: " + response);
+        }
+        sessionId = response.substring("AUTH_SUCCESS ".length()).trim();
+
+        response = processor.processCommand("TOKENIZE 4111111111111111", sessionId);
+        if (!response.startsWith("TOKEN ")) {
+            throw new IllegalStateException("Tokenize failed: " + response);
+        }
+        String token = response.substring("TOKEN ".length());
+        textCodec = new FrameCodec(FrameCodec.Framing.NEWLINE, FrameCodec.DEFAULT_MAX_FRAME_BYTES);
+        binaryCodec = new FrameCodec(FrameCodec.Framing.VARINT_PREFIXED, FrameCodec.DEFAULT_MAX_FRAME_BYTES);
+        textDetokenize = ("DETOKENIZE " + token).getBytes(StandardCharsets.UTF_8);
+        binaryDetokenize = BinaryProtocol.Request.detokenize(1, token).encode();
+        textStats = "STATS".getBytes(StandardCharsets.UTF_8);
+        binaryStats = BinaryProtocol.Request.stats(1).encode();
+
+        System.out.println();
+        System.out.println("DETOKENIZE bytes on the wire, request + response: text "
+            + (textCodec.encode(textDetokenize).length + textDetokenize().length) + ", binary "
+            + (binaryCodec.encode(binaryDetokenize).length + binaryDetokenize().length));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        processor.shutdown();
+    }
+
+    @Benchmark
+    public byte[] textDetokenize() {
+        String command = new String(textDetokenize, StandardCharsets.UTF_8).trim();
+        return textCodec.encode(processor.processCommandAsync(command, sessionId).join());
+    }
+
+    @Benchmark
+    public byte[] binaryDetokenize() {
+        BinaryProtocol.Request request = BinaryProtocol.Request.decode(binaryDetokenize);
+        String response = processor.processRequestAsync(request, sessionId).join();
+        return binaryCodec.encode(BinaryProtocol.Response.encode(request.getRequestId(), response));
+    }
+
+    @Benchmark
+    public byte[] textStats() {
+        String command = new String(textStats, StandardCharsets.UTF_8).trim();
+        return textCodec.encode(processor.processCommandAsync(command, sessionId).join());
+    }
+
+    @Benchmark
+    public byte[] binaryStats() {
+        BinaryProtocol.Request request = BinaryProtocol.Request.decode(binaryStats);
+        String response = processor.processRequestAsync(request, sessionId).join();
+        return binaryCodec.encode(BinaryProtocol.Response.encode(request.getRequestId(), response));
+    }
+}
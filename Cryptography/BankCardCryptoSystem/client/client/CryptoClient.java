@@ -1,27 +1,67 @@
 package client.client;
 
+import common.util.BinaryProtocol;
+import common.util.FrameCodec;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Client for the multi-threaded bank card encryption server.
+ * <p>
+ * Commands and responses are framed by a {@link FrameCodec}, newline-delimited by
+ * default; the server answers in whichever framing the client uses. With
+ * {@link FrameCodec.Framing#VARINT_PREFIXED} the client speaks {@link BinaryProtocol}
+ * instead, which the methods here hide: responses come back in their text form either way.
+ * <p>
+ * Every request carries a request id, and any number may be outstanding at once. A
+ * reader thread matches responses to requests by id as they arrive, in whatever order
+ * the server completes them, so a slow LOGIN does not hold up the requests sent after
+ * it. The {@code ...Async} methods return the response as a {@link CompletableFuture};
+ * the others wait for it.
  */
 public class CryptoClient {
-    private static final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
     private final String host;
     private final int port;
+    private final FrameCodec.Framing framing;
+    private final boolean binary;
     private SocketChannel clientChannel;
     private final ByteBuffer buffer;
-    private boolean isConnected;
-    private String sessionToken;
+    private FrameCodec codec;
+    private volatile boolean isConnected;
+    private volatile String sessionToken;
+    private final AtomicLong requestIds = new AtomicLong();
+    // Requests sent but not yet answered, by request id
+    private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
 
     public CryptoClient(String host, int port) {
+        this(host, port, FrameCodec.Framing.NEWLINE);
+    }
+
+    /**
+     * @param host The server host
+     * @param port The server port
+     * @param framing How commands and responses are framed; varint framing selects the binary protocol
+     */
+    public CryptoClient(String host, int port, FrameCodec.Framing framing) {
         this.host = host;
         this.port = port;
+        this.framing = framing;
+        this.binary = framing == FrameCodec.Framing.VARINT_PREFIXED;
         this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
         this.isConnected = false;
         this.sessionToken = null;
@@ -36,7 +76,14 @@ public class CryptoClient {
             clientChannel = SocketChannel.open();
             clientChannel.connect(new InetSocketAddress(host, port));
             clientChannel.configureBlocking(true);
+            codec = new FrameCodec(framing, FrameCodec.MAX_FRAME_BYTES);
+            if (binary) {
+                handshake();
+            }
             isConnected = true;
+            Thread reader = new Thread(this::readResponses, "crypto-client-reader");
+            reader.setDaemon(true);
+            reader.start();
             System.out.println("Connected to server at " + host + ":" + port);
             return true;
         } catch (IOException e) {
@@ -45,6 +92,27 @@ public class CryptoClient {
         }
     }
 
+    /**
+     * Asks the server for the binary protocol and waits for it to agree.
+     * @throws IOException If the server does not echo the handshake
+     */
+    private void handshake() throws IOException {
+        clientChannel.write(ByteBuffer.wrap(new byte[] {BinaryProtocol.HANDSHAKE}));
+        buffer.clear();
+        while (buffer.position() == 0) {
+            if (clientChannel.read(buffer) == -1) {
+                throw new IOException("Server closed the connection during the handshake");
+            }
+        }
+        buffer.flip();
+        if (buffer.get() != BinaryProtocol.HANDSHAKE) {
+            clientChannel.close();
+            throw new IOException("Server does not speak the binary protocol");
+        }
+        // Anything after the handshake is the start of a response
+        codec.feed(buffer);
+    }
+
     /**
      * Authenticates the user with the server.
      * @param username The username
@@ -57,11 +125,9 @@ public class CryptoClient {
             return false;
         }
 
-        String loginCommand = String.format("LOGIN %s %s", username, password);
-        String response = sendCommand(loginCommand);
+        String response = await(loginAsync(username, password));
         
         if (response != null && response.startsWith("AUTH_SUCCESS")) {
-            this.sessionToken = response.split("\\s+")[1];
             System.out.println("Login successful");
             return true;
         } else {
@@ -70,6 +136,68 @@ public class CryptoClient {
         }
     }
 
+    /**
+     * Authenticates the user with the server without waiting. Requests sent before
+     * this completes wait on the server for the session it opens.
+     * @param username The username
+     * @param password The password
+     * @return The server's response, {@code AUTH_SUCCESS token} on success
+     */
+    public CompletableFuture<String> loginAsync(String username, String password) {
+        return sendAsync(BinaryProtocol.Request.login(nextRequestId(), username, password))
+            .thenApply(response -> {
+                if (response.startsWith("AUTH_SUCCESS")) {
+                    this.sessionToken = response.split("\\s+")[1];
+                }
+                return response;
+            });
+    }
+
+    /**
+     * Takes up a session opened earlier, for example before this client reconnected
+     * or before the server restarted, instead of logging in again.
+     * @param sessionId The session token from an earlier login
+     * @return true if the server still has the session, false otherwise
+     */
+    public boolean resume(String sessionId) {
+        if (!isConnected) {
+            System.err.println("Not connected to server");
+            return false;
+        }
+
+        String response = await(resumeAsync(sessionId));
+        if (response != null && response.startsWith("AUTH_SUCCESS")) {
+            return true;
+        } else {
+            System.err.println("Resume failed: " + response);
+            return false;
+        }
+    }
+
+    /**
+     * Takes up a session opened earlier without waiting. Requests sent before this
+     * completes wait on the server for the session.
+     * @param sessionId The session token from an earlier login
+     * @return The server's response, {@code AUTH_SUCCESS token} on success
+     */
+    public CompletableFuture<String> resumeAsync(String sessionId) {
+        return sendAsync(BinaryProtocol.Request.resume(nextRequestId(), sessionId))
+            .thenApply(response -> {
+                if (response.startsWith("AUTH_SUCCESS")) {
+                    this.sessionToken = response.split("\\s+")[1];
+                }
+                return response;
+            });
+    }
+
+    /**
+     * @return The token of the session from the last login or resume, kept after the
+     *         connection drops so it can be resumed; null after a logout
+     */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
     /**
      * Encrypts a card number.
      * @param cardNumber The card number to encrypt
@@ -82,8 +210,17 @@ public class CryptoClient {
             return null;
         }
 
-        String command = String.format("ENCRYPT %s %d %s", cardNumber, shift, sessionToken);
-        return sendCommand(command);
+        return await(encryptCardAsync(cardNumber, shift));
+    }
+
+    /**
+     * Encrypts a card number without waiting.
+     * @param cardNumber The card number to encrypt
+     * @param shift The shift value for encryption
+     * @return The server's response
+     */
+    public CompletableFuture<String> encryptCardAsync(String cardNumber, int shift) {
+        return sendAsync(BinaryProtocol.Request.encrypt(nextRequestId(), cardNumber, shift));
     }
 
     /**
@@ -98,47 +235,211 @@ public class CryptoClient {
             return null;
         }
 
-        String command = String.format("DECRYPT %s %d %s", encryptedData, shift, sessionToken);
-        return sendCommand(command);
+        return await(decryptCardAsync(encryptedData, shift));
+    }
+
+    /**
+     * Decrypts card data without waiting.
+     * @param encryptedData The encrypted card data
+     * @param shift The shift value used for encryption
+     * @return The server's response
+     */
+    public CompletableFuture<String> decryptCardAsync(String encryptedData, int shift) {
+        return sendAsync(BinaryProtocol.Request.decrypt(nextRequestId(), encryptedData, shift));
+    }
+
+    /**
+     * @return A request id not used before on this client
+     */
+    public long nextRequestId() {
+        return requestIds.incrementAndGet();
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     * @param request The request, with an id from {@link #nextRequestId}
+     * @return The server's response in text form
+     */
+    public CompletableFuture<String> sendAsync(BinaryProtocol.Request request) {
+        return sendAllAsync(List.of(request)).get(0);
+    }
+
+    /**
+     * Sends several requests in one write without waiting for their responses.
+     * @param requests The requests, with ids from {@link #nextRequestId}
+     * @return The server's responses in text form, one per request, completing in any order
+     */
+    public List<CompletableFuture<String>> sendAllAsync(List<BinaryProtocol.Request> requests) {
+        List<CompletableFuture<String>> responses = new ArrayList<>(requests.size());
+        ByteBuffer[] frames = new ByteBuffer[requests.size()];
+        try {
+            for (int i = 0; i < frames.length; i++) {
+                BinaryProtocol.Request request = requests.get(i);
+                frames[i] = ByteBuffer.wrap(binary
+                    ? codec.encode(request.encode())
+                    : codec.encode(BinaryProtocol.tag(request.getRequestId(), request.toText())));
+            }
+        } catch (IllegalArgumentException e) {
+            // A field that does not fit the binary protocol, such as a non-digit card number
+            for (int i = 0; i < frames.length; i++) {
+                responses.add(CompletableFuture.failedFuture(e));
+            }
+            return responses;
+        }
+
+        // Registered before writing, since the response may arrive before write returns
+        List<ByteBuffer> toWrite = new ArrayList<>(frames.length);
+        for (int i = 0; i < frames.length; i++) {
+            long requestId = requests.get(i).getRequestId();
+            CompletableFuture<String> response = new CompletableFuture<>();
+            if (!isConnected) {
+                response.completeExceptionally(new IOException("Not connected to server"));
+            } else if (pending.putIfAbsent(requestId, response) != null) {
+                response.completeExceptionally(new IllegalArgumentException(
+                    "Request id " + requestId + " is already in flight"));
+            } else if (!isConnected) {
+                // The reader clears the flag before failing what is pending, so a request
+                // registered after that pass is failed here instead of waiting forever
+                if (pending.remove(requestId, response)) {
+                    response.completeExceptionally(new IOException("Not connected to server"));
+                }
+            } else {
+                toWrite.add(frames[i]);
+            }
+            responses.add(response);
+        }
+        if (toWrite.isEmpty()) {
+            return responses;
+        }
+
+        writeLock.lock();
+        try {
+            ByteBuffer[] batch = toWrite.toArray(new ByteBuffer[0]);
+            while (batch[batch.length - 1].hasRemaining()) {
+                clientChannel.write(batch);
+            }
+        } catch (IOException e) {
+            System.err.println("Error communicating with server: " + e.getMessage());
+            fail(e);
+            disconnect();
+        } finally {
+            writeLock.unlock();
+        }
+        return responses;
     }
 
     /**
-     * Sends a command to the server and waits for a response.
-     * @param command The command to send
-     * @return The server's response or null if an error occurs
+     * Sends several requests in one write and waits for all their responses.
+     * @param requests The requests, with ids from {@link #nextRequestId}
+     * @return The server's responses in text form, in request order, or null if an error occurs
      */
-    private String sendCommand(String command) {
+    public List<String> pipeline(List<BinaryProtocol.Request> requests) {
         if (!isConnected) {
             System.err.println("Not connected to server");
             return null;
         }
 
+        List<String> responses = new ArrayList<>(requests.size());
+        for (CompletableFuture<String> response : sendAllAsync(requests)) {
+            String text = await(response);
+            if (text == null) {
+                return null;
+            }
+            responses.add(text);
+        }
+        return responses;
+    }
+
+    /**
+     * Waits for a response.
+     * @param response The response
+     * @return The response, or null if it failed
+     */
+    private String await(CompletableFuture<String> response) {
         try {
-            // Send command
-            buffer.clear();
-            buffer.put(command.getBytes(StandardCharsets.UTF_8));
-            buffer.flip();
-            clientChannel.write(buffer);
+            return response.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.err.println("Request failed: " + cause.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads responses and completes the requests they answer, until the connection closes.
+     */
+    private void readResponses() {
+        IOException failure = new IOException("Server closed the connection");
+        try {
+            byte[] frame;
+            while ((frame = readFrame()) != null) {
+                long requestId;
+                String text;
+                if (binary) {
+                    BinaryProtocol.Response response;
+                    try {
+                        response = BinaryProtocol.Response.decode(frame);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Malformed response: " + e.getMessage());
+                    }
+                    requestId = response.getRequestId();
+                    text = response.toText();
+                } else {
+                    String line = new String(frame, StandardCharsets.UTF_8);
+                    try {
+                        requestId = BinaryProtocol.tagOf(line);
+                    } catch (IllegalArgumentException e) {
+                        requestId = BinaryProtocol.UNTAGGED;
+                    }
+                    text = BinaryProtocol.untag(line);
+                }
+                CompletableFuture<String> response = pending.remove(requestId);
+                if (response != null) {
+                    response.complete(text);
+                } else {
+                    // Such as the error sent before the server drops a connection
+                    System.err.println("Unexpected response: " + text);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (isConnected) {
+            System.err.println("Connection lost: " + failure.getMessage());
+        }
+        isConnected = false;
+        fail(failure);
+    }
 
-            // Read response
+    /**
+     * Fails every request still waiting for a response.
+     * @param cause Why
+     */
+    private void fail(IOException cause) {
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<String> response = pending.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Reads until a whole frame has arrived; bytes past it stay in the codec.
+     * @return The frame, or null if the server closed the connection
+     * @throws IOException If an I/O error occurs or the frame is too long
+     */
+    private byte[] readFrame() throws IOException {
+        byte[] frame;
+        while ((frame = codec.next()) == null) {
             buffer.clear();
-            int bytesRead = clientChannel.read(buffer);
-            if (bytesRead == -1) {
-                System.err.println("Server closed the connection");
-                disconnect();
+            if (clientChannel.read(buffer) == -1) {
                 return null;
             }
-
             buffer.flip();
-            byte[] responseBytes = new byte[buffer.remaining()];
-            buffer.get(responseBytes);
-            return new String(responseBytes, StandardCharsets.UTF_8);
-
-        } catch (IOException e) {
-            System.err.println("Error communicating with server: " + e.getMessage());
-            disconnect();
-            return null;
+            codec.feed(buffer);
         }
+        return frame;
     }
 
     /**
@@ -147,9 +448,13 @@ public class CryptoClient {
     public void disconnect() {
         if (isConnected) {
             try {
-                if (sessionToken != null) {
-                    sendCommand("LOGOUT " + sessionToken);
+                String token = sessionToken;
+                if (token != null) {
+                    // Cleared first, so a failed LOGOUT does not come back here to retry it
+                    sessionToken = null;
+                    await(sendAsync(BinaryProtocol.Request.logout(nextRequestId())));
                 }
+                isConnected = false;
                 clientChannel.close();
                 System.out.println("Disconnected from server");
             } catch (IOException e) {
@@ -1,12 +1,15 @@
 package client.client;
 
 import common.model.CardData;
+import common.store.CardFilter;
+import common.store.CardPage;
 import rmi.server.BankService;
 
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -15,7 +18,8 @@ import java.util.List;
 public class RMIClient implements AutoCloseable {
     private static final String DEFAULT_HOST = "localhost";
     private static final int DEFAULT_PORT = 1099;
-    private static final String SERVICE_NAME = "BankService";
+    private static final String SERVICE_NAME = "BankCardService";
+    private static final int LIST_PAGE_SIZE = 500;
     
     private final String host;
     private final int port;
@@ -102,7 +106,8 @@ public class RMIClient implements AutoCloseable {
     }
     
     /**
-     * Encrypts a card number.
+     * Encrypts a card number. A number this user already stored comes back with its
+     * existing ciphertext, whatever shift is given.
      *
      * @param cardNumber the card number to encrypt
      * @param shift the shift value for encryption
@@ -136,20 +141,84 @@ public class RMIClient implements AutoCloseable {
     }
     
     /**
-     * Gets the list of all encrypted cards for the current user.
+     * Gets the list of all encrypted cards for the current user, a page at a time.
      *
      * @return list of card data
      * @throws Exception if the operation fails or user is not authenticated
      */
     public List<CardData> listCards() throws Exception {
+        return listCards(new CardFilter());
+    }
+    
+    /**
+     * Gets the current user's encrypted cards that match a filter. The cards are
+     * fetched a page at a time so no single response holds the whole listing.
+     *
+     * @param filter the search criteria
+     * @return list of matching card data
+     * @throws Exception if the operation fails or user is not authenticated
+     */
+    public List<CardData> listCards(CardFilter filter) throws Exception {
+        List<CardData> cards = new ArrayList<>();
+        String cursor = null;
+        do {
+            CardPage page = listCards(filter, cursor, LIST_PAGE_SIZE);
+            cards.addAll(page.getCards());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return cards;
+    }
+    
+    /**
+     * Gets one page of the current user's encrypted cards that match a filter.
+     *
+     * @param filter the search criteria
+     * @param cursor the cursor returned with the previous page, or null for the first page
+     * @param pageSize the most cards to return
+     * @return the page of matching card data and the cursor for the next one
+     * @throws Exception if the operation fails or user is not authenticated
+     */
+    public CardPage listCards(CardFilter filter, String cursor, int pageSize) throws Exception {
         checkAuthenticated();
         try {
-            return bankService.listCards(sessionId);
+            return bankService.listCards(sessionId, filter, cursor, pageSize);
         } catch (RemoteException e) {
             throw new Exception("Failed to list cards: " + e.getMessage(), e);
         }
     }
     
+    /**
+     * Replaces a card number with a token.
+     *
+     * @param cardNumber the card number to tokenize
+     * @return the token
+     * @throws Exception if tokenization fails or user is not authenticated
+     */
+    public String tokenizeCard(String cardNumber) throws Exception {
+        checkAuthenticated();
+        try {
+            return bankService.tokenizeCard(sessionId, cardNumber);
+        } catch (RemoteException e) {
+            throw new Exception("Tokenization failed: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Looks up the card number behind a token.
+     *
+     * @param token the token returned by {@link #tokenizeCard}
+     * @return the card number
+     * @throws Exception if the token is unknown or user is not authenticated
+     */
+    public String detokenizeCard(String token) throws Exception {
+        checkAuthenticated();
+        try {
+            return bankService.detokenizeCard(sessionId, token);
+        } catch (RemoteException e) {
+            throw new Exception("Detokenization failed: " + e.getMessage(), e);
+        }
+    }
+    
     /**
      * Checks if the client is currently authenticated.
      *
@@ -7,6 +7,7 @@ import javafx.scene.control.Alert.AlertType;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
 import client.gui.panels.LoginPanel;
+import client.gui.panels.MainPanel;
 import client.gui.theme.ThemeManager;
 
 public class BankCardApp extends Application {
@@ -1,72 +1,123 @@
 package common.model;
 
+import common.util.CardValidator;
+import common.util.CipherEngine;
+import common.util.CipherEngines;
+import common.util.PackedBcd;
+import common.util.ShiftCipherEngine;
+
 import java.io.Serializable;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.Objects;
 
 /**
  * Represents a bank card and its encrypted data.
+ * <p>
+ * The card number and ciphertext are kept as packed BCD in two {@code long} words
+ * each (see {@link PackedBcd}) and the creation time as epoch millis, so a record
+ * holds no Strings or date objects. The getters decode on demand. Values that do not
+ * fit the packed form are kept as Strings instead.
  */
 public class CardData implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     
-    private String cardNumber;
-    private String encryptedData;
-    private int encryptionShift;
-    private LocalDateTime creationDate;
+    private final long cardHigh;
+    private final long cardLow;
+    private final long encryptedHigh;
+    private final long encryptedLow;
+    private final long creationTimeMillis;
+    private final int encryptionShift;
+    private final byte cipherTag;
+    // Only set when the value cannot be packed
+    private final String cardNumberText;
+    private final String encryptedText;
+    private transient int hash;
 
     public CardData(String cardNumber, int encryptionShift) {
+        this(cardNumber, encryptionShift, CipherEngines.forTag(ShiftCipherEngine.TAG));
+    }
+
+    /**
+     * Creates card data encrypted by the given engine.
+     * @param cardNumber The card number
+     * @param encryptionShift The per-record cipher parameter (the shift for the shift cipher)
+     * @param engine The engine to encrypt with; its tag is stored with the record
+     */
+    public CardData(String cardNumber, int encryptionShift, CipherEngine engine) {
         if (!validate(cardNumber)) {
             throw new IllegalArgumentException("Invalid card number");
         }
-        this.cardNumber = cardNumber;
+        String encrypted = engine.encrypt(cardNumber, encryptionShift);
         this.encryptionShift = encryptionShift;
-        this.creationDate = LocalDateTime.now();
-        this.encryptedData = encrypt();
+        this.cipherTag = engine.getTag();
+        this.creationTimeMillis = System.currentTimeMillis();
+        if (PackedBcd.isPackable(cardNumber)) {
+            this.cardHigh = PackedBcd.pack(cardNumber, 0);
+            this.cardLow = PackedBcd.pack(cardNumber, 1);
+            this.cardNumberText = null;
+        } else {
+            this.cardHigh = PackedBcd.EMPTY_WORD;
+            this.cardLow = PackedBcd.EMPTY_WORD;
+            this.cardNumberText = cardNumber;
+        }
+        if (PackedBcd.isPackable(encrypted)) {
+            this.encryptedHigh = PackedBcd.pack(encrypted, 0);
+            this.encryptedLow = PackedBcd.pack(encrypted, 1);
+            this.encryptedText = null;
+        } else {
+            this.encryptedHigh = PackedBcd.EMPTY_WORD;
+            this.encryptedLow = PackedBcd.EMPTY_WORD;
+            this.encryptedText = encrypted;
+        }
+    }
+
+    private CardData(long cardHigh, long cardLow, long encryptedHigh, long encryptedLow,
+                     int encryptionShift, byte cipherTag, long creationTimeMillis) {
+        this.cardHigh = cardHigh;
+        this.cardLow = cardLow;
+        this.encryptedHigh = encryptedHigh;
+        this.encryptedLow = encryptedLow;
+        this.encryptionShift = encryptionShift;
+        this.cipherTag = cipherTag;
+        this.creationTimeMillis = creationTimeMillis;
+        this.cardNumberText = null;
+        this.encryptedText = null;
+    }
+
+    /**
+     * Rebuilds a record from its packed form, as stored by {@link #isPacked() packed} records.
+     * No validation or encryption is performed.
+     * @param cardHigh The first word of the packed card number
+     * @param cardLow The second word of the packed card number
+     * @param encryptedHigh The first word of the packed ciphertext
+     * @param encryptedLow The second word of the packed ciphertext
+     * @param encryptionShift The cipher parameter
+     * @param cipherTag The cipher engine tag
+     * @param creationTimeMillis The creation time in epoch millis
+     * @return The record
+     */
+    public static CardData fromPacked(long cardHigh, long cardLow, long encryptedHigh, long encryptedLow,
+                                      int encryptionShift, byte cipherTag, long creationTimeMillis) {
+        return new CardData(cardHigh, cardLow, encryptedHigh, encryptedLow,
+                encryptionShift, cipherTag, creationTimeMillis);
     }
 
     /**
-     * Encrypts the card number using the current shift value.
+     * Gets the card number encrypted with the record's engine and shift value.
      * @return The encrypted card data
      */
     public String encrypt() {
-        if (this.encryptedData != null) {
-            return this.encryptedData;
-        }
-        
-        StringBuilder result = new StringBuilder();
-        for (char c : cardNumber.toCharArray()) {
-            if (Character.isDigit(c)) {
-                int original = Character.getNumericValue(c);
-                int encrypted = (original + encryptionShift) % 10;
-                result.append(encrypted);
-            } else {
-                result.append(c);
-            }
-        }
-        return result.toString();
+        return getEncryptedData();
     }
 
     /**
-     * Decrypts the card data using the stored shift value.
+     * Decrypts the card data with the engine identified by the record's cipher tag.
      * @return The decrypted card number
      */
     public String decrypt() {
-        if (this.encryptedData == null) {
-            return this.cardNumber;
-        }
-        
-        StringBuilder result = new StringBuilder();
-        for (char c : this.encryptedData.toCharArray()) {
-            if (Character.isDigit(c)) {
-                int encrypted = Character.getNumericValue(c);
-                int decrypted = (encrypted - encryptionShift + 10) % 10;
-                result.append(decrypted);
-            } else {
-                result.append(c);
-            }
-        }
-        return result.toString();
+        return CipherEngines.forTag(cipherTag).decrypt(getEncryptedData(), encryptionShift);
     }
 
     /**
@@ -75,50 +126,109 @@ public class CardData implements Serializable {
      * @return true if the card number is valid, false otherwise
      */
     public static boolean validate(String cardNumber) {
-        if (cardNumber == null || cardNumber.trim().isEmpty()) {
-            return false;
+        int scan = CardValidator.scan(cardNumber);
+        return isAcceptedScan(scan);
+    }
+
+    /**
+     * Reduces a card number to its digits, dropping the separators {@link #validate} skips,
+     * so that one card is always stored and compared in the same form.
+     * @param cardNumber The card number, possibly with separators
+     * @return The digits of the card number
+     */
+    public static String digitsOf(String cardNumber) {
+        int i = 0;
+        while (i < cardNumber.length() && isDigit(cardNumber.charAt(i))) {
+            i++;
         }
-        
-        // Remove all non-digit characters
-        String digits = cardNumber.replaceAll("\\D", "");
-        
-        // Check if the card number starts with 3,4,5, or 6 and has between 12-19 digits
-        if (!digits.matches("^[3456]\\d{11,18}$")) {
-            return false;
+        if (i == cardNumber.length()) {
+            return cardNumber;
         }
-        
-        // Luhn algorithm
-        int sum = 0;
-        boolean alternate = false;
-        for (int i = digits.length() - 1; i >= 0; i--) {
-            int n = Integer.parseInt(digits.substring(i, i + 1));
-            if (alternate) {
-                n *= 2;
-                if (n > 9) {
-                    n = (n % 10) + 1;
-                }
+        StringBuilder digits = new StringBuilder(cardNumber.length());
+        digits.append(cardNumber, 0, i);
+        for (; i < cardNumber.length(); i++) {
+            char c = cardNumber.charAt(i);
+            if (isDigit(c)) {
+                digits.append(c);
             }
-            sum += n;
-            alternate = !alternate;
         }
-        return (sum % 10 == 0);
+        return digits.toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
-    // Getters and Setters
+    /**
+     * Applies the card data acceptance rules to a {@link CardValidator} scan result:
+     * the number must start with 3, 4, 5 or 6, have between 12 and 19 digits
+     * and pass the Luhn check.
+     * @param scan The packed scan result
+     * @return true if the scanned card number is accepted, false otherwise
+     */
+    public static boolean isAcceptedScan(int scan) {
+        int firstDigit = CardValidator.firstDigitOf(scan);
+        int length = CardValidator.lengthOf(scan);
+        return firstDigit >= 3 && firstDigit <= 6
+                && length >= 12 && length <= 19
+                && CardValidator.isLuhnValid(scan);
+    }
+
+    // Getters
     public String getCardNumber() {
-        return cardNumber;
+        return cardNumberText != null ? cardNumberText : PackedBcd.unpack(cardHigh, cardLow);
     }
 
     public String getEncryptedData() {
-        return encryptedData;
+        return encryptedText != null ? encryptedText : PackedBcd.unpack(encryptedHigh, encryptedLow);
     }
 
     public int getEncryptionShift() {
         return encryptionShift;
     }
 
+    /**
+     * Gets the tag of the {@link CipherEngine} that encrypted this record.
+     * @return The cipher tag
+     */
+    public byte getCipherTag() {
+        return cipherTag;
+    }
+
+    /**
+     * @return true if both the card number and the ciphertext are held in packed form
+     */
+    public boolean isPacked() {
+        return cardNumberText == null && encryptedText == null;
+    }
+
+    /**
+     * Gets one word of the packed card number. Only meaningful if {@link #isPacked()}.
+     * @param word 0 for the first word, 1 for the second
+     * @return The packed word
+     */
+    public long getPackedCardNumber(int word) {
+        return word == 0 ? cardHigh : cardLow;
+    }
+
+    /**
+     * Gets one word of the packed ciphertext. Only meaningful if {@link #isPacked()}.
+     * @param word 0 for the first word, 1 for the second
+     * @return The packed word
+     */
+    public long getPackedEncryptedData(int word) {
+        return word == 0 ? encryptedHigh : encryptedLow;
+    }
+
+    /**
+     * @return The creation time in milliseconds since the epoch
+     */
+    public long getCreationTimeMillis() {
+        return creationTimeMillis;
+    }
+
     public LocalDateTime getCreationDate() {
-        return creationDate;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(creationTimeMillis), ZoneId.systemDefault());
     }
 
     @Override
@@ -127,23 +237,39 @@ public class CardData implements Serializable {
         if (o == null || getClass() != o.getClass()) return false;
         CardData cardData = (CardData) o;
         return encryptionShift == cardData.encryptionShift &&
-               Objects.equals(cardNumber, cardData.cardNumber) &&
-               Objects.equals(encryptedData, cardData.encryptedData);
+               cipherTag == cardData.cipherTag &&
+               cardHigh == cardData.cardHigh && cardLow == cardData.cardLow &&
+               encryptedHigh == cardData.encryptedHigh && encryptedLow == cardData.encryptedLow &&
+               Objects.equals(cardNumberText, cardData.cardNumberText) &&
+               Objects.equals(encryptedText, cardData.encryptedText);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(cardNumber, encryptedData, encryptionShift);
+        int h = hash;
+        if (h == 0) {
+            h = Long.hashCode(cardHigh);
+            h = 31 * h + Long.hashCode(cardLow);
+            h = 31 * h + Long.hashCode(encryptedHigh);
+            h = 31 * h + Long.hashCode(encryptedLow);
+            h = 31 * h + Objects.hashCode(cardNumberText);
+            h = 31 * h + Objects.hashCode(encryptedText);
+            h = 31 * h + encryptionShift;
+            hash = h;
+        }
+        return h;
     }
 
     @Override
     public String toString() {
+        String cardNumber = getCardNumber();
         return "CardData{" +
                 "cardNumber='" + "*".repeat(Math.max(0, cardNumber.length() - 4)) + 
                 cardNumber.substring(cardNumber.length() - 4) + '\'' +
-                ", encryptedData='" + encryptedData + '\'' +
+                ", encryptedData='" + getEncryptedData() + '\'' +
                 ", encryptionShift=" + encryptionShift +
-                ", creationDate=" + creationDate +
+                ", cipherTag=" + cipherTag +
+                ", creationDate=" + getCreationDate() +
                 '}';
     }
 }
@@ -1,7 +1,11 @@
 package common.model;
 
+import common.util.CryptoUtil;
+import common.util.PasswordHash;
+
 import java.io.Serializable;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a system user with authentication and authorization details.
@@ -13,15 +17,15 @@ public class User implements Serializable {
     private String username;
     private String hashedPassword;
     private AccessLevel accessLevel;
-    private int loginAttempts;
-    private boolean locked;
+    // Failed attempts shifted left by one, with the lock flag in bit 0, so both change
+    // together without a monitor that would pin a virtual thread waiting for it
+    private final AtomicInteger loginState = new AtomicInteger();
+    private transient PasswordHash parsedHash;
 
     public User(String username, String hashedPassword, AccessLevel accessLevel) {
         this.username = username;
         this.hashedPassword = hashedPassword;
         this.accessLevel = accessLevel;
-        this.loginAttempts = 0;
-        this.locked = false;
     }
 
     /**
@@ -33,8 +37,10 @@ public class User implements Serializable {
         if (isLocked()) {
             return false;
         }
-        // In a real implementation, use a proper password hashing library like BCrypt
-        boolean isValid = this.hashedPassword.equals(hashPassword(password));
+        PasswordHash parsed = getParsedHash();
+        boolean isValid = parsed != null
+                ? CryptoUtil.verifyPassword(password, parsed)
+                : this.hashedPassword.equals(hashPassword(password));
         if (!isValid) {
             incrementLoginAttempts();
         } else {
@@ -45,25 +51,76 @@ public class User implements Serializable {
 
     /**
      * Increments the login attempt counter and locks the account if necessary.
+     * Attempts for one user may be verified on several threads at once.
      */
     public void incrementLoginAttempts() {
-        this.loginAttempts++;
-        if (this.loginAttempts >= MAX_LOGIN_ATTEMPTS) {
-            this.locked = true;
-        }
+        loginState.updateAndGet(state -> {
+            int attempts = attemptsOf(state) + 1;
+            return packLoginState(attempts, isLocked(state) || attempts >= MAX_LOGIN_ATTEMPTS);
+        });
     }
 
     /**
      * Resets the login attempt counter and unlocks the account.
      */
     public void resetLoginAttempts() {
-        this.loginAttempts = 0;
-        this.locked = false;
+        loginState.set(0);
+    }
+
+    /**
+     * Restores lockout state saved before a restart.
+     * @param loginAttempts The failed attempt count
+     * @param locked Whether the account is locked
+     */
+    public void restoreLoginState(int loginAttempts, boolean locked) {
+        loginState.set(packLoginState(loginAttempts, locked));
+    }
+
+    /**
+     * Reads the attempt count and lock flag together; decode with {@link #attemptsOf}
+     * and {@link #isLocked(int)}.
+     * @return The packed login state
+     */
+    public int getLoginState() {
+        return loginState.get();
+    }
+
+    /**
+     * @param state A packed login state
+     * @return The failed attempt count
+     */
+    public static int attemptsOf(int state) {
+        return state >>> 1;
+    }
+
+    /**
+     * @param state A packed login state
+     * @return Whether the account is locked
+     */
+    public static boolean isLocked(int state) {
+        return (state & 1) != 0;
+    }
+
+    private static int packLoginState(int loginAttempts, boolean locked) {
+        return loginAttempts << 1 | (locked ? 1 : 0);
+    }
+
+    /**
+     * Gets the stored hash parsed into its binary form, parsing it on first use.
+     * @return The parsed hash, or null if the stored hash is not in PBKDF2 format
+     */
+    private PasswordHash getParsedHash() {
+        PasswordHash parsed = this.parsedHash;
+        if (parsed == null && this.hashedPassword != null) {
+            parsed = PasswordHash.parse(this.hashedPassword);
+            this.parsedHash = parsed;
+        }
+        return parsed;
     }
 
     /**
-     * Simple password hashing function.
-     * In a production environment, use BCrypt or similar.
+     * Simple password hashing function, used only for hashes that are not in
+     * the {@link CryptoUtil#hashPassword(String)} format.
      */
     private String hashPassword(String password) {
         // This is a simple hash for demonstration
@@ -86,6 +143,7 @@ public class User implements Serializable {
 
     public void setHashedPassword(String hashedPassword) {
         this.hashedPassword = hashedPassword;
+        this.parsedHash = null;
     }
 
     public AccessLevel getAccessLevel() {
@@ -97,11 +155,11 @@ public class User implements Serializable {
     }
 
     public int getLoginAttempts() {
-        return loginAttempts;
+        return attemptsOf(loginState.get());
     }
 
     public boolean isLocked() {
-        return locked;
+        return isLocked(loginState.get());
     }
 
     @Override
@@ -122,8 +180,8 @@ public class User implements Serializable {
         return "User{" +
                 "username='" + username + '\'' +
                 ", accessLevel=" + accessLevel +
-                ", loginAttempts=" + loginAttempts +
-                ", locked=" + locked +
+                ", loginAttempts=" + getLoginAttempts() +
+                ", locked=" + isLocked() +
                 '}';
     }
 }
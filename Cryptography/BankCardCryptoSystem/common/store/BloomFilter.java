@@ -0,0 +1,161 @@
+package common.store;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scalable, blocked Bloom filter over keys of two longs, such as packed BCD words.
+ * <p>
+ * A key sets all of its bits inside one 512-bit block, so a lookup reads a single
+ * cache line. The filter starts with one small layer; once a layer has taken its
+ * capacity in keys, a layer twice as large with more bits per key is added, which
+ * keeps the overall false-positive rate bounded as the filter grows. Adds are
+ * lock-free. Keys cannot be removed, so a removed key only costs a false positive
+ * until the filter is rebuilt.
+ */
+public class BloomFilter {
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = BLOCK_WORDS * Long.SIZE;
+    private static final int BASE_BITS_PER_KEY = 10;
+    // Extra bits per key in each later layer, roughly halving its false-positive rate
+    private static final int BITS_PER_KEY_STEP = 2;
+    private static final int MAX_HASHES = 16;
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private volatile Layer[] layers;
+
+    /**
+     * @param initialCapacity The number of keys the first layer takes before another is added
+     */
+    public BloomFilter(int initialCapacity) {
+        this.layers = new Layer[] {new Layer(Math.max(initialCapacity, 64), 0)};
+    }
+
+    /**
+     * Adds a key.
+     * @return true if the key was not already (possibly) present
+     */
+    public boolean add(long keyHigh, long keyLow) {
+        long hash = mix(keyHigh, keyLow);
+        if (mightContain(hash)) {
+            return false;
+        }
+        Layer[] current = layers;
+        Layer last = current[current.length - 1];
+        if (last.count.incrementAndGet() > last.capacity) {
+            last = grow(current);
+            last.count.incrementAndGet();
+        }
+        last.set(hash);
+        return true;
+    }
+
+    /**
+     * @return false if the key was never added; true if it probably was
+     */
+    public boolean mightContain(long keyHigh, long keyLow) {
+        return mightContain(mix(keyHigh, keyLow));
+    }
+
+    /**
+     * @return The number of layers
+     */
+    public int layerCount() {
+        return layers.length;
+    }
+
+    /**
+     * @return The size of the bit arrays in bytes
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (Layer layer : layers) {
+            bytes += layer.words.length * (long) Long.BYTES;
+        }
+        return bytes;
+    }
+
+    private boolean mightContain(long hash) {
+        for (Layer layer : layers) {
+            if (layer.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Layer grow(Layer[] seen) {
+        Layer[] current = layers;
+        if (current != seen) {
+            // Another thread grew it first
+            return current[current.length - 1];
+        }
+        Layer last = current[current.length - 1];
+        Layer[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = new Layer(last.capacity * 2, current.length);
+        layers = grown;
+        return grown[current.length];
+    }
+
+    private static long mix(long keyHigh, long keyLow) {
+        long h = keyHigh * 0x9E3779B97F4A7C15L ^ keyLow;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * One fixed-size blocked filter.
+     */
+    private static final class Layer {
+        final int capacity;
+        final long[] words;
+        final int blocks;
+        final int hashes;
+        final AtomicInteger count = new AtomicInteger();
+
+        Layer(int capacity, int depth) {
+            int bitsPerKey = BASE_BITS_PER_KEY + depth * BITS_PER_KEY_STEP;
+            this.capacity = capacity;
+            this.blocks = (int) Math.max(1, ((long) capacity * bitsPerKey + BLOCK_BITS - 1) / BLOCK_BITS);
+            this.words = new long[blocks * BLOCK_WORDS];
+            this.hashes = Math.min(MAX_HASHES, (int) Math.round(bitsPerKey * Math.log(2)));
+        }
+
+        void set(long hash) {
+            int base = block(hash);
+            int bit = (int) hash;
+            int step = (int) (hash >>> 16) | 1;
+            for (int i = 0; i < hashes; i++, bit += step) {
+                int index = base + ((bit & (BLOCK_BITS - 1)) >>> 6);
+                long mask = 1L << bit;
+                if (((long) WORDS.getAcquire(words, index) & mask) == 0) {
+                    WORDS.getAndBitwiseOrRelease(words, index, mask);
+                }
+            }
+        }
+
+        boolean contains(long hash) {
+            int base = block(hash);
+            int bit = (int) hash;
+            int step = (int) (hash >>> 16) | 1;
+            for (int i = 0; i < hashes; i++, bit += step) {
+                long word = (long) WORDS.getAcquire(words, base + ((bit & (BLOCK_BITS - 1)) >>> 6));
+                if ((word & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // The upper half of the hash picks the block without a modulo
+        private int block(long hash) {
+            return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package common.store;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds how many cards are kept in memory, deciding which ones stay with W-TinyLFU.
+ * <p>
+ * The cache tracks which cards are in the {@link CardVault}s it is given, and it
+ * removes the losers from their vault when it evicts them. The cards must also be in
+ * a cold tier, such as a {@link CardStore}, so an evicted card can be read back.
+ * New cards enter a small LRU window. A card leaving the window only replaces the
+ * main space's eviction victim if a count-min sketch of recent accesses says it is
+ * used more often. The main space is a segmented LRU: cards hit again in probation
+ * move to protected. The sketch uses 4-bit counters that are halved periodically, so
+ * old popularity fades.
+ * <p>
+ * The cache is split into independently locked shards by key.
+ */
+public class CardCache {
+    /** System property setting the most cards kept in memory; unset or 0 means no bound. */
+    public static final String MAX_CARDS_PROPERTY = "bankcard.cache.maxCards";
+
+    private static final int SHARDS = 16;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long maxCards;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxCards The most cards to keep in memory, at least 1
+     */
+    public CardCache(long maxCards) {
+        if (maxCards < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxCards);
+        }
+        this.maxCards = maxCards;
+        for (int i = 0; i < SHARDS; i++) {
+            // Spread the remainder so the shard capacities add up to maxCards
+            long capacity = maxCards / SHARDS + (i < maxCards % SHARDS ? 1 : 0);
+            shards[i] = new Shard((int) Math.min(Math.max(capacity, 1), Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Creates a cache bounded by {@value #MAX_CARDS_PROPERTY}, if it is set.
+     * @return The cache, or null if no bound is configured
+     */
+    public static CardCache fromConfiguration() {
+        long maxCards = Long.getLong(MAX_CARDS_PROPERTY, 0L);
+        return maxCards > 0 ? new CardCache(maxCards) : null;
+    }
+
+    /**
+     * Records a lookup that found the card in memory.
+     * @param vault The vault holding the card
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     */
+    public void recordHit(CardVault vault, long keyHigh, long keyLow) {
+        hits.increment();
+        long hash = hash(vault, keyHigh, keyLow);
+        shardFor(hash).access(vault, keyHigh, keyLow, hash);
+    }
+
+    /**
+     * Records a lookup that did not find the card in memory.
+     */
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * Starts tracking a card just put into a vault, evicting cards to stay within the
+     * bound. The new card itself may be the one evicted.
+     * @param vault The vault now holding the card
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     * @param promoted true if the card was read back from the cold tier
+     */
+    public void admit(CardVault vault, long keyHigh, long keyLow, boolean promoted) {
+        if (promoted) {
+            promotions.increment();
+        }
+        long hash = hash(vault, keyHigh, keyLow);
+        shardFor(hash).add(vault, keyHigh, keyLow, hash);
+    }
+
+    /**
+     * Stops tracking a card that was removed from its vault.
+     * @param vault The vault that held the card
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     */
+    public void invalidate(CardVault vault, long keyHigh, long keyLow) {
+        long hash = hash(vault, keyHigh, keyLow);
+        shardFor(hash).invalidate(vault, keyHigh, keyLow);
+    }
+
+    /**
+     * @return The most cards kept in memory
+     */
+    public long maxCards() {
+        return maxCards;
+    }
+
+    /**
+     * @return The number of cards currently in memory
+     */
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The share of lookups served from memory, or 1 if there were none
+     */
+    public double hitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 1.0 : (double) hit / total;
+    }
+
+    /**
+     * @return The number of cards read back from the cold tier into memory
+     */
+    public long promotionCount() {
+        return promotions.sum();
+    }
+
+    /**
+     * @return The number of cards dropped from memory
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hot=%d/%d hits=%d misses=%d hitRate=%.3f promotions=%d evictions=%d",
+                size(), maxCards, hitCount(), missCount(), hitRate(), promotionCount(), evictionCount());
+    }
+
+    private Shard shardFor(long hash) {
+        return shards[(int) (hash >>> 32) & (SHARDS - 1)];
+    }
+
+    private static long hash(CardVault vault, long keyHigh, long keyLow) {
+        long h = keyHigh * 0x9E3779B97F4A7C15L + keyLow;
+        h = (h ^ System.identityHashCode(vault)) * 0xC2B2AE3D27D4EB4FL;
+        return h ^ (h >>> 29);
+    }
+
+    // Queues a node can be on
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private final class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<Node, Node> nodes = new HashMap<>();
+        private final FrequencySketch sketch;
+        private final Node[] heads = new Node[3];
+        private final Node[] tails = new Node[3];
+        private final int[] sizes = new int[3];
+        private final int capacity;
+        private final int windowMax;
+        private final int protectedMax;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+            this.windowMax = Math.max(1, (int) ((long) capacity * WINDOW_PERCENT / 100));
+            this.protectedMax = (int) ((long) (capacity - windowMax) * PROTECTED_PERCENT / 100);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return nodes.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void access(CardVault vault, long keyHigh, long keyLow, long hash) {
+            lock.lock();
+            try {
+                sketch.increment(hash);
+                Node node = nodes.get(new Node(vault, keyHigh, keyLow, hash));
+                if (node != null) {
+                    onAccess(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void add(CardVault vault, long keyHigh, long keyLow, long hash) {
+            lock.lock();
+            try {
+                sketch.increment(hash);
+                Node probe = new Node(vault, keyHigh, keyLow, hash);
+                Node node = nodes.get(probe);
+                if (node != null) {
+                    onAccess(node);
+                    return;
+                }
+                nodes.put(probe, probe);
+                link(probe, WINDOW);
+                if (sizes[WINDOW] > windowMax || nodes.size() > capacity) {
+                    Node candidate = heads[WINDOW];
+                    unlink(candidate);
+                    link(candidate, PROBATION);
+                    if (nodes.size() > capacity) {
+                        evictOne(candidate);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidate(CardVault vault, long keyHigh, long keyLow) {
+            lock.lock();
+            try {
+                Node node = nodes.remove(new Node(vault, keyHigh, keyLow, hash(vault, keyHigh, keyLow)));
+                if (node != null) {
+                    unlink(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void onAccess(Node node) {
+            if (node.queue == PROBATION) {
+                unlink(node);
+                link(node, PROTECTED);
+                if (sizes[PROTECTED] > protectedMax) {
+                    Node demoted = heads[PROTECTED];
+                    unlink(demoted);
+                    link(demoted, PROBATION);
+                }
+            } else {
+                unlink(node);
+                link(node, node.queue);
+            }
+        }
+
+        // The candidate just left the window; it or the probation victim has to go
+        private void evictOne(Node candidate) {
+            Node victim = heads[PROBATION];
+            if (victim == candidate) {
+                victim = heads[PROTECTED] != null ? heads[PROTECTED] : candidate;
+            }
+            Node loser = victim != candidate && sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)
+                    ? victim : candidate;
+            nodes.remove(loser);
+            unlink(loser);
+            loser.vault.remove(loser.keyHigh, loser.keyLow);
+            evictions.increment();
+        }
+
+        private void link(Node node, byte queue) {
+            node.queue = queue;
+            node.prev = tails[queue];
+            node.next = null;
+            if (tails[queue] != null) {
+                tails[queue].next = node;
+            } else {
+                heads[queue] = node;
+            }
+            tails[queue] = node;
+            sizes[queue]++;
+        }
+
+        private void unlink(Node node) {
+            byte queue = node.queue;
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                heads[queue] = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tails[queue] = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            sizes[queue]--;
+        }
+    }
+
+    /**
+     * A tracked card, also used as its own map key.
+     */
+    private static final class Node {
+        final CardVault vault;
+        final long keyHigh;
+        final long keyLow;
+        final long hash;
+        Node prev;
+        Node next;
+        byte queue;
+
+        Node(CardVault vault, long keyHigh, long keyLow, long hash) {
+            this.vault = vault;
+            this.keyHigh = keyHigh;
+            this.keyLow = keyLow;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Node other = (Node) o;
+            return vault == other.vault && keyHigh == other.keyHigh && keyLow == other.keyLow;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash;
+        }
+    }
+
+    /**
+     * Count-min sketch with four 4-bit counters per key, sixteen to a long.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int length = 8;
+            while (length < capacity && length < (1 << 24)) {
+                length <<= 1;
+            }
+            this.table = new long[length];
+            this.sampleSize = 10 * length;
+        }
+
+        void increment(long hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = spread(hash, i);
+                int index = (int) h & (table.length - 1);
+                int shift = (int) ((h >>> 40) & 15) << 2;
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                // Halve every counter so older accesses count for less
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(long hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = spread(hash, i);
+                int index = (int) h & (table.length - 1);
+                int shift = (int) ((h >>> 40) & 15) << 2;
+                frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 15));
+            }
+            return frequency;
+        }
+
+        private static long spread(long hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return h ^ (h >>> 31);
+        }
+    }
+}
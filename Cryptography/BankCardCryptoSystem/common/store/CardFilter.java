@@ -0,0 +1,103 @@
+package common.store;
+
+import java.io.Serializable;
+
+/**
+ * Criteria for finding stored cards through a {@link CardIndex}. Unset criteria
+ * match every card; set criteria must all match.
+ */
+public class CardFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String last4;
+    private String binPrefix;
+    private String brand;
+    private String owner;
+    private long createdFrom = Long.MIN_VALUE;
+    private long createdTo = Long.MAX_VALUE;
+
+    public String getLast4() {
+        return last4;
+    }
+
+    /**
+     * @param last4 The last four digits of the card number
+     */
+    public void setLast4(String last4) {
+        this.last4 = last4;
+    }
+
+    public String getBinPrefix() {
+        return binPrefix;
+    }
+
+    /**
+     * @param binPrefix One to six leading digits of the card number
+     */
+    public void setBinPrefix(String binPrefix) {
+        this.binPrefix = binPrefix;
+    }
+
+    public String getBrand() {
+        return brand;
+    }
+
+    /**
+     * @param brand The brand as reported by {@code CardValidator.getCardType}, ignoring case
+     */
+    public void setBrand(String brand) {
+        this.brand = brand;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner The username of the card's owner
+     */
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public long getCreatedFrom() {
+        return createdFrom;
+    }
+
+    /**
+     * @param createdFrom The earliest creation time to include, in epoch millis
+     */
+    public void setCreatedFrom(long createdFrom) {
+        this.createdFrom = createdFrom;
+    }
+
+    public long getCreatedTo() {
+        return createdTo;
+    }
+
+    /**
+     * @param createdTo The latest creation time to include, in epoch millis
+     */
+    public void setCreatedTo(long createdTo) {
+        this.createdTo = createdTo;
+    }
+
+    /**
+     * @return true if a creation time range is set
+     */
+    public boolean hasTimeRange() {
+        return createdFrom != Long.MIN_VALUE || createdTo != Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "CardFilter{" +
+                "last4='" + last4 + '\'' +
+                ", binPrefix='" + binPrefix + '\'' +
+                ", brand='" + brand + '\'' +
+                ", owner='" + owner + '\'' +
+                ", createdFrom=" + createdFrom +
+                ", createdTo=" + createdTo +
+                '}';
+    }
+}
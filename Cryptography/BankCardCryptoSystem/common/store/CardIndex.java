@@ -0,0 +1,731 @@
+package common.store;
+
+import common.model.CardData;
+import common.util.CardValidator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Secondary indexes over the cards in a {@link CardVault}: last four digits, BIN,
+ * brand, owner and creation time.
+ * <p>
+ * Each card gets a dense int id when it is indexed. Every index is a posting list
+ * of ids in a growable {@code int[]}, and the card's attributes are kept in parallel
+ * primitive arrays, so a query walks only the shortest matching posting list and
+ * checks the other criteria by array lookup. Updates take a write lock only for the
+ * few array stores they need; queries share a read lock.
+ */
+public class CardIndex {
+    private static final int BIN_DIGITS = 6;
+    private static final int NONE = -1;
+    // Arrays start small since a partition may hold only a handful of cards
+    private static final int INITIAL_CAPACITY = 16;
+    // Orders a page walk can take, each the tag of its cursors
+    private static final char ID_ORDER = 'i';
+    private static final char TIME_ORDER = 't';
+    private static final char BIN_ORDER = 'b';
+
+    /** The largest page {@link #findPage} returns. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private final CardSource vault;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Ciphertext to id, for packed ciphertexts and for the rest
+    private final LocationIndex packedIds = new LocationIndex(INITIAL_CAPACITY);
+    private final Map<String, Integer> overflowIds = new HashMap<>();
+
+    // Attributes by id
+    private long[] keyHighs = new long[INITIAL_CAPACITY];
+    private long[] keyLows = new long[INITIAL_CAPACITY];
+    private long[] createdMillis = new long[INITIAL_CAPACITY];
+    private short[] last4s = new short[INITIAL_CAPACITY];
+    private int[] bins = new int[INITIAL_CAPACITY];
+    private int[] brandIds = new int[INITIAL_CAPACITY];
+    private int[] ownerIds = new int[INITIAL_CAPACITY];
+    private final Map<Integer, String> overflowKeys = new HashMap<>();
+    private final BitSet removed = new BitSet();
+    private int count;
+    private int live;
+
+    // Posting lists
+    private final Map<Integer, IntList> byLast4 = new HashMap<>();
+    private final TreeMap<Integer, IntList> byBin = new TreeMap<>();
+    private final Dictionary brands = new Dictionary();
+    private final Dictionary owners = new Dictionary();
+
+    // Ids ordered by creation time
+    private long[] timeKeys = new long[INITIAL_CAPACITY];
+    private int[] timeIds = new int[INITIAL_CAPACITY];
+    private int timeCount;
+
+    /**
+     * Creates an empty index whose results are read from {@code vault}.
+     * @param vault The vault, or other source, holding the indexed cards
+     */
+    public CardIndex(CardSource vault) {
+        this.vault = vault;
+    }
+
+    /**
+     * Indexes a card, replacing the entry of any card with the same ciphertext.
+     * @param card The card, already stored in the vault
+     * @param owner The username of the owner, or null if unknown
+     */
+    public void add(CardData card, String owner) {
+        String cardNumber = card.getCardNumber();
+        int last4 = 0;
+        int bin = 0;
+        int digits = 0;
+        for (int i = 0; i < cardNumber.length(); i++) {
+            int d = cardNumber.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                continue;
+            }
+            if (digits < BIN_DIGITS) {
+                bin = bin * 10 + d;
+            }
+            last4 = (last4 * 10 + d) % 10000;
+            digits++;
+        }
+        for (int i = digits; i < BIN_DIGITS; i++) {
+            bin *= 10;
+        }
+        String brand = CardValidator.getCardType(cardNumber).toLowerCase(Locale.ROOT);
+
+        lock.writeLock().lock();
+        try {
+            int id = count;
+            ensureCapacity(id + 1);
+            int previous;
+            if (card.isPacked()) {
+                keyHighs[id] = card.getPackedEncryptedData(0);
+                keyLows[id] = card.getPackedEncryptedData(1);
+                previous = (int) packedIds.put(keyHighs[id], keyLows[id], id);
+            } else {
+                String key = card.getEncryptedData();
+                overflowKeys.put(id, key);
+                Integer old = overflowIds.put(key, id);
+                previous = old == null ? NONE : old;
+            }
+            if (previous != NONE) {
+                markRemoved(previous);
+            }
+            count++;
+            live++;
+
+            createdMillis[id] = card.getCreationTimeMillis();
+            last4s[id] = (short) last4;
+            bins[id] = bin;
+            brandIds[id] = brands.idOf(brand);
+            ownerIds[id] = owner == null ? NONE : owners.idOf(owner);
+
+            byLast4.computeIfAbsent(last4, k -> new IntList()).add(id);
+            byBin.computeIfAbsent(bin, k -> new IntList()).add(id);
+            brands.postings(brandIds[id]).add(id);
+            if (ownerIds[id] != NONE) {
+                owners.postings(ownerIds[id]).add(id);
+            }
+            addToTimeIndex(card.getCreationTimeMillis(), id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops a card from the index.
+     * @param card The card
+     * @return true if the card was indexed
+     */
+    public boolean remove(CardData card) {
+        lock.writeLock().lock();
+        try {
+            int id;
+            if (card.isPacked()) {
+                long keyHigh = card.getPackedEncryptedData(0);
+                long keyLow = card.getPackedEncryptedData(1);
+                id = (int) packedIds.get(keyHigh, keyLow);
+                if (id != NONE) {
+                    packedIds.remove(keyHigh, keyLow);
+                }
+            } else {
+                Integer old = overflowIds.remove(card.getEncryptedData());
+                id = old == null ? NONE : old;
+            }
+            if (id == NONE) {
+                return false;
+            }
+            markRemoved(id);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of indexed cards
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the ids of the cards matching a filter, in indexing order.
+     * @param filter The criteria
+     * @return The matching ids
+     */
+    public int[] findIds(CardFilter filter) {
+        lock.readLock().lock();
+        try {
+            Query query = new Query(filter);
+            IntList result = new IntList();
+            if (query.empty) {
+                return result.toArray();
+            }
+            IntList candidates = query.smallestPosting();
+            if (candidates != null) {
+                for (int i = 0; i < candidates.size; i++) {
+                    int id = candidates.values[i];
+                    if (query.matches(id)) {
+                        result.add(id);
+                    }
+                }
+            } else if (query.usesTime()) {
+                int from = query.timeFrom;
+                int to = query.timeTo;
+                for (int i = from; i < to; i++) {
+                    if (query.matches(timeIds[i])) {
+                        result.add(timeIds[i]);
+                    }
+                }
+                result.sort();
+            } else if (query.binFrom <= query.binTo) {
+                // Union of the BIN lists covered by a short prefix
+                for (IntList list : byBin.subMap(query.binFrom, true, query.binTo, true).values()) {
+                    for (int i = 0; i < list.size; i++) {
+                        if (query.matches(list.values[i])) {
+                            result.add(list.values[i]);
+                        }
+                    }
+                }
+                result.sort();
+            } else {
+                for (int id = 0; id < count; id++) {
+                    if (query.matches(id)) {
+                        result.add(id);
+                    }
+                }
+            }
+            return result.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds one page of the cards matching a filter. Only as much of the index is
+     * walked as it takes to fill the page, whichever criterion leads: a page led by a
+     * posting list comes in indexing order, one led by a time range in creation-time
+     * order, and one led by a BIN prefix in BIN order. The cursor records the position
+     * in that order, so each page costs about the same however deep it is.
+     * @param filter The criteria
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param pageSize The most cards to return, capped at {@link #MAX_PAGE_SIZE}
+     * @return The page
+     * @throws IllegalArgumentException If the cursor is malformed
+     */
+    public CardPage findPage(CardFilter filter, String cursor, int pageSize) {
+        int size = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        int[] ids = new int[size + 1];
+        int n;
+        String next = null;
+        lock.readLock().lock();
+        try {
+            Query query = new Query(filter);
+            Cursor after = Cursor.parse(cursor);
+            // Later pages keep the order of the first, even if the index has shifted since
+            char order = after != null ? after.order : query.order();
+            if (order == BIN_ORDER && query.binFrom > query.binTo) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            if (query.empty) {
+                n = 0;
+            } else if (order == TIME_ORDER) {
+                n = walkTime(query, after, ids);
+            } else if (order == BIN_ORDER) {
+                n = walkBins(query, after, ids);
+            } else {
+                n = walkIds(query, after, ids);
+            }
+            if (n > size) {
+                int last = ids[size - 1];
+                long key = order == TIME_ORDER ? createdMillis[last] : order == BIN_ORDER ? bins[last] : 0;
+                next = new Cursor(order, key, last).toString();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        int taken = Math.min(n, size);
+        List<CardData> cards = new ArrayList<>(taken);
+        for (int i = 0; i < taken; i++) {
+            CardData card = get(ids[i]);
+            if (card != null) {
+                cards.add(card);
+            }
+        }
+        return new CardPage(cards, next);
+    }
+
+    // Called with the read lock held: matches in id order, from the shortest posting list or all ids
+    private int walkIds(Query query, Cursor after, int[] out) {
+        int afterId = after != null ? after.id : NONE;
+        int n = 0;
+        IntList candidates = query.smallestPosting();
+        if (candidates != null) {
+            for (int i = candidates.firstAfter(afterId); i < candidates.size && n < out.length; i++) {
+                int id = candidates.values[i];
+                if (query.matches(id)) {
+                    out[n++] = id;
+                }
+            }
+        } else {
+            for (int id = afterId + 1; id < count && n < out.length; id++) {
+                if (query.matches(id)) {
+                    out[n++] = id;
+                }
+            }
+        }
+        return n;
+    }
+
+    // Called with the read lock held: matches in (creation time, id) order within the time range
+    private int walkTime(Query query, Cursor after, int[] out) {
+        int position = query.timeFrom;
+        if (after != null) {
+            // Ids are ascending among equal times, since a card is inserted after its equals
+            int low = lowerBound(after.key);
+            int high = upperBound(after.key);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timeIds[mid] <= after.id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            position = Math.max(position, low);
+        }
+        int n = 0;
+        for (int i = position; i < query.timeTo && n < out.length; i++) {
+            if (query.matches(timeIds[i])) {
+                out[n++] = timeIds[i];
+            }
+        }
+        return n;
+    }
+
+    // Called with the read lock held: matches in (BIN, id) order over the prefix's BIN lists
+    private int walkBins(Query query, Cursor after, int[] out) {
+        long from = after != null ? Math.max(query.binFrom, after.key) : query.binFrom;
+        if (from > query.binTo) {
+            return 0;
+        }
+        int n = 0;
+        for (Map.Entry<Integer, IntList> entry : byBin.subMap((int) from, true, query.binTo, true).entrySet()) {
+            IntList list = entry.getValue();
+            int i = after != null && entry.getKey() == after.key ? list.firstAfter(after.id) : 0;
+            for (; i < list.size && n < out.length; i++) {
+                if (query.matches(list.values[i])) {
+                    out[n++] = list.values[i];
+                }
+            }
+            if (n == out.length) {
+                break;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Finds the cards matching a filter, in indexing order.
+     * @param filter The criteria
+     * @return The matching cards
+     */
+    public List<CardData> find(CardFilter filter) {
+        int[] ids = findIds(filter);
+        List<CardData> cards = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            CardData card = get(id);
+            if (card != null) {
+                cards.add(card);
+            }
+        }
+        return cards;
+    }
+
+    /**
+     * Reads an indexed card from the vault.
+     * @param id A card id returned by {@link #findIds}
+     * @return The card, or null if it is no longer stored
+     */
+    public CardData get(int id) {
+        long keyHigh;
+        long keyLow;
+        String overflowKey;
+        lock.readLock().lock();
+        try {
+            if (id < 0 || id >= count || removed.get(id)) {
+                return null;
+            }
+            keyHigh = keyHighs[id];
+            keyLow = keyLows[id];
+            overflowKey = overflowKeys.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return overflowKey != null ? vault.get(overflowKey) : vault.get(keyHigh, keyLow);
+    }
+
+    // Called with the write lock held
+    private void markRemoved(int id) {
+        if (!removed.get(id)) {
+            removed.set(id);
+            overflowKeys.remove(id);
+            live--;
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= keyHighs.length) {
+            return;
+        }
+        int capacity = keyHighs.length * 2;
+        keyHighs = Arrays.copyOf(keyHighs, capacity);
+        keyLows = Arrays.copyOf(keyLows, capacity);
+        createdMillis = Arrays.copyOf(createdMillis, capacity);
+        last4s = Arrays.copyOf(last4s, capacity);
+        bins = Arrays.copyOf(bins, capacity);
+        brandIds = Arrays.copyOf(brandIds, capacity);
+        ownerIds = Arrays.copyOf(ownerIds, capacity);
+    }
+
+    // Cards usually arrive in creation order, so this is an append; older ones are inserted
+    private void addToTimeIndex(long millis, int id) {
+        if (timeCount == timeKeys.length) {
+            timeKeys = Arrays.copyOf(timeKeys, timeCount * 2);
+            timeIds = Arrays.copyOf(timeIds, timeCount * 2);
+        }
+        int position = timeCount;
+        if (timeCount > 0 && timeKeys[timeCount - 1] > millis) {
+            position = upperBound(millis);
+            System.arraycopy(timeKeys, position, timeKeys, position + 1, timeCount - position);
+            System.arraycopy(timeIds, position, timeIds, position + 1, timeCount - position);
+        }
+        timeKeys[position] = millis;
+        timeIds[position] = id;
+        timeCount++;
+    }
+
+    // First position whose time is greater than millis
+    private int upperBound(long millis) {
+        int low = 0;
+        int high = timeCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeKeys[mid] <= millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First position whose time is at least millis
+    private int lowerBound(long millis) {
+        int low = 0;
+        int high = timeCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeKeys[mid] < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * A filter resolved against the index: dictionary ids, BIN range and time positions.
+     * Constructed and used with the read lock held.
+     */
+    private final class Query {
+        final int last4;
+        final int binFrom;
+        final int binTo;
+        final int brandId;
+        final int ownerId;
+        final long createdFrom;
+        final long createdTo;
+        final int timeFrom;
+        final int timeTo;
+        // true if some criterion can match no card at all
+        final boolean empty;
+
+        Query(CardFilter filter) {
+            boolean none = false;
+            last4 = filter.getLast4() != null ? parseDigits(filter.getLast4(), 4) : NONE;
+            none |= filter.getLast4() != null && last4 == NONE;
+
+            String prefix = filter.getBinPrefix();
+            if (prefix != null) {
+                int value = parseDigits(prefix, Math.min(prefix.length(), BIN_DIGITS));
+                none |= value == NONE || prefix.isEmpty() || prefix.length() > BIN_DIGITS;
+                int scale = 1;
+                for (int i = prefix.length(); i < BIN_DIGITS; i++) {
+                    scale *= 10;
+                }
+                binFrom = value * scale;
+                binTo = value * scale + scale - 1;
+            } else {
+                binFrom = 0;
+                binTo = -1;
+            }
+
+            if (filter.getBrand() != null) {
+                brandId = brands.find(filter.getBrand().toLowerCase(Locale.ROOT));
+                none |= brandId == NONE;
+            } else {
+                brandId = NONE;
+            }
+            if (filter.getOwner() != null) {
+                ownerId = owners.find(filter.getOwner());
+                none |= ownerId == NONE;
+            } else {
+                ownerId = NONE;
+            }
+
+            createdFrom = filter.getCreatedFrom();
+            createdTo = filter.getCreatedTo();
+            if (filter.hasTimeRange()) {
+                timeFrom = lowerBound(createdFrom);
+                timeTo = createdTo == Long.MAX_VALUE ? timeCount : upperBound(createdTo);
+            } else {
+                timeFrom = 0;
+                timeTo = timeCount;
+            }
+            empty = none;
+        }
+
+        boolean usesTime() {
+            return timeTo - timeFrom < timeCount;
+        }
+
+        // The order a page walk takes: the criterion that narrows the walk most
+        char order() {
+            if (smallestPosting() != null) {
+                return ID_ORDER;
+            }
+            if (usesTime()) {
+                return TIME_ORDER;
+            }
+            return binFrom <= binTo ? BIN_ORDER : ID_ORDER;
+        }
+
+        // The shortest single posting list among the exact-match criteria, if any
+        IntList smallestPosting() {
+            IntList best = null;
+            if (last4 != NONE) {
+                best = shorter(best, byLast4.get(last4));
+            }
+            if (binFrom == binTo) {
+                best = shorter(best, byBin.get(binFrom));
+            }
+            if (brandId != NONE) {
+                best = shorter(best, brands.postings(brandId));
+            }
+            if (ownerId != NONE) {
+                best = shorter(best, owners.postings(ownerId));
+            }
+            if (best != null && usesTime() && timeTo - timeFrom < best.size) {
+                return null; // the time range is narrower
+            }
+            return best;
+        }
+
+        private IntList shorter(IntList best, IntList candidate) {
+            if (candidate == null) {
+                return EMPTY_LIST;
+            }
+            return best == null || candidate.size < best.size ? candidate : best;
+        }
+
+        boolean matches(int id) {
+            if (removed.get(id)) {
+                return false;
+            }
+            if (last4 != NONE && last4s[id] != last4) {
+                return false;
+            }
+            if (binFrom <= binTo && (bins[id] < binFrom || bins[id] > binTo)) {
+                return false;
+            }
+            if (brandId != NONE && brandIds[id] != brandId) {
+                return false;
+            }
+            if (ownerId != NONE && ownerIds[id] != ownerId) {
+                return false;
+            }
+            long created = createdMillis[id];
+            return created >= createdFrom && created <= createdTo;
+        }
+    }
+
+    private static final IntList EMPTY_LIST = new IntList();
+
+    /**
+     * A position in a page walk: the last id returned and, in time or BIN order, that
+     * card's creation time or BIN. Written as the order's tag, then for time and BIN
+     * order the key in base 36 and a dot, then the id in base 36.
+     */
+    private static final class Cursor {
+        final char order;
+        final long key;
+        final int id;
+
+        Cursor(char order, long key, int id) {
+            this.order = order;
+            this.key = key;
+            this.id = id;
+        }
+
+        static Cursor parse(String cursor) {
+            if (cursor == null || cursor.isEmpty()) {
+                return null;
+            }
+            try {
+                char order = cursor.charAt(0);
+                if (order != ID_ORDER && order != TIME_ORDER && order != BIN_ORDER) {
+                    throw new IllegalArgumentException("Invalid cursor: " + cursor);
+                }
+                long key = 0;
+                String idText = cursor.substring(1);
+                if (order != ID_ORDER) {
+                    int dot = cursor.indexOf('.');
+                    if (dot < 0) {
+                        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+                    }
+                    key = Long.parseLong(cursor.substring(1, dot), Character.MAX_RADIX);
+                    idText = cursor.substring(dot + 1);
+                }
+                int id = Integer.parseInt(idText, Character.MAX_RADIX);
+                if (id < 0) {
+                    throw new IllegalArgumentException("Invalid cursor: " + cursor);
+                }
+                return new Cursor(order, key, id);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+        }
+
+        @Override
+        public String toString() {
+            String text = Integer.toString(id, Character.MAX_RADIX);
+            return order == ID_ORDER ? order + text : order + Long.toString(key, Character.MAX_RADIX) + "." + text;
+        }
+    }
+
+    private static int parseDigits(String text, int length) {
+        if (text.length() != length) {
+            return NONE;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            int d = text.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return NONE;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Interns strings to small ids, each with its posting list.
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<IntList> postings = new ArrayList<>();
+
+        int idOf(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = postings.size();
+                ids.put(value, id);
+                postings.add(new IntList());
+            }
+            return id;
+        }
+
+        int find(String value) {
+            Integer id = ids.get(value);
+            return id == null ? NONE : id;
+        }
+
+        IntList postings(int id) {
+            return postings.get(id);
+        }
+    }
+
+    /**
+     * Growable list of ints.
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        // First position whose value is greater than value; values are ascending
+        int firstAfter(int value) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
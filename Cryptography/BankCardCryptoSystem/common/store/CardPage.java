@@ -0,0 +1,40 @@
+package common.store;
+
+import common.model.CardData;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a card listing and the cursor for the page after it.
+ */
+public class CardPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<CardData> cards;
+    private final String nextCursor;
+
+    /**
+     * @param cards The cards on this page
+     * @param nextCursor The cursor for the next page, or null if this is the last page
+     */
+    public CardPage(List<CardData> cards, String nextCursor) {
+        this.cards = cards;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<CardData> getCards() {
+        return cards;
+    }
+
+    /**
+     * @return The cursor to pass for the next page, or null if there are no more cards
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
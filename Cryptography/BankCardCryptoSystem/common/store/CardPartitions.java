@@ -0,0 +1,337 @@
+package common.store;
+
+import common.model.CardData;
+import common.util.PackedBcd;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Cards partitioned by the user who owns them.
+ * <p>
+ * Each user gets a partition with its own {@link CardVault}, split into a fixed number
+ * of lock stripes, and its own {@link CardIndex}. Lookups and listings touch only the
+ * caller's partition, so a user never sees another user's cards, and a user writing
+ * heavily contends only on their own locks. Partitions are created on first use and
+ * start at a few kilobytes.
+ * <p>
+ * With a {@link CardCache} and a {@link CardRepository} such as the {@link CardStore},
+ * the vaults are a bounded hot tier in front of the repository. The cache evicts cards from the vaults, and a lookup that
+ * misses reads the card from the repository and promotes it back into memory. Listings read
+ * evicted cards from the repository without promoting them, so a scan does not flush the
+ * hot tier. Only the index's few primitive fields per card stay in memory for every card.
+ * <p>
+ * Each partition also keeps a {@link BloomFilter} over its ciphertexts and one over its
+ * card numbers, filled as cards are put and so rebuilt when the store is loaded. A lookup
+ * of a ciphertext the filter has never seen returns at once without touching the vault
+ * or the repository, and a card number can be checked for duplicates without a scan.
+ */
+public class CardPartitions {
+    /** Partition holding cards stored before owners were recorded; no session maps to it. */
+    public static final String UNOWNED = "";
+
+    private static final int DEFAULT_STRIPES = 8;
+    private static final int INITIAL_CARDS = 64;
+
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final int stripes;
+    private final CardRepository coldTier;
+    private final CardCache cache;
+    private final LongAdder filteredMisses = new LongAdder();
+
+    /**
+     * Creates an empty set of partitions with the default number of lock stripes each.
+     */
+    public CardPartitions() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes The number of lock stripes per partition, a power of two of at least 2
+     */
+    public CardPartitions(int stripes) {
+        this(stripes, null, null);
+    }
+
+    /**
+     * Creates partitions whose memory is bounded by {@code cache}, spilling to {@code coldTier}.
+     * @param coldTier The store every card is also written to, or null to keep all cards in memory
+     * @param cache The bound on cards kept in memory, or null for no bound; ignored without a cold tier
+     */
+    public CardPartitions(CardRepository coldTier, CardCache cache) {
+        this(DEFAULT_STRIPES, coldTier, cache);
+    }
+
+    /**
+     * @param stripes The number of lock stripes per partition, a power of two of at least 2
+     * @param coldTier The store every card is also written to, or null to keep all cards in memory
+     * @param cache The bound on cards kept in memory, or null for no bound; ignored without a cold tier
+     */
+    public CardPartitions(int stripes, CardRepository coldTier, CardCache cache) {
+        if (stripes < 2 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two of at least 2: " + stripes);
+        }
+        this.stripes = stripes;
+        this.coldTier = coldTier;
+        this.cache = coldTier != null ? cache : null;
+    }
+
+    /**
+     * Gets a user's partition, creating it if needed.
+     * @param owner The username, or null for {@link #UNOWNED}
+     * @return The partition
+     */
+    public Partition partition(String owner) {
+        String key = owner == null ? UNOWNED : owner;
+        Partition partition = partitions.get(key);
+        return partition != null ? partition : partitions.computeIfAbsent(key, Partition::new);
+    }
+
+    /**
+     * Gets a user's partition if they have stored any cards.
+     * @param owner The username
+     * @return The partition, or null if the user has none
+     */
+    public Partition find(String owner) {
+        return owner == null ? null : partitions.get(owner);
+    }
+
+    /**
+     * @return The number of partitions
+     */
+    public int partitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * @return The cache bounding the hot tier, or null if memory is not bounded
+     */
+    public CardCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return The number of lookups the Bloom filters answered without reading any storage
+     */
+    public long filteredMisses() {
+        return filteredMisses.sum();
+    }
+
+    /**
+     * @return The number of cards across all partitions
+     */
+    public int size() {
+        int size = 0;
+        for (Partition partition : partitions.values()) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    /**
+     * One user's cards and their index.
+     */
+    public final class Partition {
+        private final String owner;
+        // The owner as the cold tier records it
+        private final String storeOwner;
+        private final CardVault cards;
+        private final CardIndex index;
+        private final BloomFilter ciphertexts = new BloomFilter(INITIAL_CARDS);
+        private final BloomFilter cardNumbers = new BloomFilter(INITIAL_CARDS);
+        // Serialize putIfAbsent per card number; locks rather than monitors, since holders
+        // wait for the cold tier to make the card durable
+        private final ReentrantLock[] addLocks;
+
+        private Partition(String owner) {
+            this.owner = owner;
+            this.storeOwner = UNOWNED.equals(owner) ? null : owner;
+            this.cards = new CardVault(INITIAL_CARDS, stripes);
+            this.index = new CardIndex(cache != null ? new ColdFallback() : cards);
+            this.addLocks = new ReentrantLock[stripes];
+            for (int i = 0; i < stripes; i++) {
+                addLocks[i] = new ReentrantLock();
+            }
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Stores and indexes a card, replacing any of this user's cards with the same ciphertext.
+         * @param card The card
+         */
+        public void put(CardData card) {
+            // Filtered first, so a card is never visible while the filter still rules it out
+            // Card numbers are filtered by their digits alone, as findDuplicate looks them up
+            if (card.isPacked()) {
+                ciphertexts.add(card.getPackedEncryptedData(0), card.getPackedEncryptedData(1));
+            } else {
+                String encryptedData = card.getEncryptedData();
+                if (PackedBcd.isPackable(encryptedData)) {
+                    ciphertexts.add(PackedBcd.pack(encryptedData, 0), PackedBcd.pack(encryptedData, 1));
+                }
+            }
+            if (card.isPacked() && PackedBcd.isDigits(card.getPackedCardNumber(0), card.getPackedCardNumber(1))) {
+                cardNumbers.add(card.getPackedCardNumber(0), card.getPackedCardNumber(1));
+            } else {
+                String digits = CardData.digitsOf(card.getCardNumber());
+                if (PackedBcd.isPackable(digits)) {
+                    cardNumbers.add(PackedBcd.pack(digits, 0), PackedBcd.pack(digits, 1));
+                }
+            }
+            cards.put(card);
+            index.add(card, owner);
+            if (cache != null && card.isPacked()) {
+                cache.admit(cards, card.getPackedEncryptedData(0), card.getPackedEncryptedData(1), false);
+            }
+        }
+
+        /**
+         * Stores a card unless this user already stored its card number, as one atomic
+         * step: two concurrent calls with the same number store it only once.
+         * @param card The card
+         * @param beforePut Called with the card just before it is stored, for example to
+         *                  write it to a repository; not called for a duplicate
+         * @return The card already stored with the same number, or null if {@code card} was stored
+         */
+        public CardData putIfAbsent(CardData card, Consumer<CardData> beforePut) {
+            String cardNumber = card.getCardNumber();
+            int hash = CardData.digitsOf(cardNumber).hashCode();
+            ReentrantLock lock = addLocks[(hash ^ (hash >>> 16)) & (addLocks.length - 1)];
+            lock.lock();
+            try {
+                CardData existing = findDuplicate(cardNumber);
+                if (existing != null) {
+                    return existing;
+                }
+                beforePut.accept(card);
+                put(card);
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Looks up a card, promoting it back into memory if it was evicted.
+         * @param encryptedData The card's ciphertext
+         * @return The card, or null if this user has no such card
+         */
+        public CardData get(CharSequence encryptedData) {
+            if (!PackedBcd.isPackable(encryptedData)) {
+                return cards.get(encryptedData);
+            }
+            long keyHigh = PackedBcd.pack(encryptedData, 0);
+            long keyLow = PackedBcd.pack(encryptedData, 1);
+            if (!ciphertexts.mightContain(keyHigh, keyLow)) {
+                filteredMisses.increment();
+                return null;
+            }
+            if (cache == null) {
+                return cards.get(keyHigh, keyLow);
+            }
+            CardData card = cards.get(keyHigh, keyLow);
+            if (card != null) {
+                cache.recordHit(cards, keyHigh, keyLow);
+                return card;
+            }
+            cache.recordMiss();
+            card = coldTier.get(storeOwner, keyHigh, keyLow);
+            if (card != null) {
+                cards.put(card);
+                cache.admit(cards, keyHigh, keyLow, true);
+            }
+            return card;
+        }
+
+        /**
+         * Finds a card this user already stored with the same card number, under any
+         * shift or cipher. Numbers are compared by their digits, so separators do not
+         * matter. Numbers the filter has never seen are ruled out without a lookup.
+         * @param cardNumber The card number
+         * @return A stored card with that number, or null if there is none
+         */
+        public CardData findDuplicate(String cardNumber) {
+            String digits = CardData.digitsOf(cardNumber);
+            if (PackedBcd.isPackable(digits)
+                    && !cardNumbers.mightContain(PackedBcd.pack(digits, 0), PackedBcd.pack(digits, 1))) {
+                filteredMisses.increment();
+                return null;
+            }
+            if (digits.length() < 4) {
+                return null;
+            }
+            CardFilter filter = new CardFilter();
+            filter.setLast4(digits.substring(digits.length() - 4));
+            for (CardData card : index.find(filter)) {
+                if (CardData.digitsOf(card.getCardNumber()).equals(digits)) {
+                    return card;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param encryptedData The card's ciphertext
+         * @return The removed card, or null if this user had no such card
+         */
+        public CardData remove(CharSequence encryptedData) {
+            CardData card = get(encryptedData);
+            if (card != null) {
+                index.remove(card);
+                cards.remove(encryptedData);
+                if (cache != null && card.isPacked()) {
+                    cache.invalidate(cards, card.getPackedEncryptedData(0), card.getPackedEncryptedData(1));
+                }
+            }
+            return card;
+        }
+
+        /**
+         * @param filter The criteria; the owner criterion only matches this partition's user
+         * @return This user's matching cards, in storing order
+         */
+        public List<CardData> find(CardFilter filter) {
+            return index.find(filter);
+        }
+
+        /**
+         * @param filter The criteria; the owner criterion only matches this partition's user
+         * @param cursor The cursor returned with the previous page, or null for the first page
+         * @param pageSize The most cards to return
+         * @return One page of this user's matching cards
+         */
+        public CardPage findPage(CardFilter filter, String cursor, int pageSize) {
+            return index.findPage(filter, cursor, pageSize);
+        }
+
+        /**
+         * @return The number of cards this user has stored
+         */
+        public int size() {
+            return index.size();
+        }
+
+        /**
+         * Reads indexed cards from memory, or from the cold tier if they were evicted.
+         */
+        private final class ColdFallback implements CardSource {
+            @Override
+            public CardData get(CharSequence encryptedData) {
+                return cards.get(encryptedData);
+            }
+
+            @Override
+            public CardData get(long keyHigh, long keyLow) {
+                CardData card = cards.get(keyHigh, keyLow);
+                return card != null ? card : coldTier.get(storeOwner, keyHigh, keyLow);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package common.store;
+
+import common.model.CardData;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Durable storage for cards, keyed by owner and ciphertext. Only cards whose values
+ * fit the packed form are stored.
+ */
+public interface CardRepository extends AutoCloseable {
+    /**
+     * Stores a card, replacing the owner's card with the same ciphertext, and returns
+     * once it is durable.
+     * @param owner The username of the owner, or null if the card has none
+     * @param card The card
+     * @throws RuntimeException If the card was not stored, for example because it is not in packed form
+     */
+    void save(String owner, CardData card);
+
+    /**
+     * @param owner The username of the owner, or null if the card has none
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     * @return The card, or null if the owner has no such card
+     */
+    CardData get(String owner, long keyHigh, long keyLow);
+
+    /**
+     * Deletes a card and returns once the delete is durable.
+     * @param owner The username of the owner, or null if the card has none
+     * @param encryptedData The card's ciphertext
+     * @return true if the card was stored
+     */
+    boolean delete(String owner, CharSequence encryptedData);
+
+    /**
+     * Passes every stored card with its owner to a consumer, typically once at startup.
+     * @param consumer Receives the owner's username, or null if the card has none, and the card
+     * @return The number of cards loaded
+     */
+    int load(BiConsumer<String, CardData> consumer);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,21 @@
+package common.store;
+
+import common.model.CardData;
+
+/**
+ * Somewhere cards can be read back from by ciphertext.
+ */
+public interface CardSource {
+    /**
+     * @param encryptedData The ciphertext
+     * @return The card, or null if none is stored
+     */
+    CardData get(CharSequence encryptedData);
+
+    /**
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     * @return The card, or null if none is stored
+     */
+    CardData get(long keyHigh, long keyLow);
+}
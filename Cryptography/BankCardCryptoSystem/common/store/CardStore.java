@@ -0,0 +1,796 @@
+package common.store;
+
+import common.model.CardData;
+import common.util.PackedBcd;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable, append-only log of card records in memory-mapped segment files.
+ * <p>
+ * Every change is a fixed-size {@value #RECORD_SIZE}-byte record appended to the
+ * current segment, so writes are sequential and a lookup reads the record straight
+ * out of the mapping. Durability uses group commit: a flusher thread forces the
+ * dirty segments and wakes every writer whose record was covered, so concurrent
+ * writers share one {@code force()} instead of paying for one each.
+ * <p>
+ * On open the segments are replayed in order and each record's CRC is checked; a
+ * torn record at the end of the log is discarded. A background task rewrites the
+ * live records of mostly-superseded segments to the head of the log and deletes
+ * the old files. Only records whose values fit the packed form are persisted.
+ * <p>
+ * Each record carries the id of the user who owns the card, and a card is keyed by
+ * owner and ciphertext, so two users may store the same ciphertext. Owner names are
+ * interned in a small append-only {@value #OWNERS_FILE} file.
+ */
+public class CardStore implements CardRepository {
+    /** System property naming the directory used by {@link #openConfigured(String)}. */
+    public static final String DIR_PROPERTY = "bankcard.store.dir";
+    /** System property overriding the segment file size in bytes. */
+    public static final String SEGMENT_BYTES_PROPERTY = "bankcard.store.segmentBytes";
+
+    public static final int RECORD_SIZE = 64;
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+    private static final long COMPACT_INTERVAL_SECONDS = 10;
+    private static final int COMPACT_BATCH = 1024;
+
+    // Record layout
+    private static final int TYPE = 0;
+    private static final int TAG = 1;
+    private static final int SHIFT = 4;
+    private static final int CREATED = 8;
+    private static final int KEY_HIGH = 16;
+    private static final int KEY_LOW = 24;
+    private static final int CARD_HIGH = 32;
+    private static final int CARD_LOW = 40;
+    private static final int CRC = 48;
+    private static final int OWNER = 52;
+    // Records without an owner; their checksum covers only the fields before CRC
+    private static final int NO_OWNER = 0;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    // Locations are segment id << 32 | offset, with this bit set for delete records
+    private static final long DELETED_FLAG = 1L << 31;
+    private static final long OFFSET_MASK = DELETED_FLAG - 1;
+
+    private static final String OWNERS_FILE = "owners.dict";
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("cards-(\\d{8})\\.seg");
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, Segment> segments = new TreeMap<>();
+    private final Set<Segment> dirty = new LinkedHashSet<>();
+    // Latest record location by owner id, then by ciphertext
+    private final Map<Integer, LocationIndex> indexes = new HashMap<>();
+    private final Map<String, Integer> ownerIds = new HashMap<>();
+    private final List<String> ownerNames = new ArrayList<>();
+    private FileChannel ownersChannel;
+    private final CRC32C crc = new CRC32C();
+    private Segment head;
+    // Set under the lock once the flusher has been woken for the pending writes
+    private boolean flushRequested;
+
+    // Writers park on this until their records are forced; a lock rather than a monitor,
+    // so a virtual thread waiting here releases its carrier
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Condition flushChanged = flushLock.newCondition();
+    private volatile long appended;
+    private long durable;
+    private volatile boolean closed;
+    // Set under flushLock once close has forced the last writes; nothing becomes durable after
+    private boolean stopped;
+    private final Thread flusher;
+    private final ScheduledExecutorService compactor;
+
+    private CardStore(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes - segmentBytes % RECORD_SIZE;
+        Files.createDirectories(directory);
+        loadOwners();
+        recover();
+
+        this.flusher = new Thread(this::flushLoop, "card-store-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "card-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactor.scheduleWithFixedDelay(this::compactQuietly,
+                COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens a store, replaying any existing segments.
+     * @param directory The directory holding the segment files; created if missing
+     * @return The store
+     * @throws IOException If the segments cannot be read
+     */
+    public static CardStore open(Path directory) throws IOException {
+        return new CardStore(directory,
+                Integer.getInteger(SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES));
+    }
+
+    /**
+     * Opens the store named {@code name} under the {@value #DIR_PROPERTY} directory, if set.
+     * @param name The subdirectory for this store
+     * @return The store, or null if the property is not set
+     * @throws IOException If the segments cannot be read
+     */
+    public static CardStore openConfigured(String name) throws IOException {
+        String dir = System.getProperty(DIR_PROPERTY);
+        if (dir == null || dir.trim().isEmpty()) {
+            return null;
+        }
+        return open(Paths.get(dir.trim(), name));
+    }
+
+    /**
+     * Appends a card. Use {@link #awaitDurable(long)} with the returned ticket to wait
+     * until it is on disk.
+     * @param card The card to store
+     * @return The write ticket, or 0 if the card is not in packed form and was not stored
+     */
+    public long put(CardData card) {
+        return put(null, card);
+    }
+
+    /**
+     * Appends a card owned by a user. Use {@link #awaitDurable(long)} with the returned
+     * ticket to wait until it is on disk.
+     * @param owner The username of the owner, or null if the card has none
+     * @param card The card to store
+     * @return The write ticket, or 0 if the card is not in packed form and was not stored
+     */
+    public long put(String owner, CardData card) {
+        if (!card.isPacked()) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            return append(PUT, ownerId(owner), card.getCipherTag(), card.getEncryptionShift(),
+                    card.getCreationTimeMillis(), card.getPackedEncryptedData(0), card.getPackedEncryptedData(1),
+                    card.getPackedCardNumber(0), card.getPackedCardNumber(1));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a card and waits until it is on disk.
+     * @param owner The username of the owner, or null if the card has none
+     * @param card The card to store
+     * @throws IllegalArgumentException If the card is not in packed form, so cannot be stored
+     * @throws IllegalStateException If the store closed or the wait was interrupted first
+     */
+    @Override
+    public void save(String owner, CardData card) {
+        if (!card.isPacked()) {
+            throw new IllegalArgumentException("Card cannot be stored: it is not in packed form");
+        }
+        if (!awaitDurable(put(owner, card))) {
+            throw new IllegalStateException("Card was not made durable");
+        }
+    }
+
+    /**
+     * Appends a delete record for a card and waits until it is on disk.
+     * @param owner The username of the owner, or null if the card has none
+     * @param encryptedData The card's ciphertext
+     * @return true if the card was stored
+     * @throws IllegalStateException If the store closed or the wait was interrupted first
+     */
+    @Override
+    public boolean delete(String owner, CharSequence encryptedData) {
+        long ticket = remove(owner, encryptedData);
+        if (ticket == 0) {
+            return false;
+        }
+        if (!awaitDurable(ticket)) {
+            throw new IllegalStateException("Card delete was not made durable");
+        }
+        return true;
+    }
+
+    /**
+     * Appends a delete record for a card.
+     * @param encryptedData The card's ciphertext
+     * @return The write ticket, or 0 if no such card is stored
+     */
+    public long remove(CharSequence encryptedData) {
+        return remove(null, encryptedData);
+    }
+
+    /**
+     * Appends a delete record for a card owned by a user.
+     * @param owner The username of the owner, or null if the card has none
+     * @param encryptedData The card's ciphertext
+     * @return The write ticket, or 0 if no such card is stored
+     */
+    public long remove(String owner, CharSequence encryptedData) {
+        if (!PackedBcd.isPackable(encryptedData)) {
+            return 0;
+        }
+        long keyHigh = PackedBcd.pack(encryptedData, 0);
+        long keyLow = PackedBcd.pack(encryptedData, 1);
+        lock.lock();
+        try {
+            int ownerId = findOwnerId(owner);
+            long location = ownerId < 0 ? LocationIndex.NONE : index(ownerId).get(keyHigh, keyLow);
+            if (location == LocationIndex.NONE || (location & DELETED_FLAG) != 0) {
+                return 0;
+            }
+            return append(DELETE, ownerId, (byte) 0, 0, System.currentTimeMillis(), keyHigh, keyLow,
+                    PackedBcd.EMPTY_WORD, PackedBcd.EMPTY_WORD);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the write with this ticket, and every earlier one, is on disk.
+     * @param ticket A ticket returned by {@link #put} or {@link #remove}
+     * @return true once the write is on disk; false if the store closed without forcing
+     *         it or the thread was interrupted, in which case it may be lost
+     */
+    public boolean awaitDurable(long ticket) {
+        flushLock.lock();
+        try {
+            while (durable < ticket) {
+                if (stopped) {
+                    return false;
+                }
+                try {
+                    flushChanged.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Reads a card straight from its segment.
+     * @param encryptedData The card's ciphertext
+     * @return The card, or null if none is stored
+     */
+    public CardData get(CharSequence encryptedData) {
+        return get(null, encryptedData);
+    }
+
+    /**
+     * Reads a card owned by a user straight from its segment.
+     * @param owner The username of the owner, or null if the card has none
+     * @param encryptedData The card's ciphertext
+     * @return The card, or null if the owner has no such card
+     */
+    public CardData get(String owner, CharSequence encryptedData) {
+        if (!PackedBcd.isPackable(encryptedData)) {
+            return null;
+        }
+        return get(owner, PackedBcd.pack(encryptedData, 0), PackedBcd.pack(encryptedData, 1));
+    }
+
+    /**
+     * Reads a card owned by a user straight from its segment.
+     * @param owner The username of the owner, or null if the card has none
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     * @return The card, or null if the owner has no such card
+     */
+    @Override
+    public CardData get(String owner, long keyHigh, long keyLow) {
+        lock.lock();
+        try {
+            int ownerId = findOwnerId(owner);
+            long location = ownerId < 0 ? LocationIndex.NONE : index(ownerId).get(keyHigh, keyLow);
+            if (location == LocationIndex.NONE || (location & DELETED_FLAG) != 0) {
+                return null;
+            }
+            return read(location);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts every stored card into a vault, typically once at startup.
+     * @param vault The vault to fill
+     * @return The number of cards loaded
+     */
+    public int loadInto(CardVault vault) {
+        return load((owner, card) -> vault.put(card));
+    }
+
+    /**
+     * Passes every stored card with its owner to a consumer, typically once at startup.
+     * @param consumer Receives the owner's username, or null if the card has none, and the card
+     * @return The number of cards loaded
+     */
+    @Override
+    public int load(BiConsumer<String, CardData> consumer) {
+        int[] count = new int[1];
+        lock.lock();
+        try {
+            for (Map.Entry<Integer, LocationIndex> entry : indexes.entrySet()) {
+                String owner = ownerName(entry.getKey());
+                entry.getValue().forEach((keyHigh, keyLow, location) -> {
+                    if ((location & DELETED_FLAG) == 0) {
+                        consumer.accept(owner, read(location));
+                        count[0]++;
+                    }
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count[0];
+    }
+
+    /**
+     * @return The number of segment files
+     */
+    public int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live records of the oldest segment whose live share has dropped
+     * below half, then deletes it once the copies are on disk. Runs periodically in
+     * the background, and stops between batches once the store is closing; the old
+     * segment is then kept, and replay lets the newer copies win.
+     * @return true if a segment was compacted
+     * @throws IOException If the old segment file cannot be deleted
+     */
+    public boolean compact() throws IOException {
+        Segment victim = null;
+        boolean oldest = true;
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                int records = segment.writePosition / RECORD_SIZE;
+                if (segment != head && (records == 0 || segment.live < records * COMPACT_LIVE_RATIO)) {
+                    victim = segment;
+                    break;
+                }
+                oldest = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (victim == null) {
+            return false;
+        }
+
+        for (int start = 0; start < victim.writePosition; start += COMPACT_BATCH * RECORD_SIZE) {
+            if (compactor.isShutdown()) {
+                return false;
+            }
+            lock.lock();
+            try {
+                int end = Math.min(victim.writePosition, start + COMPACT_BATCH * RECORD_SIZE);
+                for (int offset = start; offset < end; offset += RECORD_SIZE) {
+                    relocate(victim, offset, oldest);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        // The copies must be on disk before the originals disappear
+        if (!awaitDurable(appended)) {
+            return false;
+        }
+
+        lock.lock();
+        try {
+            segments.remove(victim.id);
+        } finally {
+            lock.unlock();
+        }
+        Files.deleteIfExists(victim.path);
+        return true;
+    }
+
+    /**
+     * Stops compaction, flushes outstanding writes and stops the background threads.
+     */
+    @Override
+    public void close() {
+        // A running compaction stops after its current batch; it needs the flusher to finish
+        compactor.shutdown();
+        try {
+            while (!compactor.awaitTermination(5, TimeUnit.SECONDS)) {
+                System.err.println("Waiting for card store compaction to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushLock.lock();
+        try {
+            closed = true;
+            flushChanged.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        flushLock.lock();
+        try {
+            stopped = true;
+            flushChanged.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+        try {
+            ownersChannel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close card store owners: " + e.getMessage());
+        }
+    }
+
+    // Called with the lock held
+    private long append(byte type, int ownerId, byte tag, int shift, long created,
+                        long keyHigh, long keyLow, long cardHigh, long cardLow) {
+        if (head.writePosition + RECORD_SIZE > segmentBytes) {
+            try {
+                head = createSegment(head.id + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create card store segment", e);
+            }
+        }
+        int offset = head.writePosition;
+        MappedByteBuffer buffer = head.buffer;
+        buffer.put(offset + TAG, tag);
+        buffer.putInt(offset + SHIFT, shift);
+        buffer.putLong(offset + CREATED, created);
+        buffer.putLong(offset + KEY_HIGH, keyHigh);
+        buffer.putLong(offset + KEY_LOW, keyLow);
+        buffer.putLong(offset + CARD_HIGH, cardHigh);
+        buffer.putLong(offset + CARD_LOW, cardLow);
+        buffer.putInt(offset + OWNER, ownerId);
+        buffer.put(offset + TYPE, type);
+        buffer.putInt(offset + CRC, checksum(head, offset));
+        head.writePosition += RECORD_SIZE;
+
+        long location = location(head.id, offset) | (type == DELETE ? DELETED_FLAG : 0);
+        track(ownerId, keyHigh, keyLow, location, head);
+        dirty.add(head);
+        long ticket = appended + 1;
+        appended = ticket;
+        if (!flushRequested) {
+            flushRequested = true;
+            flushLock.lock();
+            try {
+                flushChanged.signalAll();
+            } finally {
+                flushLock.unlock();
+            }
+        }
+        return ticket;
+    }
+
+    // Makes location the latest record for the key and keeps the live counts in step
+    private void track(int ownerId, long keyHigh, long keyLow, long location, Segment segment) {
+        long previous = index(ownerId).put(keyHigh, keyLow, location);
+        if (previous != LocationIndex.NONE) {
+            Segment old = segments.get(segmentId(previous));
+            if (old != null) {
+                old.live--;
+            }
+        }
+        segment.live++;
+    }
+
+    // Called with the lock held: copies a record forward if it is still the latest for its key
+    private void relocate(Segment victim, int offset, boolean oldest) {
+        MappedByteBuffer buffer = victim.buffer;
+        byte type = buffer.get(offset + TYPE);
+        long keyHigh = buffer.getLong(offset + KEY_HIGH);
+        long keyLow = buffer.getLong(offset + KEY_LOW);
+        int ownerId = buffer.getInt(offset + OWNER);
+        long location = location(victim.id, offset) | (type == DELETE ? DELETED_FLAG : 0);
+        LocationIndex index = index(ownerId);
+        if (index.get(keyHigh, keyLow) != location) {
+            return;
+        }
+        if (type == DELETE && oldest) {
+            // Every older record of this key is in this segment, so the delete can go too
+            index.remove(keyHigh, keyLow);
+            victim.live--;
+            return;
+        }
+        append(type, ownerId, buffer.get(offset + TAG), buffer.getInt(offset + SHIFT), buffer.getLong(offset + CREATED),
+                keyHigh, keyLow, buffer.getLong(offset + CARD_HIGH), buffer.getLong(offset + CARD_LOW));
+    }
+
+    private CardData read(long location) {
+        Segment segment = segments.get(segmentId(location));
+        int offset = (int) (location & OFFSET_MASK);
+        MappedByteBuffer buffer = segment.buffer;
+        return CardData.fromPacked(buffer.getLong(offset + CARD_HIGH), buffer.getLong(offset + CARD_LOW),
+                buffer.getLong(offset + KEY_HIGH), buffer.getLong(offset + KEY_LOW),
+                buffer.getInt(offset + SHIFT), buffer.get(offset + TAG), buffer.getLong(offset + CREATED));
+    }
+
+    private void flushLoop() {
+        while (true) {
+            flushLock.lock();
+            try {
+                while (appended <= durable && !closed) {
+                    try {
+                        flushChanged.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            } finally {
+                flushLock.unlock();
+            }
+            flush();
+        }
+    }
+
+    // Forces every dirty segment; writers appending meanwhile are covered by the next round
+    private void flush() {
+        long target;
+        List<Segment> toForce;
+        lock.lock();
+        try {
+            target = appended;
+            toForce = new ArrayList<>(dirty);
+            dirty.clear();
+            flushRequested = false;
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : toForce) {
+            segment.buffer.force();
+        }
+        flushLock.lock();
+        try {
+            if (target > durable) {
+                durable = target;
+            }
+            flushChanged.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            while (!compactor.isShutdown() && compact()) {
+                // Keep going while there are segments worth compacting
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Card store compaction failed: " + e.getMessage());
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "cards-*.seg")) {
+            for (Path file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    ids.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        ids.sort(null);
+        for (int id : ids) {
+            Segment segment = mapSegment(id);
+            segments.put(id, segment);
+            replay(segment);
+            head = segment;
+        }
+        if (head == null) {
+            head = createSegment(1);
+        }
+    }
+
+    private void replay(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + RECORD_SIZE <= segmentBytes) {
+            byte type = buffer.get(offset + TYPE);
+            if (type == 0) {
+                // The end of the log, unless a torn slot left later records behind it
+                if (discardFrom(segment, offset)) {
+                    System.err.println("Discarding card store records after an empty slot in "
+                            + segment.path + " at offset " + offset);
+                }
+                break;
+            }
+            int ownerId = buffer.getInt(offset + OWNER);
+            if ((type != PUT && type != DELETE) || buffer.getInt(offset + CRC) != checksum(segment, offset)
+                    || ownerId < NO_OWNER || ownerId > ownerNames.size()) {
+                System.err.println("Discarding torn card store records in " + segment.path + " from offset " + offset);
+                discardFrom(segment, offset);
+                break;
+            }
+            long location = location(segment.id, offset) | (type == DELETE ? DELETED_FLAG : 0);
+            track(ownerId, buffer.getLong(offset + KEY_HIGH), buffer.getLong(offset + KEY_LOW), location, segment);
+            offset += RECORD_SIZE;
+        }
+        segment.writePosition = offset;
+    }
+
+    // Clears everything from a torn or empty slot on, so pages written out of order are never
+    // replayed; returns whether anything was cleared
+    private boolean discardFrom(Segment segment, int offset) {
+        MappedByteBuffer buffer = segment.buffer;
+        boolean cleared = false;
+        for (int position = offset; position + RECORD_SIZE <= segmentBytes; position += RECORD_SIZE) {
+            if (buffer.get(position + TYPE) != 0) {
+                for (int i = 0; i < RECORD_SIZE; i += 8) {
+                    buffer.putLong(position + i, 0L);
+                }
+                cleared = true;
+            }
+        }
+        if (cleared) {
+            buffer.force();
+        }
+        return cleared;
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = mapSegment(id);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment mapSegment(int id) throws IOException {
+        Path path = directory.resolve(String.format("cards-%08d.seg", id));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    private int checksum(Segment segment, int offset) {
+        ByteBuffer view = segment.view;
+        boolean owned = segment.buffer.getInt(offset + OWNER) != NO_OWNER;
+        view.limit(offset + CRC).position(offset);
+        crc.reset();
+        crc.update(view);
+        if (owned) {
+            view.limit(offset + OWNER + 4).position(offset + OWNER);
+            crc.update(view);
+        }
+        return (int) crc.getValue();
+    }
+
+    // Called with the lock held
+    private LocationIndex index(int ownerId) {
+        return indexes.computeIfAbsent(ownerId, id -> new LocationIndex(16));
+    }
+
+    // Called with the lock held: the owner's id, or -1 if the owner has never stored a card
+    private int findOwnerId(String owner) {
+        if (owner == null) {
+            return NO_OWNER;
+        }
+        Integer id = ownerIds.get(owner);
+        return id == null ? -1 : id;
+    }
+
+    // Called with the lock held: the owner's id, recording a new owner durably before it is used
+    private int ownerId(String owner) {
+        int id = findOwnerId(owner);
+        if (id >= 0) {
+            return id;
+        }
+        if (owner.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Owner name cannot contain a line break");
+        }
+        try {
+            ownersChannel.write(ByteBuffer.wrap((owner + "\n").getBytes(StandardCharsets.UTF_8)));
+            ownersChannel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot record card owner", e);
+        }
+        ownerNames.add(owner);
+        id = ownerNames.size();
+        ownerIds.put(owner, id);
+        return id;
+    }
+
+    private String ownerName(int ownerId) {
+        return ownerId == NO_OWNER ? null : ownerNames.get(ownerId - 1);
+    }
+
+    // Reads the owner names, one per line with ids counting from 1, dropping a torn last line
+    private void loadOwners() throws IOException {
+        Path path = directory.resolve(OWNERS_FILE);
+        ownersChannel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        byte[] bytes = Files.readAllBytes(path);
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                String owner = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                ownerNames.add(owner);
+                ownerIds.put(owner, ownerNames.size());
+                start = i + 1;
+            }
+        }
+        ownersChannel.truncate(start);
+        ownersChannel.position(start);
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | offset;
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // Separate view for checksums so the mapping's own position is never touched
+        final ByteBuffer view;
+        int writePosition;
+        int live;
+
+        Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+            this.view = buffer.duplicate();
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package common.store;
+
+import common.model.CardData;
+import common.util.PackedBcd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Off-heap store of card records keyed by their ciphertext.
+ * <p>
+ * Records live in direct memory as fixed-size slots of an open-addressing hash table
+ * with linear probing, keyed by the packed BCD ciphertext, so stored cards add no
+ * objects to the Java heap and do not lengthen GC pauses however many there are.
+ * The table is split into independently locked segments; lookups are optimistic
+ * reads that probe without locking or allocating and retry under the read lock only
+ * if a writer got in the way. Records whose ciphertext cannot be packed are kept in
+ * a small on-heap map instead.
+ */
+public class CardVault implements CardSource {
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int DEFAULT_EXPECTED_CARDS = 32 * 1024;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 24;
+    // Resize once live plus deleted slots reach this fraction of the capacity
+    private static final float LOAD_FACTOR = 0.7f;
+
+    // Slot layout
+    private static final int KEY_HIGH = 0;
+    private static final int KEY_LOW = 8;
+    private static final int CARD_HIGH = 16;
+    private static final int CARD_LOW = 24;
+    private static final int CREATED = 32;
+    private static final int SHIFT = 40;
+    private static final int TAG = 44;
+    private static final int STATE = 45;
+    private static final int SLOT_SIZE = 48;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final Map<String, CardData> overflow = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a vault sized for a modest number of cards; it grows as needed.
+     */
+    public CardVault() {
+        this(DEFAULT_EXPECTED_CARDS);
+    }
+
+    /**
+     * Creates a vault with room for about {@code expectedCards} cards before growing.
+     * @param expectedCards The expected number of cards
+     */
+    public CardVault(int expectedCards) {
+        this(expectedCards, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a vault split into {@code segmentCount} independently locked segments.
+     * A small vault with few segments costs a few kilobytes of direct memory.
+     * @param expectedCards The expected number of cards
+     * @param segmentCount The number of segments, a power of two of at least 2
+     */
+    public CardVault(int expectedCards, int segmentCount) {
+        if (segmentCount < 2 || Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("Segment count must be a power of two of at least 2: " + segmentCount);
+        }
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+        long perSegment = (long) Math.ceil(expectedCards / (double) segmentCount / LOAD_FACTOR);
+        int capacity = MIN_SEGMENT_CAPACITY;
+        while (capacity < perSegment && capacity < MAX_SEGMENT_CAPACITY) {
+            capacity <<= 1;
+        }
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    /**
+     * Stores a card, replacing any card with the same ciphertext.
+     * @param card The card to store
+     */
+    public void put(CardData card) {
+        if (!card.isPacked()) {
+            overflow.put(card.getEncryptedData(), card);
+            return;
+        }
+        long keyHigh = card.getPackedEncryptedData(0);
+        long keyLow = card.getPackedEncryptedData(1);
+        long hash = hash(keyHigh, keyLow);
+        segmentFor(hash).put(hash, keyHigh, keyLow, card);
+    }
+
+    /**
+     * Looks up a card by its ciphertext.
+     * @param encryptedData The ciphertext
+     * @return The card, or null if none is stored
+     */
+    @Override
+    public CardData get(CharSequence encryptedData) {
+        if (!PackedBcd.isPackable(encryptedData)) {
+            return encryptedData == null ? null : overflow.get(encryptedData.toString());
+        }
+        long keyHigh = PackedBcd.pack(encryptedData, 0);
+        long keyLow = PackedBcd.pack(encryptedData, 1);
+        long hash = hash(keyHigh, keyLow);
+        return segmentFor(hash).get(hash, keyHigh, keyLow);
+    }
+
+    /**
+     * Looks up a card by its packed ciphertext.
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     * @return The card, or null if none is stored
+     */
+    @Override
+    public CardData get(long keyHigh, long keyLow) {
+        long hash = hash(keyHigh, keyLow);
+        return segmentFor(hash).get(hash, keyHigh, keyLow);
+    }
+
+    /**
+     * Checks whether a card with this ciphertext is stored, without materialising it.
+     * @param encryptedData The ciphertext
+     * @return true if the card is stored
+     */
+    public boolean contains(CharSequence encryptedData) {
+        if (!PackedBcd.isPackable(encryptedData)) {
+            return encryptedData != null && overflow.containsKey(encryptedData.toString());
+        }
+        long keyHigh = PackedBcd.pack(encryptedData, 0);
+        long keyLow = PackedBcd.pack(encryptedData, 1);
+        long hash = hash(keyHigh, keyLow);
+        return segmentFor(hash).indexOf(hash, keyHigh, keyLow) >= 0;
+    }
+
+    /**
+     * Removes a card by its ciphertext.
+     * @param encryptedData The ciphertext
+     * @return true if a card was removed
+     */
+    public boolean remove(CharSequence encryptedData) {
+        if (!PackedBcd.isPackable(encryptedData)) {
+            return encryptedData != null && overflow.remove(encryptedData.toString()) != null;
+        }
+        long keyHigh = PackedBcd.pack(encryptedData, 0);
+        long keyLow = PackedBcd.pack(encryptedData, 1);
+        long hash = hash(keyHigh, keyLow);
+        return segmentFor(hash).remove(hash, keyHigh, keyLow);
+    }
+
+    /**
+     * Removes a card by its packed ciphertext.
+     * @param keyHigh The first word of the packed ciphertext
+     * @param keyLow The second word of the packed ciphertext
+     * @return true if a card was removed
+     */
+    public boolean remove(long keyHigh, long keyLow) {
+        long hash = hash(keyHigh, keyLow);
+        return segmentFor(hash).remove(hash, keyHigh, keyLow);
+    }
+
+    /**
+     * @return The number of stored cards
+     */
+    public long size() {
+        long size = overflow.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Passes every stored card to {@code action}. Each segment is read-locked while it
+     * is visited, so cards added concurrently may or may not be seen.
+     * @param action The action to run for each card
+     */
+    public void forEach(Consumer<CardData> action) {
+        for (Segment segment : segments) {
+            segment.forEach(action);
+        }
+        overflow.values().forEach(action);
+    }
+
+    /**
+     * @return The direct memory held by the table, in bytes
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.offHeapBytes();
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> segmentShift)];
+    }
+
+    // Murmur3 finaliser over both words
+    private static long hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private ByteBuffer table;
+        private int mask;
+        private int size;
+        private int used;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+            mask = capacity - 1;
+            size = 0;
+            used = 0;
+        }
+
+        CardData get(long hash, long keyHigh, long keyLow) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                ByteBuffer t = table;
+                int index = probe(t, hash, keyHigh, keyLow);
+                CardData card = index >= 0 ? read(t, index) : null;
+                if (lock.validate(stamp)) {
+                    return card;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                int index = probe(table, hash, keyHigh, keyLow);
+                return index >= 0 ? read(table, index) : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        int indexOf(long hash, long keyHigh, long keyLow) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                int index = probe(table, hash, keyHigh, keyLow);
+                if (lock.validate(stamp)) {
+                    return index;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return probe(table, hash, keyHigh, keyLow);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void put(long hash, long keyHigh, long keyLow, CardData card) {
+            long stamp = lock.writeLock();
+            try {
+                int index = probe(table, hash, keyHigh, keyLow);
+                if (index < 0) {
+                    if (used + 1 > (mask + 1) * LOAD_FACTOR) {
+                        rehash(size + 1 > (mask + 1) * LOAD_FACTOR / 2 ? (mask + 1) << 1 : mask + 1);
+                    }
+                    index = freeSlot(table, mask, hash);
+                    if (table.get(index * SLOT_SIZE + STATE) == EMPTY) {
+                        used++;
+                    }
+                    size++;
+                }
+                write(table, index, keyHigh, keyLow, card);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean remove(long hash, long keyHigh, long keyLow) {
+            long stamp = lock.writeLock();
+            try {
+                int index = probe(table, hash, keyHigh, keyLow);
+                if (index < 0) {
+                    return false;
+                }
+                table.put(index * SLOT_SIZE + STATE, DELETED);
+                size--;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        long offHeapBytes() {
+            long stamp = lock.readLock();
+            try {
+                return table.capacity();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void forEach(Consumer<CardData> action) {
+            long stamp = lock.readLock();
+            try {
+                for (int i = 0; i <= mask; i++) {
+                    if (table.get(i * SLOT_SIZE + STATE) == FULL) {
+                        action.accept(read(table, i));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Called with the write lock held; also drops deleted slots
+        private void rehash(int capacity) {
+            if (capacity > MAX_SEGMENT_CAPACITY) {
+                throw new IllegalStateException("Card vault segment is full");
+            }
+            ByteBuffer old = table;
+            int oldCapacity = mask + 1;
+            allocate(capacity);
+            for (int i = 0; i < oldCapacity; i++) {
+                int base = i * SLOT_SIZE;
+                if (old.get(base + STATE) != FULL) {
+                    continue;
+                }
+                long keyHigh = old.getLong(base + KEY_HIGH);
+                long keyLow = old.getLong(base + KEY_LOW);
+                int index = freeSlot(table, mask, hash(keyHigh, keyLow));
+                int target = index * SLOT_SIZE;
+                for (int offset = 0; offset < SLOT_SIZE; offset += 8) {
+                    table.putLong(target + offset, old.getLong(base + offset));
+                }
+                size++;
+                used++;
+            }
+        }
+
+        // Returns the slot holding the key, or -1. Safe to call on a table being modified or
+        // replaced: the mask comes from the buffer itself, the probe is bounded by its
+        // capacity, and the caller validates the result.
+        private static int probe(ByteBuffer t, long hash, long keyHigh, long keyLow) {
+            int mask = t.capacity() / SLOT_SIZE - 1;
+            int index = (int) hash & mask;
+            for (int i = 0; i <= mask; i++) {
+                int base = index * SLOT_SIZE;
+                byte state = t.get(base + STATE);
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == FULL && t.getLong(base + KEY_HIGH) == keyHigh
+                        && t.getLong(base + KEY_LOW) == keyLow) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int freeSlot(ByteBuffer t, int mask, long hash) {
+            int index = (int) hash & mask;
+            while (t.get(index * SLOT_SIZE + STATE) == FULL) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private static void write(ByteBuffer t, int index, long keyHigh, long keyLow, CardData card) {
+            int base = index * SLOT_SIZE;
+            t.putLong(base + KEY_HIGH, keyHigh);
+            t.putLong(base + KEY_LOW, keyLow);
+            t.putLong(base + CARD_HIGH, card.getPackedCardNumber(0));
+            t.putLong(base + CARD_LOW, card.getPackedCardNumber(1));
+            t.putLong(base + CREATED, card.getCreationTimeMillis());
+            t.putInt(base + SHIFT, card.getEncryptionShift());
+            t.put(base + TAG, card.getCipherTag());
+            t.put(base + STATE, FULL);
+        }
+
+        private static CardData read(ByteBuffer t, int index) {
+            int base = index * SLOT_SIZE;
+            return CardData.fromPacked(
+                    t.getLong(base + CARD_HIGH), t.getLong(base + CARD_LOW),
+                    t.getLong(base + KEY_HIGH), t.getLong(base + KEY_LOW),
+                    t.getInt(base + SHIFT), t.get(base + TAG), t.getLong(base + CREATED));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package common.store;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size pool of JDBC connections, each with its own prepared-statement cache.
+ * <p>
+ * Connections are opened up front and handed out in turn, so a request never pays
+ * for a connect, and a statement is prepared once per connection and reused after
+ * that. A connection that was closed under a borrower is replaced when it comes back.
+ */
+public class ConnectionPool implements AutoCloseable {
+    /** System property holding the JDBC URL, for example {@code jdbc:h2:file:./data/bankcard}. */
+    public static final String URL_PROPERTY = "bankcard.db.url";
+    public static final String USER_PROPERTY = "bankcard.db.user";
+    public static final String PASSWORD_PROPERTY = "bankcard.db.password";
+    /** System property setting the number of pooled connections. */
+    public static final String SIZE_PROPERTY = "bankcard.db.poolSize";
+
+    public static final int DEFAULT_SIZE = 4;
+
+    private static final long BORROW_TIMEOUT_SECONDS = 30;
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Opens a pool of {@code size} connections.
+     * @param url The JDBC URL
+     * @param user The database user, or null
+     * @param password The database password, or null
+     * @param size The number of connections
+     * @throws SQLException If a connection cannot be opened
+     */
+    public ConnectionPool(String url, String user, String password, int size) throws SQLException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.idle = new ArrayBlockingQueue<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                PooledConnection connection = new PooledConnection(connect());
+                all.add(connection);
+                idle.add(connection);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the pool configured by {@value #URL_PROPERTY} and the related properties, if set.
+     * @return The pool, or null if no URL is configured
+     * @throws SQLException If a connection cannot be opened
+     */
+    public static ConnectionPool openConfigured() throws SQLException {
+        String url = System.getProperty(URL_PROPERTY);
+        if (url == null || url.trim().isEmpty()) {
+            return null;
+        }
+        return new ConnectionPool(url.trim(), System.getProperty(USER_PROPERTY),
+                System.getProperty(PASSWORD_PROPERTY), Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    /**
+     * Runs some work on a pooled connection and gives the connection back afterwards.
+     * @param work The work
+     * @param <T> The result type
+     * @return The work's result
+     * @throws SQLException If the work fails or no connection frees up in time
+     */
+    public <T> T execute(SqlWork<T> work) throws SQLException {
+        PooledConnection connection = borrow();
+        try {
+            return work.apply(connection);
+        } finally {
+            release(connection);
+        }
+    }
+
+    /**
+     * Takes a connection, waiting for one to be released if all are in use. Give it
+     * back with {@link #release}.
+     * @return The connection
+     * @throws SQLException If the pool is closed or no connection frees up in time
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            PooledConnection connection = idle.poll(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back, reopening it first if it was closed.
+     * @param connection The connection
+     */
+    public void release(PooledConnection connection) {
+        try {
+            if (!closed && connection.connection.isClosed()) {
+                connection.reopen(connect());
+            }
+        } catch (SQLException e) {
+            System.err.println("Failed to reopen database connection: " + e.getMessage());
+        }
+        idle.offer(connection);
+    }
+
+    /**
+     * Closes every connection. Connections still borrowed are closed too.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (PooledConnection connection : all) {
+            connection.closeQuietly();
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        connection.setAutoCommit(true);
+        return connection;
+    }
+
+    /**
+     * Work to run on a pooled connection.
+     * @param <T> The result type
+     */
+    public interface SqlWork<T> {
+        T apply(PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * A pooled connection and the statements prepared on it. Used by one thread at a time.
+     */
+    public static final class PooledConnection {
+        private Connection connection;
+        // Least recently used statements are closed once the cache is full
+        private final Map<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() <= STATEMENT_CACHE_SIZE) {
+                            return false;
+                        }
+                        try {
+                            eldest.getValue().close();
+                        } catch (SQLException e) {
+                            System.err.println("Failed to close statement: " + e.getMessage());
+                        }
+                        return true;
+                    }
+                };
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return The underlying connection
+         */
+        public Connection connection() {
+            return connection;
+        }
+
+        /**
+         * Gets the cached statement for some SQL, preparing it on first use. Do not close it.
+         * @param sql The SQL
+         * @return The statement, with its parameters cleared
+         * @throws SQLException If the statement cannot be prepared
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        private void reopen(Connection replacement) {
+            statements.clear();
+            connection = replacement;
+        }
+
+        private void closeQuietly() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("Failed to close database connection: " + e.getMessage());
+            }
+        }
+    }
+}
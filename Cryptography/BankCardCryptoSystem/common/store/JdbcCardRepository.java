@@ -0,0 +1,277 @@
+package common.store;
+
+import common.model.CardData;
+import common.util.PackedBcd;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link CardRepository} over an embedded H2 database.
+ * <p>
+ * Cards are stored as their packed BCD words, one row each. Inserts are written
+ * behind: {@link #saveAsync} queues the card, and a single writer thread drains the
+ * queue into one multi-row JDBC batch and one commit. While a batch is committing,
+ * further saves queue up and go out together in the next one, so concurrent writers
+ * share commits.
+ */
+public class JdbcCardRepository implements CardRepository {
+    public static final int DEFAULT_MAX_BATCH = 256;
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS cards ("
+            + "owner VARCHAR(255) NOT NULL, key_high BIGINT NOT NULL, key_low BIGINT NOT NULL, "
+            + "card_high BIGINT NOT NULL, card_low BIGINT NOT NULL, shift INT NOT NULL, "
+            + "cipher_tag TINYINT NOT NULL, created BIGINT NOT NULL, "
+            + "PRIMARY KEY (owner, key_high, key_low))";
+    private static final String MERGE =
+            "MERGE INTO cards (owner, key_high, key_low, card_high, card_low, shift, cipher_tag, created) "
+            + "KEY (owner, key_high, key_low) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT =
+            "SELECT card_high, card_low, shift, cipher_tag, created FROM cards "
+            + "WHERE owner = ? AND key_high = ? AND key_low = ?";
+    private static final String SELECT_ALL =
+            "SELECT owner, key_high, key_low, card_high, card_low, shift, cipher_tag, created FROM cards";
+    private static final String DELETE =
+            "DELETE FROM cards WHERE owner = ? AND key_high = ? AND key_low = ?";
+
+    // Owner column value for cards without an owner
+    private static final String NO_OWNER = "";
+
+    // Queued by close to stop the writer
+    private static final PendingSave STOP = new PendingSave(NO_OWNER, null);
+
+    private final ConnectionPool pool;
+    private final int maxBatch;
+    private final BlockingQueue<PendingSave> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Creates the repository with the default batch size, creating the table if needed.
+     * @param pool The pool to take connections from
+     * @throws SQLException If the table cannot be created
+     */
+    public JdbcCardRepository(ConnectionPool pool) throws SQLException {
+        this(pool, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * @param pool The pool to take connections from
+     * @param maxBatch The most saves written in one batch
+     * @throws SQLException If the table cannot be created
+     */
+    public JdbcCardRepository(ConnectionPool pool, int maxBatch) throws SQLException {
+        this.pool = pool;
+        this.maxBatch = maxBatch;
+        pool.execute(connection -> {
+            try (Statement statement = connection.connection().createStatement()) {
+                statement.execute(CREATE_TABLE);
+            }
+            return null;
+        });
+        this.writer = new Thread(this::writeLoop, "card-db-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void save(String owner, CardData card) {
+        try {
+            saveAsync(owner, card).join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Failed to save card: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Queues a card for the next batch.
+     * @param owner The username of the owner, or null if the card has none
+     * @param card The card
+     * @return A future completed once the card is committed, or failed at once with
+     *         {@link IllegalArgumentException} if the card is not in packed form
+     */
+    public CompletableFuture<Void> saveAsync(String owner, CardData card) {
+        if (!card.isPacked()) {
+            return CompletableFuture.failedFuture(
+                new IllegalArgumentException("Card cannot be stored: it is not in packed form"));
+        }
+        PendingSave save = new PendingSave(owner == null ? NO_OWNER : owner, card);
+        if (closed) {
+            save.done.completeExceptionally(new SQLException("Card repository is closed"));
+            return save.done;
+        }
+        queue.add(save);
+        if (closed && queue.remove(save)) {
+            // close() may have drained the queue already; no one else will take this save
+            save.done.completeExceptionally(new SQLException("Card repository is closed"));
+        }
+        return save.done;
+    }
+
+    @Override
+    public CardData get(String owner, long keyHigh, long keyLow) {
+        try {
+            return pool.execute(connection -> {
+                PreparedStatement statement = connection.prepare(SELECT);
+                statement.setString(1, owner == null ? NO_OWNER : owner);
+                statement.setLong(2, keyHigh);
+                statement.setLong(3, keyLow);
+                try (ResultSet rows = statement.executeQuery()) {
+                    if (!rows.next()) {
+                        return null;
+                    }
+                    return CardData.fromPacked(rows.getLong(1), rows.getLong(2), keyHigh, keyLow,
+                            rows.getInt(3), rows.getByte(4), rows.getLong(5));
+                }
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read card: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean delete(String owner, CharSequence encryptedData) {
+        if (!PackedBcd.isPackable(encryptedData)) {
+            return false;
+        }
+        try {
+            return pool.execute(connection -> {
+                PreparedStatement statement = connection.prepare(DELETE);
+                statement.setString(1, owner == null ? NO_OWNER : owner);
+                statement.setLong(2, PackedBcd.pack(encryptedData, 0));
+                statement.setLong(3, PackedBcd.pack(encryptedData, 1));
+                return statement.executeUpdate() > 0;
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to delete card: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int load(BiConsumer<String, CardData> consumer) {
+        try {
+            return pool.execute(connection -> {
+                int count = 0;
+                try (Statement statement = connection.connection().createStatement()) {
+                    statement.setFetchSize(1000);
+                    try (ResultSet rows = statement.executeQuery(SELECT_ALL)) {
+                        while (rows.next()) {
+                            String owner = rows.getString(1);
+                            consumer.accept(NO_OWNER.equals(owner) ? null : owner,
+                                    CardData.fromPacked(rows.getLong(4), rows.getLong(5),
+                                            rows.getLong(2), rows.getLong(3),
+                                            rows.getInt(6), rows.getByte(7), rows.getLong(8)));
+                            count++;
+                        }
+                    }
+                }
+                return count;
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load cards: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes out the queued saves and stops the writer. Saves queued while it closes
+     * are either written or failed. The pool is left open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything queued after the writer stopped
+        List<PendingSave> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            writeBatch(rest);
+        }
+    }
+
+    // Not interrupted to stop, since an interrupt can close the database's file channel
+    private void writeLoop() {
+        List<PendingSave> batch = new ArrayList<>(maxBatch);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            stopping = batch.remove(STOP);
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PendingSave> batch) {
+        try {
+            pool.execute(connection -> {
+                Connection jdbc = connection.connection();
+                jdbc.setAutoCommit(false);
+                try {
+                    PreparedStatement statement = connection.prepare(MERGE);
+                    for (PendingSave save : batch) {
+                        CardData card = save.card;
+                        statement.setString(1, save.owner);
+                        statement.setLong(2, card.getPackedEncryptedData(0));
+                        statement.setLong(3, card.getPackedEncryptedData(1));
+                        statement.setLong(4, card.getPackedCardNumber(0));
+                        statement.setLong(5, card.getPackedCardNumber(1));
+                        statement.setInt(6, card.getEncryptionShift());
+                        statement.setByte(7, card.getCipherTag());
+                        statement.setLong(8, card.getCreationTimeMillis());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    jdbc.commit();
+                } catch (SQLException | RuntimeException e) {
+                    jdbc.rollback();
+                    throw e;
+                } finally {
+                    jdbc.setAutoCommit(true);
+                }
+                return null;
+            });
+            for (PendingSave save : batch) {
+                save.done.complete(null);
+            }
+        } catch (SQLException | RuntimeException e) {
+            // Fail the batch rather than the writer, so later saves are still written
+            System.err.println("Failed to write " + batch.size() + " cards: " + e.getMessage());
+            for (PendingSave save : batch) {
+                save.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class PendingSave {
+        final String owner;
+        final CardData card;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingSave(String owner, CardData card) {
+            this.owner = owner;
+            this.card = card;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package common.store;
+
+import common.model.AccessLevel;
+import common.model.User;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Consumer;
+
+/**
+ * {@link UserRepository} over an embedded H2 database, one row per user.
+ */
+public class JdbcUserRepository implements UserRepository {
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS users ("
+            + "username VARCHAR(255) PRIMARY KEY, hashed_password VARCHAR(512) NOT NULL, "
+            + "access_level VARCHAR(32) NOT NULL, login_attempts INT NOT NULL, locked BOOLEAN NOT NULL)";
+    private static final String MERGE =
+            "MERGE INTO users (username, hashed_password, access_level, login_attempts, locked) "
+            + "KEY (username) VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT =
+            "SELECT username, hashed_password, access_level, login_attempts, locked FROM users WHERE username = ?";
+    private static final String SELECT_ALL =
+            "SELECT username, hashed_password, access_level, login_attempts, locked FROM users";
+
+    private final ConnectionPool pool;
+
+    /**
+     * Creates the repository, creating the table if needed.
+     * @param pool The pool to take connections from
+     * @throws SQLException If the table cannot be created
+     */
+    public JdbcUserRepository(ConnectionPool pool) throws SQLException {
+        this.pool = pool;
+        pool.execute(connection -> {
+            try (Statement statement = connection.connection().createStatement()) {
+                statement.execute(CREATE_TABLE);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void save(User user) {
+        try {
+            pool.execute(connection -> {
+                PreparedStatement statement = connection.prepare(MERGE);
+                statement.setString(1, user.getUsername());
+                statement.setString(2, user.getHashedPassword());
+                statement.setString(3, user.getAccessLevel().name());
+                // Read together so the attempt count and lock flag agree
+                int state = user.getLoginState();
+                statement.setInt(4, User.attemptsOf(state));
+                statement.setBoolean(5, User.isLocked(state));
+                return statement.executeUpdate();
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to save user: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public User find(String username) {
+        try {
+            return pool.execute(connection -> {
+                PreparedStatement statement = connection.prepare(SELECT);
+                statement.setString(1, username);
+                try (ResultSet rows = statement.executeQuery()) {
+                    return rows.next() ? read(rows) : null;
+                }
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read user: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int load(Consumer<User> consumer) {
+        try {
+            return pool.execute(connection -> {
+                int count = 0;
+                try (Statement statement = connection.connection().createStatement();
+                     ResultSet rows = statement.executeQuery(SELECT_ALL)) {
+                    while (rows.next()) {
+                        consumer.accept(read(rows));
+                        count++;
+                    }
+                }
+                return count;
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load users: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Nothing to release; the pool is closed by its owner.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static User read(ResultSet rows) throws SQLException {
+        User user = new User(rows.getString(1), rows.getString(2), AccessLevel.valueOf(rows.getString(3)));
+        user.restoreLoginState(rows.getInt(4), rows.getBoolean(5));
+        return user;
+    }
+}
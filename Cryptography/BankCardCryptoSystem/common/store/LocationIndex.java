@@ -0,0 +1,139 @@
+package common.store;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from a packed ciphertext (two longs) to a record location,
+ * held in primitive arrays so a large index is a handful of heap objects.
+ * Not thread safe; {@link CardStore} and {@link TokenVault} guard it with their locks.
+ */
+class LocationIndex {
+    static final long NONE = -1L;
+
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private long[] keys;
+    private long[] locations;
+    private int mask;
+    private int size;
+
+    LocationIndex(int capacity) {
+        int cap = 16;
+        while (cap * LOAD_FACTOR < capacity) {
+            cap <<= 1;
+        }
+        allocate(cap);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 2];
+        locations = new long[capacity];
+        Arrays.fill(locations, NONE);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long get(long keyHigh, long keyLow) {
+        int index = slot(keyHigh, keyLow);
+        while (locations[index] != NONE) {
+            if (keys[index * 2] == keyHigh && keys[index * 2 + 1] == keyLow) {
+                return locations[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Sets the location of a key.
+     * @return The previous location, or {@link #NONE}
+     */
+    long put(long keyHigh, long keyLow, long location) {
+        if (size + 1 > (mask + 1) * LOAD_FACTOR) {
+            grow();
+        }
+        int index = slot(keyHigh, keyLow);
+        while (locations[index] != NONE) {
+            if (keys[index * 2] == keyHigh && keys[index * 2 + 1] == keyLow) {
+                long previous = locations[index];
+                locations[index] = location;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index * 2] = keyHigh;
+        keys[index * 2 + 1] = keyLow;
+        locations[index] = location;
+        size++;
+        return NONE;
+    }
+
+    /**
+     * Removes a key, shifting later entries of its probe run back so lookups stay correct.
+     */
+    void remove(long keyHigh, long keyLow) {
+        int index = slot(keyHigh, keyLow);
+        while (locations[index] != NONE) {
+            if (keys[index * 2] == keyHigh && keys[index * 2 + 1] == keyLow) {
+                break;
+            }
+            index = (index + 1) & mask;
+        }
+        if (locations[index] == NONE) {
+            return;
+        }
+        size--;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (locations[next] != NONE) {
+            int home = slot(keys[next * 2], keys[next * 2 + 1]);
+            // Move the entry back if the hole lies between its home slot and its position
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole * 2] = keys[next * 2];
+                keys[hole * 2 + 1] = keys[next * 2 + 1];
+                locations[hole] = locations[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        locations[hole] = NONE;
+    }
+
+    /**
+     * Visits every entry.
+     */
+    void forEach(Visitor visitor) {
+        for (int i = 0; i <= mask; i++) {
+            if (locations[i] != NONE) {
+                visitor.visit(keys[i * 2], keys[i * 2 + 1], locations[i]);
+            }
+        }
+    }
+
+    interface Visitor {
+        void visit(long keyHigh, long keyLow, long location);
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldLocations = locations;
+        allocate((mask + 1) * 2);
+        for (int i = 0; i < oldLocations.length; i++) {
+            if (oldLocations[i] != NONE) {
+                put(oldKeys[i * 2], oldKeys[i * 2 + 1], oldLocations[i]);
+            }
+        }
+    }
+
+    private int slot(long keyHigh, long keyLow) {
+        long h = keyHigh * 0x9E3779B97F4A7C15L ^ keyLow;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        h ^= h >>> 32;
+        return (int) h & mask;
+    }
+}
@@ -0,0 +1,548 @@
+package common.store;
+
+import common.model.User;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps sessions and login lockout state across restarts.
+ * <p>
+ * State is saved as a compact binary snapshot plus a journal of the changes made
+ * since. Taking a snapshot first switches writers to a new journal and then walks the
+ * live maps without stopping them; every change the walk might miss is also in the
+ * new journal, and replaying a journal entry is idempotent, so snapshot plus journal
+ * always reproduce the latest state. Snapshots are taken periodically, when the
+ * journal grows large and on {@link #close()}, so a clean restart reads a single file.
+ * <p>
+ * Files are named {@code state-<generation>.snap} and {@code state-<generation>.journal};
+ * on startup the newest intact snapshot is loaded and the journals from its generation
+ * on are replayed.
+ */
+public class SessionStateStore implements AutoCloseable {
+    /** System property overriding the seconds between snapshots. */
+    public static final String SNAPSHOT_SECONDS_PROPERTY = "bankcard.state.snapshotSeconds";
+
+    private static final int DEFAULT_SNAPSHOT_SECONDS = 30;
+    private static final long JOURNAL_SNAPSHOT_BYTES = 4L << 20;
+    private static final int SNAPSHOT_MAGIC = 0x42435353; // "BCSS"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // Snapshot entry tags
+    private static final byte END = 0;
+    private static final byte SESSION = 1;
+    private static final byte LOGIN_STATE = 2;
+
+    // Journal record types
+    private static final byte OPENED = 1;
+    private static final byte CLOSED = 2;
+    private static final byte LOCKOUT = 3;
+
+    // Strings are written with an unsigned 16-bit length
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+    // Journal records are framed as length, body, CRC
+    private static final int FRAME_BYTES = 8;
+
+    private static final Pattern FILE_NAME = Pattern.compile("state-(\\d{12})\\.(snap|journal)");
+
+    private final Path directory;
+    private final ScheduledExecutorService snapshotter;
+    private final CRC32C journalCrc = new CRC32C();
+    // Guards the journal; a lock rather than a monitor, since holders write to the file
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private Map<String, String> sessions;
+    private Map<String, User> users;
+    private FileChannel journal;
+    private long journalBytes;
+    private long generation;
+    private boolean snapshotPending;
+
+    private SessionStateStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens a store in a directory.
+     * @param directory The directory holding the state files; created if missing
+     * @return The store
+     * @throws IOException If the directory cannot be created
+     */
+    public static SessionStateStore open(Path directory) throws IOException {
+        return new SessionStateStore(directory);
+    }
+
+    /**
+     * Opens the store named {@code name} under the {@value CardStore#DIR_PROPERTY} directory, if set.
+     * @param name The subdirectory for this store
+     * @return The store, or null if the property is not set
+     * @throws IOException If the directory cannot be created
+     */
+    public static SessionStateStore openConfigured(String name) throws IOException {
+        String dir = System.getProperty(CardStore.DIR_PROPERTY);
+        if (dir == null || dir.trim().isEmpty()) {
+            return null;
+        }
+        return open(Paths.get(dir.trim(), name));
+    }
+
+    /**
+     * Loads the saved state into the given maps and starts tracking them. Sessions of
+     * unknown users are kept; lockout state of unknown users is ignored.
+     * @param sessions The session map, session ID to username; filled in place
+     * @param users The users whose lockout state is restored and tracked
+     * @return The number of sessions restored
+     * @throws IOException If the state files cannot be read
+     */
+    public int restore(Map<String, String> sessions, Map<String, User> users) throws IOException {
+        journalLock.lock();
+        try {
+            return restoreLocked(sessions, users);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private int restoreLocked(Map<String, String> sessions, Map<String, User> users) throws IOException {
+        this.sessions = sessions;
+        this.users = users;
+
+        Map<Long, Path> snapshots = new HashMap<>();
+        List<Long> journals = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "state-*")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(".snap.tmp")) {
+                    // Left by a snapshot that never completed
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                Matcher matcher = FILE_NAME.matcher(fileName);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                long gen = Long.parseLong(matcher.group(1));
+                if ("snap".equals(matcher.group(2))) {
+                    snapshots.put(gen, file);
+                } else {
+                    journals.add(gen);
+                }
+                generation = Math.max(generation, gen);
+            }
+        }
+
+        // Newest intact snapshot wins; a damaged one falls back to the one before it
+        List<Long> snapshotGens = new ArrayList<>(snapshots.keySet());
+        snapshotGens.sort(null);
+        long base = 0;
+        for (int i = snapshotGens.size() - 1; i >= 0; i--) {
+            if (readSnapshot(snapshots.get(snapshotGens.get(i)))) {
+                base = snapshotGens.get(i);
+                break;
+            }
+        }
+        journals.sort(null);
+        for (long gen : journals) {
+            if (gen >= base) {
+                replayJournal(journalPath(gen));
+            }
+        }
+
+        generation++;
+        journal = openJournal(generation);
+        int interval = Integer.getInteger(SNAPSHOT_SECONDS_PROPERTY, DEFAULT_SNAPSHOT_SECONDS);
+        // Compact the restored state into a fresh snapshot straight away, off the startup path
+        snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, 0, interval, TimeUnit.SECONDS);
+        return sessions.size();
+    }
+
+    /**
+     * Records a new session.
+     * @param sessionId The session ID
+     * @param username The user who owns it
+     */
+    public void sessionOpened(String sessionId, String username) {
+        byte[] id = recordable(sessionId);
+        byte[] name = recordable(username);
+        if (id == null || name == null) {
+            return;
+        }
+        ByteBuffer record = newRecord(1 + 2 + id.length + 2 + name.length);
+        record.put(OPENED);
+        putBytes(record, id);
+        putBytes(record, name);
+        journalLock.lock();
+        try {
+            writeJournalRecord(record);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Records the end of a session.
+     * @param sessionId The session ID
+     */
+    public void sessionClosed(String sessionId) {
+        byte[] id = recordable(sessionId);
+        if (id == null) {
+            return;
+        }
+        ByteBuffer record = newRecord(1 + 2 + id.length);
+        record.put(CLOSED);
+        putBytes(record, id);
+        journalLock.lock();
+        try {
+            writeJournalRecord(record);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Records a user's current failed-attempt count and lock flag.
+     * @param user The user
+     */
+    public void loginStateChanged(User user) {
+        byte[] name = recordable(user.getUsername());
+        if (name == null) {
+            return;
+        }
+        ByteBuffer record = newRecord(1 + 2 + name.length + 4 + 1);
+        journalLock.lock();
+        try {
+            // Read under the lock so journal order matches the order of the states read
+            int state = user.getLoginState();
+            int attempts = User.attemptsOf(state);
+            boolean locked = User.isLocked(state);
+            record.put(LOCKOUT);
+            putBytes(record, name);
+            record.putInt(attempts);
+            record.put((byte) (locked ? 1 : 0));
+            writeJournalRecord(record);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current state and drops the files it replaces.
+     * @throws IOException If the snapshot cannot be written
+     */
+    public void snapshot() throws IOException {
+        long gen;
+        journalLock.lock();
+        try {
+            if (journal == null) {
+                return;
+            }
+            // From here on, changes go to the new journal, which is replayed after this snapshot
+            journal.close();
+            gen = ++generation;
+            journal = openJournal(gen);
+            snapshotPending = false;
+        } finally {
+            journalLock.unlock();
+        }
+
+        Path temp = directory.resolve("state-" + format(gen) + ".snap.tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(file, crc);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            Map<String, Integer> names = new HashMap<>();
+            for (User user : users.values()) {
+                int state = user.getLoginState();
+                int attempts = User.attemptsOf(state);
+                boolean locked = User.isLocked(state);
+                if ((attempts != 0 || locked) && fits(user.getUsername())) {
+                    out.writeByte(LOGIN_STATE);
+                    writeName(out, names, user.getUsername());
+                    out.writeInt(attempts);
+                    out.writeBoolean(locked);
+                }
+            }
+            for (Map.Entry<String, String> session : sessions.entrySet()) {
+                if (!fits(session.getKey()) || !fits(session.getValue())) {
+                    continue;
+                }
+                out.writeByte(SESSION);
+                writeString(out, session.getKey());
+                writeName(out, names, session.getValue());
+            }
+            out.writeByte(END);
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.getFD().sync();
+        }
+        Files.move(temp, directory.resolve("state-" + format(gen) + ".snap"), StandardCopyOption.ATOMIC_MOVE);
+
+        // Everything older than this snapshot is now redundant
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "state-*")) {
+            for (Path file : files) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < gen) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a final snapshot, so the next start reads a single file, and stops.
+     */
+    @Override
+    public void close() {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sessions != null) {
+            snapshotQuietly();
+        }
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing session journal: " + e.getMessage());
+                }
+                journal = null;
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // The UTF-8 bytes of a string, or null if they are too long to record
+    private static byte[] recordable(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            System.err.println("Not recording session state for a " + bytes.length + "-byte value");
+            return null;
+        }
+        return bytes;
+    }
+
+    private static boolean fits(String value) {
+        return value.length() <= MAX_STRING_BYTES / 3
+                || value.getBytes(StandardCharsets.UTF_8).length <= MAX_STRING_BYTES;
+    }
+
+    // A buffer sized for one framed record, positioned after the length
+    private static ByteBuffer newRecord(int bodyLength) {
+        return ByteBuffer.allocate(bodyLength + FRAME_BYTES).putInt(bodyLength);
+    }
+
+    private static void putBytes(ByteBuffer record, byte[] bytes) {
+        record.putShort((short) bytes.length);
+        record.put(bytes);
+    }
+
+    // Called with the journal lock held: appends the CRC of the body and writes the record
+    private void writeJournalRecord(ByteBuffer record) {
+        if (journal == null) {
+            return;
+        }
+        journalCrc.reset();
+        journalCrc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) journalCrc.getValue()).flip();
+        try {
+            while (record.hasRemaining()) {
+                journalBytes += journal.write(record);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing session journal: " + e.getMessage());
+        }
+        if (journalBytes > JOURNAL_SNAPSHOT_BYTES && !snapshotPending && !snapshotter.isShutdown()) {
+            snapshotPending = true;
+            try {
+                snapshotter.execute(this::snapshotQuietly);
+            } catch (RejectedExecutionException e) {
+                // Closing; the final snapshot covers this journal
+            }
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error writing session snapshot: " + e.getMessage());
+        }
+    }
+
+    private FileChannel openJournal(long gen) throws IOException {
+        journalBytes = 0;
+        return FileChannel.open(journalPath(gen), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path journalPath(long gen) {
+        return directory.resolve("state-" + format(gen) + ".journal");
+    }
+
+    private boolean readSnapshot(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < 12) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        if (ByteBuffer.wrap(bytes).getInt(bytes.length - 4) != (int) crc.getValue()) {
+            System.err.println("Ignoring damaged session snapshot " + path);
+            return false;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes, 0, bytes.length - 4);
+        if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION) {
+            return false;
+        }
+        List<String> names = new ArrayList<>();
+        try {
+            while (true) {
+                byte tag = in.get();
+                if (tag == END) {
+                    return true;
+                }
+                if (tag == SESSION) {
+                    String sessionId = getString(in);
+                    sessions.put(sessionId, readName(in, names));
+                } else if (tag == LOGIN_STATE) {
+                    String username = readName(in, names);
+                    restoreLoginState(username, in.getInt(), in.get() != 0);
+                } else {
+                    throw new IOException("Unknown entry in session snapshot " + path);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated session snapshot " + path, e);
+        }
+    }
+
+    private void replayJournal(Path path) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32C crc = new CRC32C();
+        while (data.remaining() >= 4) {
+            int length = data.getInt();
+            if (length <= 0 || length + 4 > data.remaining()) {
+                break; // torn tail
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if (data.getInt(data.position() + length) != (int) crc.getValue()) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.wrap(data.array(), data.position(), length);
+            data.position(data.position() + length + 4);
+            byte type = body.get();
+            if (type == OPENED) {
+                String sessionId = getString(body);
+                sessions.put(sessionId, getString(body));
+            } else if (type == CLOSED) {
+                sessions.remove(getString(body));
+            } else if (type == LOCKOUT) {
+                String username = getString(body);
+                restoreLoginState(username, body.getInt(), body.get() != 0);
+            }
+        }
+    }
+
+    private void restoreLoginState(String username, int attempts, boolean locked) {
+        User user = users.get(username);
+        if (user != null) {
+            user.restoreLoginState(attempts, locked);
+        }
+    }
+
+    // Usernames repeat across sessions, so each is written once and then referenced by index
+    private static void writeName(DataOutputStream out, Map<String, Integer> names, String name) throws IOException {
+        Integer index = names.get(name);
+        if (index != null) {
+            writeVarint(out, index);
+            return;
+        }
+        writeVarint(out, names.size());
+        writeString(out, name);
+        names.put(name, names.size());
+    }
+
+    private static String readName(ByteBuffer in, List<String> names) {
+        int index = readVarint(in);
+        if (index == names.size()) {
+            names.add(getString(in));
+        }
+        return names.get(index);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static String format(long gen) {
+        return String.format("%012d", gen);
+    }
+}
@@ -0,0 +1,312 @@
+package common.store;
+
+import common.util.PackedBcd;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Issues tokens that stand in for card numbers and maps them back.
+ * <p>
+ * A token has the card's length and last four digits. The digits before those are
+ * random, start with 7, 8 or 9 so no brand claims them, and are never reused; 1 and 2
+ * are avoided since JCB (1800, 2131) and Mastercard (2221-2720) ranges start with them.
+ * A background thread keeps a pool of such prefixes for each card length, split by
+ * their Luhn residue. Tokenizing polls a prefix from a pool whose residue leaves the
+ * whole token Luhn-invalid, so a token can never pass for a card number and the
+ * request path does no generating or collision checks. Tokens are looked up by
+ * their packed BCD words in an open-addressing index.
+ * <p>
+ * Tokens are kept in memory only.
+ */
+public class TokenVault implements AutoCloseable {
+    public static final int MIN_LENGTH = 12;
+    public static final int MAX_LENGTH = 19;
+
+    // Prefixes kept ready per length and residue; the filler wakes below LOW_WATER
+    static final int POOL_TARGET = 512;
+    static final int LOW_WATER = POOL_TARGET / 4;
+
+    private static final int LAST_DIGITS = 4;
+    private static final int[] FIRST_DIGITS = {7, 8, 9};
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long NO_PREFIX = -1L;
+    private static final long[] POWERS_OF_TEN = new long[MAX_LENGTH - LAST_DIGITS];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // pools[length - MIN_LENGTH][residue]
+    private final Pool[][] pools = new Pool[MAX_LENGTH - MIN_LENGTH + 1][10];
+    // Every prefix ever pooled, keyed by (length, prefix); guarded by reservedLock, which
+    // is held while drawing from SecureRandom and so is not a monitor
+    private final LocationIndex reserved = new LocationIndex(1024);
+    private final ReentrantLock reservedLock = new ReentrantLock();
+    private final SecureRandom random = new SecureRandom();
+    private final Thread filler;
+    private volatile boolean closed;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LocationIndex tokens = new LocationIndex(INITIAL_CAPACITY);
+    private final Map<String, Integer> ownerIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextOwnerId = new AtomicInteger();
+    // Per slot: the card's packed words and its owner
+    private long[] cardWords = new long[INITIAL_CAPACITY * 2];
+    private int[] owners = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Creates the vault and starts the thread that fills the prefix pools.
+     */
+    public TokenVault() {
+        for (Pool[] byResidue : pools) {
+            for (int residue = 0; residue < byResidue.length; residue++) {
+                byResidue[residue] = new Pool();
+            }
+        }
+        this.filler = new Thread(this::fillLoop, "token-pool-filler");
+        this.filler.setDaemon(true);
+        this.filler.start();
+    }
+
+    /**
+     * Issues a new token for a card number.
+     * @param owner The username of the owner, or null if the card has none
+     * @param cardNumber The card number, digits only
+     * @return The token
+     * @throws IllegalArgumentException If the card number is not 12 to 19 digits
+     */
+    public String tokenize(String owner, CharSequence cardNumber) {
+        int length = cardNumber.length();
+        if (length < MIN_LENGTH || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Card number must have 12 to 19 digits");
+        }
+        int tailResidue = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = cardNumber.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Card number must have 12 to 19 digits");
+            }
+            if (i >= length - LAST_DIGITS) {
+                tailResidue += luhnValue(digit, length - 1 - i);
+            }
+        }
+
+        // Any residue but the one completing the Luhn sum keeps the token invalid
+        int forbidden = (10 - tailResidue % 10) % 10;
+        Pool[] byResidue = pools[length - MIN_LENGTH];
+        long prefix = NO_PREFIX;
+        int start = ThreadLocalRandom.current().nextInt(9);
+        for (int i = 0; i < 9 && prefix == NO_PREFIX; i++) {
+            Pool pool = byResidue[(forbidden + 1 + (start + i) % 9) % 10];
+            Long pooled = pool.prefixes.poll();
+            if (pooled != null) {
+                if (pool.size.decrementAndGet() < LOW_WATER) {
+                    LockSupport.unpark(filler);
+                }
+                prefix = pooled;
+            }
+        }
+        if (prefix == NO_PREFIX) {
+            // Every pool ran dry; generate one here rather than fail
+            prefix = generate(length, forbidden);
+        }
+
+        char[] token = new char[length];
+        long rest = prefix;
+        for (int i = length - LAST_DIGITS - 1; i >= 0; i--) {
+            token[i] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        for (int i = length - LAST_DIGITS; i < length; i++) {
+            token[i] = cardNumber.charAt(i);
+        }
+        String tokenText = new String(token);
+        int ownerId = ownerIds.computeIfAbsent(owner == null ? "" : owner,
+                name -> nextOwnerId.getAndIncrement());
+        long cardHigh = PackedBcd.pack(cardNumber, 0);
+        long cardLow = PackedBcd.pack(cardNumber, 1);
+
+        lock.writeLock().lock();
+        try {
+            if (size == owners.length) {
+                cardWords = Arrays.copyOf(cardWords, cardWords.length * 2);
+                owners = Arrays.copyOf(owners, owners.length * 2);
+            }
+            cardWords[size * 2] = cardHigh;
+            cardWords[size * 2 + 1] = cardLow;
+            owners[size] = ownerId;
+            tokens.put(PackedBcd.pack(tokenText, 0), PackedBcd.pack(tokenText, 1), size);
+            size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return tokenText;
+    }
+
+    /**
+     * Looks up the card number behind a token issued to the same owner.
+     * @param owner The username of the owner, or null if the card has none
+     * @param token The token
+     * @return The card number, or null if the owner has no such token
+     */
+    public String detokenize(String owner, CharSequence token) {
+        if (token.length() < MIN_LENGTH || token.length() > MAX_LENGTH || !PackedBcd.isPackable(token)) {
+            return null;
+        }
+        Integer ownerId = ownerIds.get(owner == null ? "" : owner);
+        if (ownerId == null) {
+            return null;
+        }
+        long tokenHigh = PackedBcd.pack(token, 0);
+        long tokenLow = PackedBcd.pack(token, 1);
+        long cardHigh;
+        long cardLow;
+        lock.readLock().lock();
+        try {
+            long slot = tokens.get(tokenHigh, tokenLow);
+            if (slot == LocationIndex.NONE || owners[(int) slot] != ownerId) {
+                return null;
+            }
+            cardHigh = cardWords[(int) slot * 2];
+            cardLow = cardWords[(int) slot * 2 + 1];
+        } finally {
+            lock.readLock().unlock();
+        }
+        return PackedBcd.unpack(cardHigh, cardLow);
+    }
+
+    /**
+     * @return The number of tokens issued
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of prefixes waiting in the pools
+     */
+    public int pooled() {
+        int total = 0;
+        for (Pool[] byResidue : pools) {
+            for (Pool pool : byResidue) {
+                total += pool.size.get();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Stops the filler thread. Issued tokens stay readable.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(filler);
+    }
+
+    private void fillLoop() {
+        while (!closed) {
+            for (int length = MIN_LENGTH; length <= MAX_LENGTH && !closed; length++) {
+                fill(length);
+            }
+            LockSupport.park(this);
+        }
+    }
+
+    // Tops up every residue pool of one length; random prefixes spread evenly over residues
+    private void fill(int length) {
+        Pool[] byResidue = pools[length - MIN_LENGTH];
+        int missing = 0;
+        for (Pool pool : byResidue) {
+            missing += Math.max(0, POOL_TARGET - pool.size.get());
+        }
+        while (missing > 0 && !closed) {
+            long prefix;
+            int residue;
+            reservedLock.lock();
+            try {
+                prefix = randomPrefix(length);
+                residue = residue(length, prefix);
+                if (byResidue[residue].size.get() >= POOL_TARGET
+                        || reserved.put(length, prefix, 0) != LocationIndex.NONE) {
+                    continue;
+                }
+            } finally {
+                reservedLock.unlock();
+            }
+            byResidue[residue].prefixes.add(prefix);
+            byResidue[residue].size.incrementAndGet();
+            missing--;
+        }
+    }
+
+    // Fallback for an empty pool: reserves a fresh prefix of any residue but the given one
+    private long generate(int length, int forbidden) {
+        reservedLock.lock();
+        try {
+            while (true) {
+                long prefix = randomPrefix(length);
+                if (residue(length, prefix) != forbidden
+                        && reserved.put(length, prefix, 0) == LocationIndex.NONE) {
+                    return prefix;
+                }
+            }
+        } finally {
+            reservedLock.unlock();
+        }
+    }
+
+    // One draw per prefix, rejecting the top of the range so every value is equally likely
+    private long randomPrefix(int length) {
+        long bound = POWERS_OF_TEN[length - LAST_DIGITS - 1];
+        long limit = Long.MAX_VALUE - Long.MAX_VALUE % bound;
+        long draw;
+        do {
+            draw = random.nextLong() >>> 1;
+        } while (draw >= limit);
+        return FIRST_DIGITS[random.nextInt(FIRST_DIGITS.length)] * bound + draw % bound;
+    }
+
+    // The prefix's share of the Luhn sum of a token of the given length, modulo 10
+    private static int residue(int length, long prefix) {
+        int sum = 0;
+        int position = LAST_DIGITS;
+        for (long rest = prefix; position < length; rest /= 10, position++) {
+            sum += luhnValue((int) (rest % 10), position);
+        }
+        return sum % 10;
+    }
+
+    // A digit's Luhn value at a position counted from the right, starting at 0
+    private static int luhnValue(int digit, int position) {
+        if ((position & 1) == 0) {
+            return digit;
+        }
+        int doubled = digit * 2;
+        return doubled > 9 ? doubled - 9 : doubled;
+    }
+
+    private static final class Pool {
+        final ConcurrentLinkedQueue<Long> prefixes = new ConcurrentLinkedQueue<>();
+        // Tracked apart from the queue, whose size() walks it
+        final AtomicInteger size = new AtomicInteger();
+    }
+}
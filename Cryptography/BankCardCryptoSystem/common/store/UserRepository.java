@@ -0,0 +1,32 @@
+package common.store;
+
+import common.model.User;
+
+import java.util.function.Consumer;
+
+/**
+ * Durable storage for user accounts, including their lockout state.
+ */
+public interface UserRepository extends AutoCloseable {
+    /**
+     * Stores a user, replacing any user with the same username.
+     * @param user The user
+     */
+    void save(User user);
+
+    /**
+     * @param username The username
+     * @return The user, or null if there is none
+     */
+    User find(String username);
+
+    /**
+     * Passes every stored user to a consumer, typically once at startup.
+     * @param consumer Receives each user
+     * @return The number of users loaded
+     */
+    int load(Consumer<User> consumer);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,610 @@
+package common.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The compact binary form of the server protocol.
+ * <p>
+ * A client asks for it by sending {@link #HANDSHAKE} as its first byte, and the server
+ * echoes the byte back once it agrees. After that, each frame is a varint length
+ * ({@link FrameCodec.Framing#VARINT_PREFIXED}) and then a body: a one-byte opcode,
+ * the request id as a varint and the opcode's fields. Responses carry the id of the
+ * request they answer. Fields are written as follows:
+ * <ul>
+ * <li>Card numbers and tokens: {@value #PAN_BYTES} bytes of packed BCD, two digits a
+ * byte, high nibble first, padded with {@code 0xF}.</li>
+ * <li>Strings: a varint byte count, then UTF-8.</li>
+ * <li>Shifts: a zigzag varint.</li>
+ * </ul>
+ * Every message also has a text form, which is what {@link Request#toText} and
+ * {@link Response#toText} give, so callers can move between the two protocols freely.
+ * A text command carries a request id when it starts with a tag such as {@code #42 },
+ * and its response starts with the same tag; see {@link #tag} and {@link #tagOf}.
+ */
+public final class BinaryProtocol {
+    /** First byte a client sends to switch the connection to this protocol. */
+    public static final byte HANDSHAKE = (byte) 0xB1;
+
+    // Request opcodes
+    public static final int LOGIN = 0x01;
+    public static final int LOGOUT = 0x02;
+    public static final int ENCRYPT = 0x03;
+    public static final int DECRYPT = 0x04;
+    public static final int LIST = 0x05;
+    public static final int TOKENIZE = 0x06;
+    public static final int DETOKENIZE = 0x07;
+    public static final int STATS = 0x08;
+    public static final int RESUME = 0x09;
+
+    // Response opcodes
+    public static final int AUTH_SUCCESS = 0x81;
+    public static final int LOGOUT_SUCCESS = 0x82;
+    public static final int ENCRYPTED = 0x83;
+    public static final int DUPLICATE = 0x84;
+    public static final int DECRYPTED = 0x85;
+    public static final int TOKEN = 0x86;
+    public static final int CARD = 0x87;
+    public static final int TEXT = 0x88;
+    public static final int ERROR = 0xFF;
+
+    /** Request id of an untagged text command. */
+    public static final long UNTAGGED = -1;
+
+    /** Width of a packed card number field. */
+    public static final int PAN_BYTES = 10;
+    private static final int MAX_PAN_DIGITS = PAN_BYTES * 2 - 1;
+
+    private static final String[] REQUEST_NAMES = {
+        null, "LOGIN", "LOGOUT", "ENCRYPT", "DECRYPT", "LIST", "TOKENIZE", "DETOKENIZE", "STATS", "RESUME"
+    };
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * A decoded request.
+     */
+    public static final class Request {
+        private final int opcode;
+        private final long requestId;
+        private final String value;
+        private final String secondValue;
+        private final int shift;
+
+        private Request(int opcode, long requestId, String value, String secondValue, int shift) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.value = value;
+            this.secondValue = secondValue;
+            this.shift = shift;
+        }
+
+        public static Request login(long requestId, String username, String password) {
+            return new Request(LOGIN, requestId, username, password, 0);
+        }
+
+        public static Request logout(long requestId) {
+            return new Request(LOGOUT, requestId, null, null, 0);
+        }
+
+        public static Request encrypt(long requestId, String cardNumber, int shift) {
+            return new Request(ENCRYPT, requestId, cardNumber, null, shift);
+        }
+
+        public static Request decrypt(long requestId, String encryptedData, int shift) {
+            return new Request(DECRYPT, requestId, encryptedData, null, shift);
+        }
+
+        /**
+         * @param requestId The request id
+         * @param args The LIST arguments, as in the text protocol
+         */
+        public static Request list(long requestId, String args) {
+            return new Request(LIST, requestId, args, null, 0);
+        }
+
+        public static Request tokenize(long requestId, String cardNumber) {
+            return new Request(TOKENIZE, requestId, cardNumber, null, 0);
+        }
+
+        public static Request detokenize(long requestId, String token) {
+            return new Request(DETOKENIZE, requestId, token, null, 0);
+        }
+
+        public static Request stats(long requestId) {
+            return new Request(STATS, requestId, null, null, 0);
+        }
+
+        /**
+         * @param requestId The request id
+         * @param sessionId A session opened by an earlier LOGIN, possibly on another connection
+         */
+        public static Request resume(long requestId, String sessionId) {
+            return new Request(RESUME, requestId, sessionId, null, 0);
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public long getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * @return The card number, token, ciphertext, username, session ID or LIST arguments
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return The password of a LOGIN
+         */
+        public String getSecondValue() {
+            return secondValue;
+        }
+
+        public int getShift() {
+            return shift;
+        }
+
+        /**
+         * @return The frame body for this request
+         * @throws IllegalArgumentException If a card number or token is not 1 to 19 digits
+         */
+        public byte[] encode() {
+            Writer out = new Writer(16);
+            out.put(opcode);
+            out.putVarint(requestId);
+            switch (opcode) {
+                case LOGIN:
+                    out.putString(value);
+                    out.putString(secondValue);
+                    break;
+                case ENCRYPT:
+                    out.putPan(value);
+                    out.putVarint(zigzag(shift));
+                    break;
+                case DECRYPT:
+                    out.putString(value);
+                    out.putVarint(zigzag(shift));
+                    break;
+                case LIST:
+                case RESUME:
+                    out.putString(value);
+                    break;
+                case TOKENIZE:
+                case DETOKENIZE:
+                    out.putPan(value);
+                    break;
+                default:
+                    break;
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Reads a request frame body.
+         * @param frame The frame body
+         * @return The request
+         * @throws IllegalArgumentException If the frame is truncated or the opcode unknown
+         */
+        public static Request decode(byte[] frame) {
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            try {
+                int opcode = in.get() & 0xFF;
+                long requestId = getVarint(in);
+                switch (opcode) {
+                    case LOGIN:
+                        return login(requestId, getString(in), getString(in));
+                    case LOGOUT:
+                        return logout(requestId);
+                    case ENCRYPT:
+                        return encrypt(requestId, getPan(in), unzigzag(getVarint(in)));
+                    case DECRYPT:
+                        return decrypt(requestId, getString(in), unzigzag(getVarint(in)));
+                    case LIST:
+                        return list(requestId, getString(in));
+                    case TOKENIZE:
+                        return tokenize(requestId, getPan(in));
+                    case DETOKENIZE:
+                        return detokenize(requestId, getPan(in));
+                    case STATS:
+                        return stats(requestId);
+                    case RESUME:
+                        return resume(requestId, getString(in));
+                    default:
+                        throw new IllegalArgumentException("Unknown opcode: " + opcode);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+        }
+
+        /**
+         * Reads just the request id, for answering a frame that failed to decode.
+         * @param frame The frame body
+         * @return The request id, or 0 if the frame is too short to hold one
+         */
+        public static long peekRequestId(byte[] frame) {
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            try {
+                in.get();
+                return getVarint(in);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * @return The same command in the text protocol
+         */
+        public String toText() {
+            String name = REQUEST_NAMES[opcode];
+            switch (opcode) {
+                case LOGIN:
+                    return name + " " + value + " " + secondValue;
+                case ENCRYPT:
+                case DECRYPT:
+                    return name + " " + value + " " + shift;
+                case LIST:
+                    return value.isEmpty() ? name : name + " " + value;
+                case TOKENIZE:
+                case DETOKENIZE:
+                case RESUME:
+                    return name + " " + value;
+                default:
+                    return name;
+            }
+        }
+    }
+
+    /**
+     * A decoded response.
+     */
+    public static final class Response {
+        private final int opcode;
+        private final long requestId;
+        private final String value;
+
+        private Response(int opcode, long requestId, String value) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.value = value;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public long getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * @return The response's field, or null for LOGOUT_SUCCESS
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return The same response in the text protocol
+         */
+        public String toText() {
+            switch (opcode) {
+                case AUTH_SUCCESS:
+                    return "AUTH_SUCCESS " + value;
+                case LOGOUT_SUCCESS:
+                    return "LOGOUT_SUCCESS";
+                case ENCRYPTED:
+                    return "ENCRYPTED " + value;
+                case DUPLICATE:
+                    return "DUPLICATE " + value;
+                case DECRYPTED:
+                    return "DECRYPTED " + value;
+                case TOKEN:
+                    return "TOKEN " + value;
+                case CARD:
+                    return "CARD " + value;
+                case ERROR:
+                    return "ERROR " + value;
+                default:
+                    return value;
+            }
+        }
+
+        /**
+         * Encodes a text-protocol response as a binary frame body.
+         * @param requestId The id of the request it answers
+         * @param text The response as the text protocol would send it
+         * @return The frame body
+         */
+        public static byte[] encode(long requestId, String text) {
+            int space = text.indexOf(' ');
+            String head = space < 0 ? text : text.substring(0, space);
+            String rest = space < 0 ? null : text.substring(space + 1);
+            int opcode = TEXT;
+            boolean pan = false;
+            switch (head) {
+                case "AUTH_SUCCESS":
+                    opcode = rest != null ? AUTH_SUCCESS : TEXT;
+                    break;
+                case "LOGOUT_SUCCESS":
+                    opcode = rest == null ? LOGOUT_SUCCESS : TEXT;
+                    break;
+                case "ENCRYPTED":
+                    opcode = rest != null ? ENCRYPTED : TEXT;
+                    break;
+                case "DUPLICATE":
+                    opcode = rest != null ? DUPLICATE : TEXT;
+                    break;
+                case "ERROR":
+                    opcode = ERROR;
+                    if (rest == null) {
+                        rest = "";
+                    }
+                    break;
+                case "DECRYPTED":
+                    opcode = DECRYPTED;
+                    pan = true;
+                    break;
+                case "TOKEN":
+                    opcode = TOKEN;
+                    pan = true;
+                    break;
+                case "CARD":
+                    opcode = CARD;
+                    pan = true;
+                    break;
+                default:
+                    break;
+            }
+            // Anything that does not pack as a card number goes as plain text
+            if (pan && !isPackable(rest)) {
+                opcode = TEXT;
+            }
+
+            Writer out = new Writer(16 + text.length());
+            out.put(opcode);
+            out.putVarint(requestId);
+            if (opcode == TEXT) {
+                out.putString(text);
+            } else if (pan) {
+                out.putPan(rest);
+            } else if (opcode != LOGOUT_SUCCESS) {
+                out.putString(rest);
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Reads a response frame body.
+         * @param frame The frame body
+         * @return The response
+         * @throws IllegalArgumentException If the frame is truncated or the opcode unknown
+         */
+        public static Response decode(byte[] frame) {
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            try {
+                int opcode = in.get() & 0xFF;
+                long requestId = getVarint(in);
+                switch (opcode) {
+                    case LOGOUT_SUCCESS:
+                        return new Response(opcode, requestId, null);
+                    case DECRYPTED:
+                    case TOKEN:
+                    case CARD:
+                        return new Response(opcode, requestId, getPan(in));
+                    case AUTH_SUCCESS:
+                    case ENCRYPTED:
+                    case DUPLICATE:
+                    case TEXT:
+                    case ERROR:
+                        return new Response(opcode, requestId, getString(in));
+                    default:
+                        throw new IllegalArgumentException("Unknown opcode: " + opcode);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+        }
+    }
+
+    /**
+     * Tags a text command or response with a request id.
+     * @param requestId The request id, not negative
+     * @param text The command or response
+     * @return The tagged text, as in {@code #42 STATS}
+     */
+    public static String tag(long requestId, String text) {
+        return "#" + requestId + " " + text;
+    }
+
+    /**
+     * Reads the request id tag of a text command or response.
+     * @param text The command or response
+     * @return The request id, or {@link #UNTAGGED} if the text has no tag
+     * @throws IllegalArgumentException If the text starts with {@code #} but no valid id
+     */
+    public static long tagOf(String text) {
+        if (text.isEmpty() || text.charAt(0) != '#') {
+            return UNTAGGED;
+        }
+        int end = text.indexOf(' ');
+        try {
+            long requestId = Long.parseLong(end < 0 ? text.substring(1) : text.substring(1, end));
+            if (requestId < 0) {
+                throw new NumberFormatException();
+            }
+            return requestId;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid request id");
+        }
+    }
+
+    /**
+     * @param text A command or response
+     * @return The text without its request id tag, if it has one
+     */
+    public static String untag(String text) {
+        if (text.isEmpty() || text.charAt(0) != '#') {
+            return text;
+        }
+        int end = text.indexOf(' ');
+        return end < 0 ? "" : text.substring(end + 1);
+    }
+
+    /**
+     * @param value A non-negative value
+     * @return The number of bytes its varint takes
+     */
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a varint.
+     * @param value A non-negative value
+     * @param out The array to write to
+     * @param offset Where to write
+     * @return The offset after the varint
+     */
+    public static int putVarint(long value, byte[] out, int offset) {
+        while ((value & ~0x7FL) != 0) {
+            out[offset++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long zigzag(int value) {
+        return (value << 1 ^ value >> 31) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(long value) {
+        int v = (int) value;
+        return v >>> 1 ^ -(v & 1);
+    }
+
+    private static String getString(ByteBuffer in) {
+        long length = getVarint(in);
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.position(), (int) length, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) length);
+        return value;
+    }
+
+    private static boolean isPackable(String digits) {
+        if (digits == null || digits.isEmpty() || digits.length() > MAX_PAN_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getPan(ByteBuffer in) {
+        if (in.remaining() < PAN_BYTES) {
+            throw new BufferUnderflowException();
+        }
+        char[] digits = new char[PAN_BYTES * 2];
+        int count = 0;
+        for (int i = 0; i < PAN_BYTES * 2; i++) {
+            int b = in.get(in.position() + i / 2) & 0xFF;
+            int nibble = (i & 1) == 0 ? b >>> 4 : b & 0x0F;
+            if (nibble == 0x0F) {
+                continue;
+            }
+            if (nibble > 9) {
+                throw new IllegalArgumentException("Invalid card number field");
+            }
+            digits[count++] = (char) ('0' + nibble);
+        }
+        if (count == 0 || count > MAX_PAN_DIGITS) {
+            throw new IllegalArgumentException("Invalid card number field");
+        }
+        in.position(in.position() + PAN_BYTES);
+        return new String(digits, 0, count);
+    }
+
+    /**
+     * A growable byte array for building frame bodies.
+     */
+    private static final class Writer {
+        private byte[] bytes;
+        private int size;
+
+        Writer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void put(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void putVarint(long value) {
+            ensure(10);
+            size = BinaryProtocol.putVarint(value, bytes, size);
+        }
+
+        void putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        void putPan(String digits) {
+            if (!isPackable(digits)) {
+                throw new IllegalArgumentException("Card numbers and tokens must be 1 to "
+                    + MAX_PAN_DIGITS + " digits");
+            }
+            ensure(PAN_BYTES);
+            for (int i = 0; i < PAN_BYTES * 2; i += 2) {
+                int high = i < digits.length() ? digits.charAt(i) - '0' : 0x0F;
+                int low = i + 1 < digits.length() ? digits.charAt(i + 1) - '0' : 0x0F;
+                bytes[size++] = (byte) (high << 4 | low);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
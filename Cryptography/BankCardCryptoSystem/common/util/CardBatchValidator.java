@@ -0,0 +1,234 @@
+package common.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * Validates many card numbers stored as ASCII records in one buffer.
+ * <p>
+ * Records are either fixed-width (every record occupies the same number of
+ * bytes) or separated by a delimiter byte such as {@code '\n'}. The result is
+ * a {@link BitSet} in which bit {@code i} is set when record {@code i} is a
+ * valid card number according to {@link CardValidator#isValid(CharSequence)}.
+ * <p>
+ * Records made of digits only take a SWAR path that checks and sums eight
+ * digits per {@code long}. Records containing separators or padding fall back
+ * to the scalar {@link CardValidator#scan(byte[], int, int)}, so both paths
+ * accept exactly the same input.
+ */
+public class CardBatchValidator {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ZEROS = 0x3030303030303030L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long DIGIT_LIMIT = 0x7676767676767676L; // x + 0x76 sets the high bit for x >= 10
+    private static final long ONES = 0x0101010101010101L;
+    private static final long THREES = 0x0303030303030303L;
+    private static final long EVEN_BYTES = 0x00FF00FF00FF00FFL;
+    private static final long ODD_BYTES = 0xFF00FF00FF00FF00L;
+
+    /**
+     * Validates {@code recordCount} fixed-width records starting at {@code offset}.
+     *
+     * @param data the buffer holding the records
+     * @param offset the index of the first record
+     * @param recordCount the number of records
+     * @param recordWidth the size of each record in bytes
+     * @return a bit set with a bit set for every valid record
+     */
+    public static BitSet validateFixedWidth(byte[] data, int offset, int recordCount, int recordWidth) {
+        if (recordWidth <= 0) {
+            throw new IllegalArgumentException("Record width must be positive");
+        }
+        BitSet valid = new BitSet(recordCount);
+        validateFixedWidth(data, offset, recordCount, recordWidth, valid, 0);
+        return valid;
+    }
+
+    /**
+     * Validates the fixed-width records between the buffer's position and limit.
+     * A trailing partial record is ignored. The buffer's position is not changed.
+     *
+     * @param data the buffer holding the records, heap or direct
+     * @param recordWidth the size of each record in bytes
+     * @return a bit set with a bit set for every valid record
+     */
+    public static BitSet validateFixedWidth(ByteBuffer data, int recordWidth) {
+        if (recordWidth <= 0) {
+            throw new IllegalArgumentException("Record width must be positive");
+        }
+        int recordCount = data.remaining() / recordWidth;
+        if (data.hasArray()) {
+            return validateFixedWidth(data.array(), data.arrayOffset() + data.position(),
+                    recordCount, recordWidth);
+        }
+
+        BitSet valid = new BitSet(recordCount);
+        ByteBuffer source = data.duplicate();
+        int recordsPerChunk = Math.max(1, CHUNK_SIZE / recordWidth);
+        byte[] chunk = new byte[recordsPerChunk * recordWidth];
+        for (int record = 0; record < recordCount; record += recordsPerChunk) {
+            int count = Math.min(recordsPerChunk, recordCount - record);
+            source.get(chunk, 0, count * recordWidth);
+            validateFixedWidth(chunk, 0, count, recordWidth, valid, record);
+        }
+        return valid;
+    }
+
+    /**
+     * Validates delimiter-separated records in {@code data[offset, offset + length)}.
+     * Empty records count as invalid; a final delimiter does not start a new record.
+     *
+     * @param data the buffer holding the records
+     * @param offset the index of the first byte
+     * @param length the number of bytes to read
+     * @param delimiter the record separator, usually {@code '\n'}
+     * @return a bit set with a bit set for every valid record
+     */
+    public static BitSet validateDelimited(byte[] data, int offset, int length, byte delimiter) {
+        BitSet valid = new BitSet();
+        int[] record = {0};
+        int end = offset + length;
+        int start = validateDelimitedRecords(data, offset, end, delimiter, valid, record);
+        if (start < end && isValidRecord(data, start, end - start)) {
+            valid.set(record[0]);
+        }
+        return valid;
+    }
+
+    /**
+     * Validates the delimiter-separated records between the buffer's position and limit.
+     * The buffer's position is not changed.
+     *
+     * @param data the buffer holding the records, heap or direct
+     * @param delimiter the record separator, usually {@code '\n'}
+     * @return a bit set with a bit set for every valid record
+     */
+    public static BitSet validateDelimited(ByteBuffer data, byte delimiter) {
+        if (data.hasArray()) {
+            return validateDelimited(data.array(), data.arrayOffset() + data.position(),
+                    data.remaining(), delimiter);
+        }
+
+        BitSet valid = new BitSet();
+        ByteBuffer source = data.duplicate();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int[] record = {0};
+        int carry = 0;
+        boolean overlong = false; // inside a record larger than a whole chunk
+        while (source.hasRemaining()) {
+            int n = Math.min(chunk.length - carry, source.remaining());
+            source.get(chunk, carry, n);
+            int filled = carry + n;
+            int start = 0;
+            if (overlong) {
+                int delimiterAt = indexOf(chunk, 0, filled, delimiter);
+                if (delimiterAt < 0) {
+                    carry = 0;
+                    continue;
+                }
+                record[0]++;
+                overlong = false;
+                start = delimiterAt + 1;
+            }
+            int consumed = validateDelimitedRecords(chunk, start, filled, delimiter, valid, record);
+            carry = filled - consumed;
+            if (carry == chunk.length) {
+                overlong = true;
+                carry = 0;
+            } else {
+                System.arraycopy(chunk, consumed, chunk, 0, carry);
+            }
+        }
+        if (!overlong && carry > 0 && isValidRecord(chunk, 0, carry)) {
+            valid.set(record[0]);
+        }
+        return valid;
+    }
+
+    private static void validateFixedWidth(byte[] data, int offset, int recordCount, int recordWidth,
+                                           BitSet valid, int firstRecord) {
+        for (int i = 0, p = offset; i < recordCount; i++, p += recordWidth) {
+            if (isValidRecord(data, p, recordWidth)) {
+                valid.set(firstRecord + i);
+            }
+        }
+    }
+
+    /**
+     * Validates every record terminated by {@code delimiter} in {@code data[from, to)}.
+     * @return the index just after the last delimiter consumed
+     */
+    private static int validateDelimitedRecords(byte[] data, int from, int to, byte delimiter,
+                                                BitSet valid, int[] record) {
+        int start = from;
+        for (int i = from; i < to; i++) {
+            if (data[i] == delimiter) {
+                if (isValidRecord(data, start, i - start)) {
+                    valid.set(record[0]);
+                }
+                record[0]++;
+                start = i + 1;
+            }
+        }
+        return start;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isValidRecord(byte[] data, int offset, int length) {
+        if (length >= CardValidator.MIN_LENGTH && length <= CardValidator.MAX_LENGTH) {
+            int sum = digitOnlyLuhnSum(data, offset, length);
+            if (sum >= 0) {
+                return sum % 10 == 0;
+            }
+        }
+        return CardValidator.isValid(data, offset, length);
+    }
+
+    /**
+     * Computes the Luhn sum of a record that consists of ASCII digits only.
+     * @return the sum, or -1 if the record contains anything but digits
+     */
+    private static int digitOnlyLuhnSum(byte[] data, int offset, int length) {
+        // Position j is doubled when length - 1 - j is odd, i.e. when j has the same
+        // parity as length. Lanes start at multiples of 8, so the same holds for byte k of a lane.
+        long doubledMask = (length & 1) == 0 ? EVEN_BYTES : ODD_BYTES;
+        int sum = 0;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long x = (long) LONG_LE.get(data, offset + i) ^ ZEROS;
+            if ((((x + DIGIT_LIMIT) | x) & HIGH_BITS) != 0) {
+                return -1;
+            }
+            long doubled = x & doubledMask;
+            long overFour = ((doubled + THREES) >>> 3) & ONES;
+            long lane = (x & ~doubledMask) + (doubled << 1) - overFour * 9;
+            sum += (int) ((lane * ONES) >>> 56);
+        }
+        for (; i < length; i++) {
+            int d = data[offset + i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            if (((length - 1 - i) & 1) != 0) {
+                d = d > 4 ? 2 * d - 9 : 2 * d;
+            }
+            sum += d;
+        }
+        return sum;
+    }
+}
@@ -2,77 +2,318 @@ package common.util;
 
 /**
  * Provides validation for credit card numbers using Luhn algorithm.
+ * <p>
+ * All checks are performed by a single-pass scanner that works directly on
+ * {@link CharSequence}, {@code char[]} and {@code byte[]} input without
+ * allocating or using regular expressions. Non-digit characters are skipped,
+ * so formatted numbers such as {@code "4111 1111-1111 1111"} are accepted.
+ * <p>
+ * The scanner packs its findings into a single {@code int}:
+ * <pre>
+ *   bits  0-5   digit count (saturates at 63)
+ *   bits  6-9   first digit, or 15 if there are no digits
+ *   bits 10-13  {@link Brand} ordinal
+ *   bit  14     Luhn checksum passed
+ * </pre>
+ * Use {@link #isLuhnValid(int)}, {@link #lengthOf(int)}, {@link #firstDigitOf(int)}
+ * and {@link #brandOf(int)} to read it.
  */
 public class CardValidator {
-    
+    public static final int MIN_LENGTH = 13;
+    public static final int MAX_LENGTH = 19;
+
+    private static final int LENGTH_MASK = 0x3F;
+    private static final int FIRST_DIGIT_SHIFT = 6;
+    private static final int NO_DIGIT = 0xF;
+    private static final int BRAND_SHIFT = 10;
+    private static final int LUHN_BIT = 1 << 14;
+
+    /** Result of scanning {@code null} or an input without digits. */
+    public static final int EMPTY = NO_DIGIT << FIRST_DIGIT_SHIFT;
+
+    // Sum of the digits of 2*d, indexed by d
+    private static final int[] DOUBLED = {0, 2, 4, 6, 8, 1, 3, 5, 7, 9};
+    private static final int[] POW10 = {1, 10, 100, 1000, 10000, 100000};
+
+    private static volatile IinRangeIndex iinIndex;
+
+    /**
+     * Card brands recognised by the built-in prefix rules.
+     */
+    public enum Brand {
+        UNKNOWN("Unknown"),
+        VISA("Visa"),
+        MASTERCARD("MasterCard"),
+        AMERICAN_EXPRESS("American Express"),
+        DINERS_CLUB("Diners Club"),
+        DISCOVER("Discover"),
+        JCB("JCB");
+
+        private static final Brand[] VALUES = values();
+
+        private final String displayName;
+
+        Brand(String displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * Gets the human readable brand name.
+         * @return The brand name, e.g. "Visa"
+         */
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
     /**
      * Validates a credit card number using the Luhn algorithm.
      *
      * @param cardNumber the card number to validate
      * @return true if the card number is valid, false otherwise
      */
-    public static boolean isValid(String cardNumber) {
-        if (cardNumber == null || cardNumber.trim().isEmpty()) {
-            return false;
-        }
-        
-        // Remove all non-digit characters
-        String cleanNumber = cardNumber.replaceAll("[^0-9]", "");
-        
-        // Check if the card number contains only digits and has a valid length
-        if (!cleanNumber.matches("^\\d{13,19}$")) {
-            return false;
-        }
-        
-        int sum = 0;
-        boolean alternate = false;
-        
-        // Process each digit from right to left
-        for (int i = cleanNumber.length() - 1; i >= 0; i--) {
-            int n = Integer.parseInt(cleanNumber.substring(i, i + 1));
-            
-            if (alternate) {
-                n *= 2;
-                if (n > 9) {
-                    n = (n % 10) + 1;
-                }
-            }
-            
-            sum += n;
-            alternate = !alternate;
-        }
-        
-        return (sum % 10 == 0);
+    public static boolean isValid(CharSequence cardNumber) {
+        return isValidResult(scan(cardNumber));
     }
-    
+
+    /**
+     * Validates the digits in {@code chars[offset, offset + length)}.
+     *
+     * @return true if the card number is valid, false otherwise
+     */
+    public static boolean isValid(char[] chars, int offset, int length) {
+        return isValidResult(scan(chars, offset, length));
+    }
+
+    /**
+     * Validates the ASCII digits in {@code bytes[offset, offset + length)}.
+     *
+     * @return true if the card number is valid, false otherwise
+     */
+    public static boolean isValid(byte[] bytes, int offset, int length) {
+        return isValidResult(scan(bytes, offset, length));
+    }
+
+    /**
+     * Checks a packed scan result against the length and checksum rules of {@link #isValid}.
+     *
+     * @param result a value returned by one of the {@code scan} methods
+     * @return true if the scanned number is a valid card number
+     */
+    public static boolean isValidResult(int result) {
+        int length = lengthOf(result);
+        return isLuhnValid(result) && length >= MIN_LENGTH && length <= MAX_LENGTH;
+    }
+
     /**
      * Gets the card type based on the card number.
+     * Uses the installed IIN range table if there is one and it covers the number,
+     * otherwise the built-in brand rules.
      *
      * @param cardNumber the card number
      * @return the card type as a String (Visa, MasterCard, etc.) or "Unknown"
      */
-    public static String getCardType(String cardNumber) {
-        if (cardNumber == null || cardNumber.trim().isEmpty()) {
-            return "Unknown";
-        }
-        
-        // Remove all non-digit characters
-        String cleanNumber = cardNumber.replaceAll("[^0-9]", "");
-        
-        if (cleanNumber.matches("^4[0-9]{12}(?:[0-9]{3})?$")) {
-            return "Visa";
-        } else if (cleanNumber.matches("^5[1-5][0-9]{14}$")) {
-            return "MasterCard";
-        } else if (cleanNumber.matches("^3[47][0-9]{13}$")) {
-            return "American Express";
-        } else if (cleanNumber.matches("^3(?:0[0-5]|[68][0-9])[0-9]{11}$")) {
-            return "Diners Club";
-        } else if (cleanNumber.matches("^6(?:011|5[0-9]{2})[0-9]{12}$")) {
-            return "Discover";
-        } else if (cleanNumber.matches("^(?:2131|1800|35\\d{3})\\d{11}$")) {
-            return "JCB";
-        } else {
-            return "Unknown";
+    public static String getCardType(CharSequence cardNumber) {
+        IinRangeIndex index = iinIndex;
+        if (index != null) {
+            String brand = index.lookup(cardNumber);
+            if (brand != null) {
+                return brand;
+            }
+        }
+        return brandOf(scan(cardNumber)).getDisplayName();
+    }
+
+    /**
+     * Installs the IIN range table used by {@link #getCardType(CharSequence)}.
+     *
+     * @param index the range table, or null to use only the built-in rules
+     */
+    public static void setIinIndex(IinRangeIndex index) {
+        iinIndex = index;
+    }
+
+    /**
+     * @return the installed IIN range table, or null if none is installed
+     */
+    public static IinRangeIndex getIinIndex() {
+        return iinIndex;
+    }
+
+    /**
+     * Scans a card number in one pass.
+     *
+     * @param cardNumber the card number, may contain separators
+     * @return the packed scan result
+     */
+    public static int scan(CharSequence cardNumber) {
+        if (cardNumber == null) {
+            return EMPTY;
+        }
+        int count = 0;
+        int prefix = 0;
+        int evenSum = 0; // sum if the last digit sits at an even index from the left
+        int oddSum = 0;
+        for (int i = 0, n = cardNumber.length(); i < n; i++) {
+            int d = cardNumber.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                continue;
+            }
+            if (count < 6) {
+                prefix = prefix * 10 + d;
+            }
+            if ((count & 1) == 0) {
+                evenSum += d;
+                oddSum += DOUBLED[d];
+            } else {
+                evenSum += DOUBLED[d];
+                oddSum += d;
+            }
+            count++;
+        }
+        return pack(count, prefix, evenSum, oddSum);
+    }
+
+    /**
+     * Scans the characters in {@code chars[offset, offset + length)} in one pass.
+     *
+     * @return the packed scan result
+     */
+    public static int scan(char[] chars, int offset, int length) {
+        int count = 0;
+        int prefix = 0;
+        int evenSum = 0;
+        int oddSum = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int d = chars[i] - '0';
+            if (d < 0 || d > 9) {
+                continue;
+            }
+            if (count < 6) {
+                prefix = prefix * 10 + d;
+            }
+            if ((count & 1) == 0) {
+                evenSum += d;
+                oddSum += DOUBLED[d];
+            } else {
+                evenSum += DOUBLED[d];
+                oddSum += d;
+            }
+            count++;
+        }
+        return pack(count, prefix, evenSum, oddSum);
+    }
+
+    /**
+     * Scans the ASCII bytes in {@code bytes[offset, offset + length)} in one pass.
+     *
+     * @return the packed scan result
+     */
+    public static int scan(byte[] bytes, int offset, int length) {
+        int count = 0;
+        int prefix = 0;
+        int evenSum = 0;
+        int oddSum = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) {
+                continue;
+            }
+            if (count < 6) {
+                prefix = prefix * 10 + d;
+            }
+            if ((count & 1) == 0) {
+                evenSum += d;
+                oddSum += DOUBLED[d];
+            } else {
+                evenSum += DOUBLED[d];
+                oddSum += d;
+            }
+            count++;
+        }
+        return pack(count, prefix, evenSum, oddSum);
+    }
+
+    /**
+     * @return true if the scanned digits passed the Luhn checksum
+     */
+    public static boolean isLuhnValid(int result) {
+        return (result & LUHN_BIT) != 0;
+    }
+
+    /**
+     * @return the number of digits seen by the scan (saturates at 63)
+     */
+    public static int lengthOf(int result) {
+        return result & LENGTH_MASK;
+    }
+
+    /**
+     * @return the first digit of the number, or -1 if there were no digits
+     */
+    public static int firstDigitOf(int result) {
+        int d = (result >>> FIRST_DIGIT_SHIFT) & 0xF;
+        return d == NO_DIGIT ? -1 : d;
+    }
+
+    /**
+     * @return the brand detected by the scan
+     */
+    public static Brand brandOf(int result) {
+        return Brand.VALUES[(result >>> BRAND_SHIFT) & 0xF];
+    }
+
+    private static int pack(int count, int prefix, int evenSum, int oddSum) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        // With Luhn the rightmost digit is never doubled, so pick the sum
+        // whose undoubled positions line up with the last digit
+        int sum = ((count - 1) & 1) == 0 ? evenSum : oddSum;
+        int result = Math.min(count, LENGTH_MASK);
+        int prefixLength = Math.min(count, 6);
+        result |= (prefix / POW10[prefixLength - 1]) << FIRST_DIGIT_SHIFT;
+        result |= detectBrand(count, prefix, prefixLength).ordinal() << BRAND_SHIFT;
+        if (sum % 10 == 0) {
+            result |= LUHN_BIT;
+        }
+        return result;
+    }
+
+    /**
+     * Applies the built-in brand rules to the leading digits of a number.
+     *
+     * @param length the total digit count
+     * @param prefix the first {@code prefixLength} digits as an integer
+     * @param prefixLength how many digits {@code prefix} holds (at most 6)
+     */
+    private static Brand detectBrand(int length, int prefix, int prefixLength) {
+        if (prefixLength < 4) {
+            return Brand.UNKNOWN;
+        }
+        int p4 = prefix / POW10[prefixLength - 4];
+        int p3 = p4 / 10;
+        int p2 = p3 / 10;
+        int p1 = p2 / 10;
+
+        if (p1 == 4 && (length == 13 || length == 16)) {
+            return Brand.VISA;
+        }
+        if (p2 >= 51 && p2 <= 55 && length == 16) {
+            return Brand.MASTERCARD;
+        }
+        if ((p2 == 34 || p2 == 37) && length == 15) {
+            return Brand.AMERICAN_EXPRESS;
+        }
+        if (((p3 >= 300 && p3 <= 305) || p2 == 36 || p2 == 38) && length == 14) {
+            return Brand.DINERS_CLUB;
+        }
+        if ((p4 == 6011 || p2 == 65) && length == 16) {
+            return Brand.DISCOVER;
+        }
+        if (((p4 == 2131 || p4 == 1800) && length == 15) || (p2 == 35 && length == 16)) {
+            return Brand.JCB;
         }
+        return Brand.UNKNOWN;
     }
 }
@@ -0,0 +1,66 @@
+package common.util;
+
+/**
+ * Service-provider interface for card number ciphers.
+ * <p>
+ * Every stored record carries the {@link #getTag() tag} of the engine that
+ * encrypted it, so records written by different engines, or different versions
+ * of one engine, can live side by side. Engines are discovered with
+ * {@link java.util.ServiceLoader} and looked up by tag through {@link CipherEngines}.
+ * <p>
+ * Implementations must be thread-safe and have a public no-argument constructor.
+ */
+public interface CipherEngine {
+    /**
+     * Gets the tag stored with records encrypted by this engine.
+     * @return A tag between 1 and {@value CipherEngines#MAX_TAG}, unique per engine and version
+     */
+    byte getTag();
+
+    /**
+     * Gets the engine name used in configuration, e.g. "SHIFT".
+     * @return The engine name
+     */
+    String getName();
+
+    /**
+     * Encrypts the digits in {@code chars[offset, offset + length)} in place.
+     * Characters other than digits are left where they are.
+     *
+     * @param chars The card number characters
+     * @param offset The index of the first character
+     * @param length The number of characters
+     * @param parameter The per-record parameter supplied by the caller, e.g. the shift value
+     * @throws IllegalArgumentException If the input cannot be encrypted by this engine
+     */
+    void encrypt(char[] chars, int offset, int length, int parameter);
+
+    /**
+     * Decrypts the digits in {@code chars[offset, offset + length)} in place.
+     *
+     * @param chars The encrypted characters
+     * @param offset The index of the first character
+     * @param length The number of characters
+     * @param parameter The parameter that was used for encryption
+     * @throws IllegalArgumentException If the input cannot be decrypted by this engine
+     */
+    void decrypt(char[] chars, int offset, int length, int parameter);
+
+    /**
+     * Encrypts a card number into a new String.
+     */
+    default String encrypt(CharSequence cardNumber, int parameter) {
+        char[] chars = cardNumber.toString().toCharArray();
+        encrypt(chars, 0, chars.length, parameter);
+        return new String(chars);
+    }
+
+    /**
+     * Decrypts card data into a new String.
+     */
+    default String decrypt(CharSequence encryptedData, int parameter) {
+        char[] chars = encryptedData.toString().toCharArray();
+        decrypt(chars, 0, chars.length, parameter);
+        return new String(chars);
+    }
+}
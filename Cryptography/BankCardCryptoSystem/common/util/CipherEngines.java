@@ -0,0 +1,113 @@
+package common.util;
+
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of {@link CipherEngine} implementations, indexed by record tag.
+ * <p>
+ * Engines listed in {@code META-INF/services/common.util.CipherEngine} are loaded
+ * once at class initialisation; the built-in engines are always present. Lookup by
+ * tag is a plain array load, so dispatching a record to its engine costs no
+ * reflection or map lookup. The engine for new records is named by the
+ * {@value #DEFAULT_ENGINE_PROPERTY} system property and defaults to
+ * {@value ShiftCipherEngine#NAME}.
+ */
+public final class CipherEngines {
+    public static final int MAX_TAG = 127;
+    public static final String DEFAULT_ENGINE_PROPERTY = "bankcard.cipher.engine";
+
+    private static final CipherEngine[] BY_TAG = new CipherEngine[MAX_TAG + 1];
+    private static final CipherEngine DEFAULT_ENGINE;
+
+    static {
+        try {
+            for (CipherEngine engine : ServiceLoader.load(CipherEngine.class)) {
+                register(engine);
+            }
+        } catch (ServiceConfigurationError e) {
+            System.err.println("Error loading cipher engines: " + e.getMessage());
+        }
+        if (BY_TAG[ShiftCipherEngine.TAG] == null) {
+            register(new ShiftCipherEngine());
+        }
+        if (BY_TAG[Ff1CipherEngine.TAG] == null) {
+            register(new Ff1CipherEngine());
+        }
+
+        String name = System.getProperty(DEFAULT_ENGINE_PROPERTY, ShiftCipherEngine.NAME);
+        CipherEngine configured = forName(name);
+        if (configured == null) {
+            System.err.println("Unknown cipher engine '" + name + "', using " + ShiftCipherEngine.NAME);
+            configured = BY_TAG[ShiftCipherEngine.TAG];
+        }
+        DEFAULT_ENGINE = configured;
+    }
+
+    private CipherEngines() {
+    }
+
+    private static void register(CipherEngine engine) {
+        int tag = engine.getTag();
+        if (tag < 1 || tag > MAX_TAG) {
+            System.err.println("Ignoring cipher engine " + engine.getName() + " with invalid tag " + tag);
+            return;
+        }
+        CipherEngine existing = BY_TAG[tag];
+        if (existing != null) {
+            if (existing.getClass() != engine.getClass()) {
+                System.err.println("Ignoring cipher engine " + engine.getName() + ": tag " + tag
+                        + " is already used by " + existing.getName());
+            }
+            return;
+        }
+        BY_TAG[tag] = engine;
+    }
+
+    /**
+     * Gets the engine that encrypted a record.
+     * @param tag The record's cipher tag
+     * @return The engine
+     * @throws IllegalArgumentException If no engine is registered for the tag
+     */
+    public static CipherEngine forTag(int tag) {
+        CipherEngine engine = tag >= 0 && tag <= MAX_TAG ? BY_TAG[tag] : null;
+        if (engine == null) {
+            throw new IllegalArgumentException("No cipher engine for tag " + tag);
+        }
+        return engine;
+    }
+
+    /**
+     * Gets an engine by name (case-insensitive).
+     * @param name The engine name
+     * @return The engine, or null if none has this name
+     */
+    public static CipherEngine forName(String name) {
+        for (CipherEngine engine : BY_TAG) {
+            if (engine != null && engine.getName().equalsIgnoreCase(name)) {
+                return engine;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that records written with the default engine can still be decrypted after
+     * a restart, as they must be once a card store keeps them.
+     * @throws IllegalStateException If the default engine is FF1 with a generated key
+     */
+    public static void requirePersistentKey() {
+        if (DEFAULT_ENGINE instanceof Ff1CipherEngine && !Ff1CipherEngine.isKeyConfigured()) {
+            throw new IllegalStateException(Ff1CipherEngine.KEY_PROPERTY + " must be set to store "
+                    + Ff1CipherEngine.NAME + " cards; a generated key would not survive a restart");
+        }
+    }
+
+    /**
+     * @return The engine used for new records
+     */
+    public static CipherEngine getDefault() {
+        return DEFAULT_ENGINE;
+    }
+}
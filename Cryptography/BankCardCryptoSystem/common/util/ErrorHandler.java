@@ -0,0 +1,16 @@
+package common.util;
+
+/**
+ * Central place for reporting errors that cannot be returned to the caller.
+ */
+public class ErrorHandler {
+
+    /**
+     * Reports an exception together with a short description of what failed.
+     * @param message What was being done when the error occurred
+     * @param throwable The error
+     */
+    public static void handleException(String message, Throwable throwable) {
+        System.err.println(message + ": " + throwable.getMessage());
+    }
+}
@@ -0,0 +1,119 @@
+package common.util;
+
+/**
+ * {@link CipherEngine} backed by FF1 format-preserving encryption with AES.
+ * <p>
+ * The digits of the card number are encrypted as one FF1 input and written back
+ * to their original positions, so separators survive. The parameter is used as
+ * the FF1 tweak. The key is read as hex from the {@value #KEY_PROPERTY} system
+ * property; without it a random key is generated, which only suits records that
+ * do not outlive the process, so servers with a card store refuse to start that way.
+ */
+public class Ff1CipherEngine implements CipherEngine {
+    public static final byte TAG = 2;
+    public static final String NAME = "FF1";
+    public static final String KEY_PROPERTY = "bankcard.fpe.key";
+
+    private static final String KEY_ID = "card";
+    private static final FpeKeyRing KEY_RING = new FpeKeyRing();
+    private static final FormatPreservingCipher CIPHER = FormatPreservingCipher.ff1(KEY_RING);
+
+    // Tweaks for the common parameters 0-9, so the hot path does not allocate one
+    private static final byte[][] TWEAKS = new byte[10][];
+
+    private static final ThreadLocal<char[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new char[FormatPreservingCipher.MAX_LENGTH]);
+
+    private static final boolean KEY_CONFIGURED;
+
+    static {
+        String hexKey = System.getProperty(KEY_PROPERTY);
+        KEY_CONFIGURED = hexKey != null && !hexKey.trim().isEmpty();
+        if (KEY_CONFIGURED) {
+            KEY_RING.register(KEY_ID, parseHex(hexKey.trim()));
+        } else {
+            KEY_RING.generate(KEY_ID);
+        }
+        for (int i = 0; i < TWEAKS.length; i++) {
+            TWEAKS[i] = tweak(i);
+        }
+    }
+
+    /**
+     * @return true if the key came from {@value #KEY_PROPERTY}, false if it was generated
+     *         and is lost when the process exits
+     */
+    public static boolean isKeyConfigured() {
+        return KEY_CONFIGURED;
+    }
+
+    @Override
+    public byte getTag() {
+        return TAG;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void encrypt(char[] chars, int offset, int length, int parameter) {
+        transform(chars, offset, length, parameter, true);
+    }
+
+    @Override
+    public void decrypt(char[] chars, int offset, int length, int parameter) {
+        transform(chars, offset, length, parameter, false);
+    }
+
+    private static void transform(char[] chars, int offset, int length, int parameter, boolean encrypt) {
+        char[] digits = SCRATCH.get();
+        int count = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                if (count == digits.length) {
+                    throw new IllegalArgumentException("Card number has too many digits");
+                }
+                digits[count++] = c;
+            }
+        }
+
+        byte[] tweak = parameter >= 0 && parameter < TWEAKS.length ? TWEAKS[parameter] : tweak(parameter);
+        if (encrypt) {
+            CIPHER.encrypt(KEY_ID, tweak, digits, 0, count);
+        } else {
+            CIPHER.decrypt(KEY_ID, tweak, digits, 0, count);
+        }
+
+        for (int i = offset, end = offset + length, j = 0; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                chars[i] = digits[j++];
+            }
+        }
+    }
+
+    private static byte[] tweak(int parameter) {
+        return new byte[] {
+            (byte) (parameter >>> 24), (byte) (parameter >>> 16), (byte) (parameter >>> 8), (byte) parameter
+        };
+    }
+
+    private static byte[] parseHex(String hex) {
+        if ((hex.length() & 1) != 0) {
+            throw new IllegalArgumentException(KEY_PROPERTY + " must be an even number of hex digits");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException(KEY_PROPERTY + " must contain only hex digits");
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,506 @@
+package common.util;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * NIST SP 800-38G format-preserving encryption (FF1 and FF3-1) over decimal digits.
+ * <p>
+ * A card number encrypts to another digit string of the same length, so every
+ * consumer that expects digits keeps working. Inputs must be 6 to 19 digits,
+ * which keeps both halves of the Feistel network within a {@code long}.
+ * <p>
+ * Each thread keeps one AES {@link Cipher} per key id, initialised once, so the
+ * AES key schedule is computed once per key and thread rather than per call. The
+ * batch methods transform many fixed-width records with a single key lookup.
+ */
+public final class FormatPreservingCipher {
+    public static final int MIN_LENGTH = 6;
+    public static final int MAX_LENGTH = 19;
+
+    /** Tweak length required by FF3-1, in bytes. */
+    public static final int FF3_1_TWEAK_LENGTH = 7;
+
+    private static final int FF1_ROUNDS = 10;
+    private static final int FF3_ROUNDS = 8;
+    private static final int MAX_FF1_TWEAK_LENGTH = 256;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final long[] POW10 = new long[MAX_LENGTH + 1];
+    // Bytes needed to hold any numeral of i digits: ceil(ceil(i * log2(10)) / 8)
+    private static final int[] NUMERAL_BYTES = new int[MAX_LENGTH + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i <= MAX_LENGTH; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+            NUMERAL_BYTES[i] = (64 - Long.numberOfLeadingZeros(POW10[i] - 1) + 7) / 8;
+        }
+    }
+
+    /**
+     * Supported FPE modes.
+     */
+    public enum Mode {
+        FF1,
+        FF3_1
+    }
+
+    private final Mode mode;
+    private final FpeKeyRing keyRing;
+    private final ThreadLocal<Context> context = ThreadLocal.withInitial(Context::new);
+
+    private FormatPreservingCipher(Mode mode, FpeKeyRing keyRing) {
+        this.mode = mode;
+        this.keyRing = keyRing;
+    }
+
+    /**
+     * Creates an FF1 cipher. FF1 accepts tweaks of any length up to 256 bytes.
+     * @param keyRing The keys to encrypt with
+     */
+    public static FormatPreservingCipher ff1(FpeKeyRing keyRing) {
+        return new FormatPreservingCipher(Mode.FF1, keyRing);
+    }
+
+    /**
+     * Creates an FF3-1 cipher. FF3-1 requires a 7-byte tweak.
+     * @param keyRing The keys to encrypt with
+     */
+    public static FormatPreservingCipher ff3_1(FpeKeyRing keyRing) {
+        return new FormatPreservingCipher(Mode.FF3_1, keyRing);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Encrypts a digit string.
+     * @param keyId The key to use
+     * @param tweak The tweak, or null for an empty tweak (FF1 only)
+     * @param digits 6 to 19 decimal digits
+     * @return The encrypted digits
+     * @throws IllegalArgumentException If the input or tweak is invalid or the key is unknown
+     */
+    public String encrypt(String keyId, byte[] tweak, CharSequence digits) {
+        char[] chars = toChars(digits);
+        encrypt(keyId, tweak, chars, 0, chars.length);
+        return new String(chars);
+    }
+
+    /**
+     * Decrypts a digit string.
+     * @param keyId The key that was used for encryption
+     * @param tweak The tweak that was used for encryption
+     * @param digits 6 to 19 decimal digits
+     * @return The decrypted digits
+     * @throws IllegalArgumentException If the input or tweak is invalid or the key is unknown
+     */
+    public String decrypt(String keyId, byte[] tweak, CharSequence digits) {
+        char[] chars = toChars(digits);
+        decrypt(keyId, tweak, chars, 0, chars.length);
+        return new String(chars);
+    }
+
+    /**
+     * Encrypts the digits in {@code chars[offset, offset + length)} in place.
+     */
+    public void encrypt(String keyId, byte[] tweak, char[] chars, int offset, int length) {
+        Context ctx = context.get();
+        Cipher aes = ctx.cipher(keyId);
+        transform(ctx, aes, tweak, chars, offset, length, true);
+    }
+
+    /**
+     * Decrypts the digits in {@code chars[offset, offset + length)} in place.
+     */
+    public void decrypt(String keyId, byte[] tweak, char[] chars, int offset, int length) {
+        Context ctx = context.get();
+        Cipher aes = ctx.cipher(keyId);
+        transform(ctx, aes, tweak, chars, offset, length, false);
+    }
+
+    /**
+     * Encrypts fixed-width records of ASCII digits in place with one key setup.
+     *
+     * @param keyId The key to use
+     * @param tweak The tweak applied to every record
+     * @param bytes The buffer holding the records
+     * @param offset The index of the first record
+     * @param recordCount The number of records
+     * @param recordWidth The number of digits in each record
+     */
+    public void encryptBatch(String keyId, byte[] tweak, byte[] bytes, int offset,
+                             int recordCount, int recordWidth) {
+        Context ctx = context.get();
+        Cipher aes = ctx.cipher(keyId);
+        for (int i = 0, p = offset; i < recordCount; i++, p += recordWidth) {
+            transform(ctx, aes, tweak, bytes, p, recordWidth, true);
+        }
+    }
+
+    /**
+     * Decrypts fixed-width records of ASCII digits in place with one key setup.
+     *
+     * @see #encryptBatch(String, byte[], byte[], int, int, int)
+     */
+    public void decryptBatch(String keyId, byte[] tweak, byte[] bytes, int offset,
+                             int recordCount, int recordWidth) {
+        Context ctx = context.get();
+        Cipher aes = ctx.cipher(keyId);
+        for (int i = 0, p = offset; i < recordCount; i++, p += recordWidth) {
+            transform(ctx, aes, tweak, bytes, p, recordWidth, false);
+        }
+    }
+
+    private void transform(Context ctx, Cipher aes, byte[] tweak, char[] chars, int offset,
+                           int length, boolean encrypt) {
+        checkLength(length);
+        long[] halves = ctx.halves;
+        int split = splitPoint(length);
+        halves[0] = parse(chars, offset, split);
+        halves[1] = parse(chars, offset + split, length - split);
+        run(ctx, aes, tweak, length, encrypt);
+        format(halves[0], chars, offset, split);
+        format(halves[1], chars, offset + split, length - split);
+    }
+
+    private void transform(Context ctx, Cipher aes, byte[] tweak, byte[] bytes, int offset,
+                           int length, boolean encrypt) {
+        checkLength(length);
+        long[] halves = ctx.halves;
+        int split = splitPoint(length);
+        halves[0] = parse(bytes, offset, split);
+        halves[1] = parse(bytes, offset + split, length - split);
+        run(ctx, aes, tweak, length, encrypt);
+        format(halves[0], bytes, offset, split);
+        format(halves[1], bytes, offset + split, length - split);
+    }
+
+    /**
+     * FF1 splits at floor(n/2); FF3-1 at ceil(n/2).
+     */
+    private int splitPoint(int length) {
+        return mode == Mode.FF1 ? length / 2 : (length + 1) / 2;
+    }
+
+    private void run(Context ctx, Cipher aes, byte[] tweak, int n, boolean encrypt) {
+        try {
+            if (mode == Mode.FF1) {
+                ff1(ctx, aes, tweak == null ? EMPTY : tweak, n, encrypt);
+            } else {
+                ff3(ctx, aes, tweak, n, encrypt);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES operation failed", e);
+        }
+    }
+
+    /**
+     * FF1 (SP 800-38G, algorithms 7 and 8). Works on {@code ctx.halves}, where the
+     * halves hold NUM(A) and NUM(B).
+     */
+    private static void ff1(Context ctx, Cipher aes, byte[] tweak, int n, boolean encrypt)
+            throws GeneralSecurityException {
+        int t = tweak.length;
+        if (t > MAX_FF1_TWEAK_LENGTH) {
+            throw new IllegalArgumentException("FF1 tweak must be at most " + MAX_FF1_TWEAK_LENGTH + " bytes");
+        }
+        int u = n / 2;
+        int v = n - u;
+        int b = NUMERAL_BYTES[v];
+        int d = 4 * ((b + 3) / 4) + 4; // at most 12 for n <= 19, so one AES block suffices
+        int pad = Math.floorMod(-t - b - 1, 16);
+        int total = 16 + t + pad + 1 + b;
+
+        byte[] buf = ctx.buffer(total);
+        buf[0] = 1;
+        buf[1] = 2;
+        buf[2] = 1;
+        buf[3] = 0;
+        buf[4] = 0;
+        buf[5] = 10; // radix
+        buf[6] = 10;
+        buf[7] = (byte) u;
+        writeInt(buf, 8, n);
+        writeInt(buf, 12, t);
+        System.arraycopy(tweak, 0, buf, 16, t);
+        for (int i = 16 + t, end = 16 + t + pad; i < end; i++) {
+            buf[i] = 0;
+        }
+        int roundIndexAt = 16 + t + pad;
+
+        // Blocks before the one holding the round index are the same every round,
+        // so run the CBC-MAC over them once
+        byte[] prefixMac = ctx.prefixMac;
+        int variableFrom = roundIndexAt & ~15;
+        cbcMac(aes, buf, 0, variableFrom, null, prefixMac);
+
+        long[] halves = ctx.halves;
+        long a = halves[0];
+        long bNum = halves[1];
+        byte[] r = ctx.block;
+        for (int round = 0; round < FF1_ROUNDS; round++) {
+            int i = encrypt ? round : FF1_ROUNDS - 1 - round;
+            buf[roundIndexAt] = (byte) i;
+            writeNumeral(buf, roundIndexAt + 1, b, encrypt ? bNum : a);
+            cbcMac(aes, buf, variableFrom, total, prefixMac, r);
+
+            int m = (i & 1) == 0 ? u : v;
+            long modulus = POW10[m];
+            long y = 0;
+            for (int j = 0; j < d; j++) {
+                y = ((y << 8) | (r[j] & 0xFF)) % modulus;
+            }
+            if (encrypt) {
+                long c = (a + y) % modulus;
+                a = bNum;
+                bNum = c;
+            } else {
+                long c = Math.floorMod(bNum - y, modulus);
+                bNum = a;
+                a = c;
+            }
+        }
+        halves[0] = a;
+        halves[1] = bNum;
+    }
+
+    /**
+     * FF3-1 (SP 800-38G Rev. 1, algorithms 9 and 10). The halves are kept as
+     * NUM(REV(A)) and NUM(REV(B)), which is the form every round consumes.
+     */
+    private static void ff3(Context ctx, Cipher aes, byte[] tweak, int n, boolean encrypt)
+            throws GeneralSecurityException {
+        if (tweak == null || tweak.length != FF3_1_TWEAK_LENGTH) {
+            throw new IllegalArgumentException("FF3-1 tweak must be " + FF3_1_TWEAK_LENGTH + " bytes");
+        }
+        byte[] tl = ctx.tl;
+        byte[] tr = ctx.tr;
+        tl[0] = tweak[0];
+        tl[1] = tweak[1];
+        tl[2] = tweak[2];
+        tl[3] = (byte) (tweak[3] & 0xF0);
+        tr[0] = tweak[4];
+        tr[1] = tweak[5];
+        tr[2] = tweak[6];
+        tr[3] = (byte) ((tweak[3] & 0x0F) << 4);
+        ff3Rounds(ctx, aes, tl, tr, n, encrypt);
+    }
+
+    /**
+     * The FF3 Feistel rounds for 32-bit tweak halves. The halves in {@code ctx.halves}
+     * hold the digit strings in natural order on entry and exit.
+     */
+    static void ff3Rounds(Context ctx, Cipher aes, byte[] tl, byte[] tr, int n, boolean encrypt)
+            throws GeneralSecurityException {
+        int u = (n + 1) / 2;
+        int v = n - u;
+        long[] halves = ctx.halves;
+        long a = reverseDigits(halves[0], u);
+        long b = reverseDigits(halves[1], v);
+        byte[] block = ctx.buffer(16);
+        byte[] out = ctx.block;
+        for (int round = 0; round < FF3_ROUNDS; round++) {
+            int i = encrypt ? round : FF3_ROUNDS - 1 - round;
+            byte[] w = (i & 1) == 0 ? tr : tl;
+            long source = encrypt ? b : a;
+            // REVB(W xor [i]^4 || [NUM(REV(B))]^12): the numeral little-endian, then W reversed
+            for (int j = 0; j < 8; j++) {
+                block[j] = (byte) (source >>> (8 * j));
+            }
+            block[8] = 0;
+            block[9] = 0;
+            block[10] = 0;
+            block[11] = 0;
+            block[12] = (byte) (w[3] ^ i);
+            block[13] = w[2];
+            block[14] = w[1];
+            block[15] = w[0];
+            aes.doFinal(block, 0, 16, out, 0);
+
+            int m = (i & 1) == 0 ? u : v;
+            long modulus = POW10[m];
+            long y = 0;
+            // S = REVB(output), so NUM(S) reads the output from its last byte
+            for (int j = 15; j >= 0; j--) {
+                y = ((y << 8) | (out[j] & 0xFF)) % modulus;
+            }
+            if (encrypt) {
+                long c = (a + y) % modulus;
+                a = b;
+                b = c;
+            } else {
+                long c = Math.floorMod(b - y, modulus);
+                b = a;
+                a = c;
+            }
+        }
+        halves[0] = reverseDigits(a, u);
+        halves[1] = reverseDigits(b, v);
+    }
+
+    /**
+     * CBC-MAC with a zero IV over {@code buf[from, to)}, starting from {@code chain}
+     * (or zero if null). Writes the last block to {@code out}.
+     */
+    private static void cbcMac(Cipher aes, byte[] buf, int from, int to, byte[] chain, byte[] out)
+            throws GeneralSecurityException {
+        if (chain == null) {
+            for (int j = 0; j < 16; j++) {
+                out[j] = 0;
+            }
+        } else if (chain != out) {
+            System.arraycopy(chain, 0, out, 0, 16);
+        }
+        for (int p = from; p < to; p += 16) {
+            for (int j = 0; j < 16; j++) {
+                out[j] ^= buf[p + j];
+            }
+            aes.doFinal(out, 0, 16, out, 0);
+        }
+    }
+
+    private static void writeInt(byte[] buf, int at, int value) {
+        buf[at] = (byte) (value >>> 24);
+        buf[at + 1] = (byte) (value >>> 16);
+        buf[at + 2] = (byte) (value >>> 8);
+        buf[at + 3] = (byte) value;
+    }
+
+    private static void writeNumeral(byte[] buf, int at, int length, long value) {
+        for (int j = at + length - 1; j >= at; j--) {
+            buf[j] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long reverseDigits(long value, int digits) {
+        long reversed = 0;
+        for (int i = 0; i < digits; i++) {
+            reversed = reversed * 10 + value % 10;
+            value /= 10;
+        }
+        return reversed;
+    }
+
+    private static void checkLength(int length) {
+        if (length < MIN_LENGTH || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Input must be " + MIN_LENGTH + " to " + MAX_LENGTH + " digits");
+        }
+    }
+
+    private static char[] toChars(CharSequence digits) {
+        if (digits == null) {
+            throw new IllegalArgumentException("Input must be " + MIN_LENGTH + " to " + MAX_LENGTH + " digits");
+        }
+        char[] chars = new char[digits.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = digits.charAt(i);
+        }
+        return chars;
+    }
+
+    private static long parse(char[] chars, int offset, int length) {
+        long value = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int d = chars[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new IllegalArgumentException("Input must contain only digits");
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static long parse(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new IllegalArgumentException("Input must contain only digits");
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static void format(long value, char[] chars, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static void format(long value, byte[] bytes, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Per-thread state: initialised AES ciphers by key id and scratch buffers.
+     */
+    final class Context {
+        final long[] halves = new long[2];
+        final byte[] block = new byte[16];
+        final byte[] prefixMac = new byte[16];
+        final byte[] tl = new byte[4];
+        final byte[] tr = new byte[4];
+        private byte[] buffer = new byte[64];
+        private final Map<String, Cipher> ciphers = new HashMap<>();
+        private int generation = -1;
+        private String lastKeyId;
+        private Cipher lastCipher;
+
+        byte[] buffer(int size) {
+            if (buffer.length < size) {
+                buffer = new byte[Math.max(size, buffer.length * 2)];
+            }
+            return buffer;
+        }
+
+        Cipher cipher(String keyId) {
+            int current = keyRing.getGeneration();
+            if (current != generation) {
+                ciphers.clear();
+                lastKeyId = null;
+                generation = current;
+            }
+            if (keyId.equals(lastKeyId)) {
+                return lastCipher;
+            }
+            Cipher aes = ciphers.get(keyId);
+            if (aes == null) {
+                aes = newCipher(keyRing.get(keyId));
+                ciphers.put(keyId, aes);
+            }
+            lastKeyId = keyId;
+            lastCipher = aes;
+            return aes;
+        }
+
+        private Cipher newCipher(byte[] key) {
+            byte[] material = key;
+            if (mode == Mode.FF3_1) {
+                // FF3-1 encrypts with REVB(K)
+                material = new byte[key.length];
+                for (int i = 0; i < key.length; i++) {
+                    material[i] = key[key.length - 1 - i];
+                }
+            }
+            try {
+                Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+                aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(material, "AES"));
+                return aes;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES not available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package common.util;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the AES keys used by {@link FormatPreservingCipher}, addressed by key id.
+ * <p>
+ * Ciphers cache the key schedule derived from each key per thread; replacing a
+ * key bumps the ring's generation so those caches are dropped on the next call.
+ */
+public class FpeKeyRing {
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private final Map<String, byte[]> keys = new ConcurrentHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Registers or replaces a key.
+     * @param keyId The key id
+     * @param key An AES key of 16, 24 or 32 bytes
+     * @throws IllegalArgumentException If the key length is not a valid AES key length
+     */
+    public void register(String keyId, byte[] key) {
+        if (key == null || (key.length != 16 && key.length != 24 && key.length != 32)) {
+            throw new IllegalArgumentException("AES key must be 16, 24 or 32 bytes");
+        }
+        keys.put(keyId, key.clone());
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Registers a new random 256-bit key.
+     * @param keyId The key id
+     */
+    public void generate(String keyId) {
+        byte[] key = new byte[32];
+        secureRandom.nextBytes(key);
+        register(keyId, key);
+    }
+
+    /**
+     * @return true if a key with this id is registered
+     */
+    public boolean contains(String keyId) {
+        return keys.containsKey(keyId);
+    }
+
+    /**
+     * Gets the raw key bytes. The returned array must not be modified.
+     * @throws IllegalArgumentException If no key with this id is registered
+     */
+    byte[] get(String keyId) {
+        byte[] key = keys.get(keyId);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown key id: " + keyId);
+        }
+        return key;
+    }
+
+    int getGeneration() {
+        return generation.get();
+    }
+}
@@ -0,0 +1,289 @@
+package common.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into frames and writes frames out, for one connection.
+ * <p>
+ * Frames are newline-delimited text, or a 4-byte big-endian or varint length followed
+ * by that many bytes. Bytes are fed in as they are read, in whatever pieces the socket
+ * delivers; a frame split across reads is held until it completes, and several frames
+ * in one read come out one by one. A frame longer than the cap fails the stream rather
+ * than growing the buffer without bound.
+ * <p>
+ * Since frames are capped well below 16 MiB, a 4-byte length prefix always starts with
+ * a zero byte, which no text command does, and a client choosing varint framing first
+ * sends {@link BinaryProtocol#HANDSHAKE}, so {@link #detect} can tell the framing from
+ * the first byte a client sends.
+ */
+public class FrameCodec {
+    /** Largest frame accepted by default. */
+    public static final int DEFAULT_MAX_FRAME_BYTES = 64 * 1024;
+    /** Largest cap allowed, keeping the first byte of every length prefix zero. */
+    public static final int MAX_FRAME_BYTES = 1 << 20;
+
+    private static final int LENGTH_BYTES = 4;
+    private static final int INITIAL_BUFFER = 256;
+
+    /**
+     * How frames are delimited.
+     */
+    public enum Framing {
+        /** Text frames ending in {@code \n}; a {@code \r} before it is dropped. */
+        NEWLINE,
+        /** A 4-byte big-endian length, then the frame. */
+        LENGTH_PREFIXED,
+        /** An unsigned LEB128 varint length, then the frame; used by {@link BinaryProtocol}. */
+        VARINT_PREFIXED
+    }
+
+    private final Framing framing;
+    private final int maxFrameBytes;
+    // Unconsumed bytes are buffer[start, end); null while empty
+    private byte[] buffer;
+    private int start;
+    private int end;
+    // Where the newline search resumes, so a long partial line is not rescanned
+    private int scanned;
+
+    /**
+     * @param framing How frames are delimited
+     * @param maxFrameBytes The largest frame accepted, at most {@value #MAX_FRAME_BYTES}
+     */
+    public FrameCodec(Framing framing, int maxFrameBytes) {
+        if (maxFrameBytes < 1 || maxFrameBytes > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Frame cap must be between 1 and " + MAX_FRAME_BYTES);
+        }
+        this.framing = framing;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Picks the framing a client uses from the first byte it sent. For
+     * {@link Framing#VARINT_PREFIXED} that byte is the handshake and not part of a frame.
+     * @param firstByte The first byte read from the connection
+     * @return {@link Framing#LENGTH_PREFIXED} for a zero byte, {@link Framing#VARINT_PREFIXED}
+     *         for the binary handshake, {@link Framing#NEWLINE} otherwise
+     */
+    public static Framing detect(byte firstByte) {
+        if (firstByte == 0) {
+            return Framing.LENGTH_PREFIXED;
+        }
+        return firstByte == BinaryProtocol.HANDSHAKE ? Framing.VARINT_PREFIXED : Framing.NEWLINE;
+    }
+
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * Appends bytes read from the connection.
+     * @param bytes The bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     */
+    public void feed(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (buffer == null) {
+            buffer = new byte[Math.max(INITIAL_BUFFER, length)];
+        } else if (end + length > buffer.length) {
+            // Move the unconsumed bytes down before growing
+            int pending = end - start;
+            byte[] target = pending + length > buffer.length
+                    ? new byte[Math.max(buffer.length * 2, pending + length)] : buffer;
+            System.arraycopy(buffer, start, target, 0, pending);
+            buffer = target;
+            scanned -= start;
+            start = 0;
+            end = pending;
+        }
+        System.arraycopy(bytes, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * Appends the bytes between a buffer's position and limit, consuming them.
+     * @param bytes The bytes
+     */
+    public void feed(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        if (bytes.hasArray()) {
+            feed(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+            bytes.position(bytes.limit());
+        } else {
+            byte[] copy = new byte[length];
+            bytes.get(copy);
+            feed(copy, 0, length);
+        }
+    }
+
+    /**
+     * Takes the next complete frame.
+     * @return The frame's bytes, without delimiter or length, or null if none is complete yet
+     * @throws FrameTooLongException If the next frame is longer than the cap
+     */
+    public byte[] next() throws FrameTooLongException {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] frame;
+        if (framing == Framing.NEWLINE) {
+            frame = nextLine();
+        } else if (framing == Framing.LENGTH_PREFIXED) {
+            frame = nextPrefixed();
+        } else {
+            frame = nextVarintPrefixed();
+        }
+        if (start == end) {
+            // Nothing pending; an idle connection keeps no buffer
+            buffer = null;
+            start = 0;
+            end = 0;
+            scanned = 0;
+        }
+        return frame;
+    }
+
+    /**
+     * Takes the next complete frame as UTF-8 text.
+     * @return The frame, or null if none is complete yet
+     * @throws FrameTooLongException If the next frame is longer than the cap
+     */
+    public String nextString() throws FrameTooLongException {
+        byte[] frame = next();
+        return frame != null ? new String(frame, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @return The number of bytes fed but not yet taken as frames
+     */
+    public int pendingBytes() {
+        return end - start;
+    }
+
+    /**
+     * Frames some bytes for sending with this codec's framing.
+     * @param frame The frame; for newline framing it must not contain {@code \n}
+     * @return The bytes to write
+     */
+    public byte[] encode(byte[] frame) {
+        return encode(framing, frame);
+    }
+
+    /**
+     * Frames UTF-8 text for sending with this codec's framing.
+     * @param frame The frame
+     * @return The bytes to write
+     */
+    public byte[] encode(String frame) {
+        return encode(framing, frame.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Frames some bytes for sending.
+     * @param framing How the frame is delimited
+     * @param frame The frame; for newline framing it must not contain {@code \n}
+     * @return The bytes to write
+     */
+    public static byte[] encode(Framing framing, byte[] frame) {
+        if (framing == Framing.NEWLINE) {
+            byte[] out = Arrays.copyOf(frame, frame.length + 1);
+            out[frame.length] = '\n';
+            return out;
+        }
+        if (framing == Framing.VARINT_PREFIXED) {
+            byte[] out = new byte[BinaryProtocol.varintSize(frame.length) + frame.length];
+            int offset = BinaryProtocol.putVarint(frame.length, out, 0);
+            System.arraycopy(frame, 0, out, offset, frame.length);
+            return out;
+        }
+        byte[] out = new byte[LENGTH_BYTES + frame.length];
+        out[0] = (byte) (frame.length >>> 24);
+        out[1] = (byte) (frame.length >>> 16);
+        out[2] = (byte) (frame.length >>> 8);
+        out[3] = (byte) frame.length;
+        System.arraycopy(frame, 0, out, LENGTH_BYTES, frame.length);
+        return out;
+    }
+
+    private byte[] nextLine() throws FrameTooLongException {
+        for (int i = Math.max(start, scanned); i < end; i++) {
+            if (buffer[i] == '\n') {
+                int frameEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                if (frameEnd - start > maxFrameBytes) {
+                    throw new FrameTooLongException(maxFrameBytes);
+                }
+                byte[] frame = Arrays.copyOfRange(buffer, start, frameEnd);
+                start = i + 1;
+                scanned = start;
+                return frame;
+            }
+        }
+        scanned = end;
+        if (end - start > maxFrameBytes + 1) {
+            throw new FrameTooLongException(maxFrameBytes);
+        }
+        return null;
+    }
+
+    private byte[] nextPrefixed() throws FrameTooLongException {
+        if (end - start < LENGTH_BYTES) {
+            return null;
+        }
+        int length = (buffer[start] & 0xFF) << 24 | (buffer[start + 1] & 0xFF) << 16
+                | (buffer[start + 2] & 0xFF) << 8 | (buffer[start + 3] & 0xFF);
+        if (length < 0 || length > maxFrameBytes) {
+            throw new FrameTooLongException(maxFrameBytes);
+        }
+        if (end - start - LENGTH_BYTES < length) {
+            return null;
+        }
+        int frameStart = start + LENGTH_BYTES;
+        start = frameStart + length;
+        return Arrays.copyOfRange(buffer, frameStart, start);
+    }
+
+    private byte[] nextVarintPrefixed() throws FrameTooLongException {
+        int length = 0;
+        int position = start;
+        for (int shift = 0; ; shift += 7) {
+            if (position == end) {
+                return null;
+            }
+            int b = buffer[position++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 14) {
+                // A fourth length byte would mean a frame of 2 MiB or more
+                throw new FrameTooLongException(maxFrameBytes);
+            }
+        }
+        if (length > maxFrameBytes) {
+            throw new FrameTooLongException(maxFrameBytes);
+        }
+        if (end - position < length) {
+            return null;
+        }
+        start = position + length;
+        return Arrays.copyOfRange(buffer, position, start);
+    }
+
+    /**
+     * Thrown when a frame is longer than the codec accepts. The stream cannot be
+     * resynchronized after this, so the connection should be closed.
+     */
+    public static class FrameTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLongException(int maxFrameBytes) {
+            super("Frame exceeds " + maxFrameBytes + " bytes");
+        }
+    }
+}
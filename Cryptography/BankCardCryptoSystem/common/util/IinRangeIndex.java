@@ -0,0 +1,356 @@
+package common.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Classifies card numbers against a table of issuer identification number (IIN) ranges.
+ * <p>
+ * The table is a text file with one range per line:
+ * <pre>
+ *   # low,high,brand
+ *   4,4,Visa
+ *   510000,559999,MasterCard
+ *   45399000,45399099,Visa Electron
+ * </pre>
+ * Bounds are digit prefixes of up to {@value #KEY_DIGITS} digits; the low bound is
+ * padded with zeros and the high bound with nines. Nested ranges are allowed and the
+ * innermost range wins, so a specific BIN can refine a broad brand range. Ranges that
+ * partially overlap are rejected.
+ * <p>
+ * The file is memory-mapped and parsed into sorted primitive arrays. Lookups are a
+ * binary search over those arrays and do not allocate. {@link #reload()} builds a new
+ * table and swaps it in atomically, so readers are never blocked.
+ */
+public class IinRangeIndex {
+    /** Number of leading card digits used as the lookup key. */
+    public static final int KEY_DIGITS = 8;
+
+    /** System property naming the IIN table loaded by {@link #installConfigured()}. */
+    public static final String FILE_PROPERTY = "bankcard.iin.file";
+
+    private final Path path;
+    private volatile Table table;
+
+    /**
+     * Immutable snapshot of the ranges. Range {@code i} covers keys
+     * {@code lows[i]..highs[i]} and maps to {@code brands[brandIds[i]]}.
+     */
+    private static final class Table {
+        final long[] lows;
+        final long[] highs;
+        final int[] brandIds;
+        final String[] brands;
+
+        Table(long[] lows, long[] highs, int[] brandIds, String[] brands) {
+            this.lows = lows;
+            this.highs = highs;
+            this.brandIds = brandIds;
+            this.brands = brands;
+        }
+    }
+
+    private IinRangeIndex(Path path, Table table) {
+        this.path = path;
+        this.table = table;
+    }
+
+    /**
+     * Loads an IIN range table from a file.
+     * @param path The table file
+     * @return The loaded index
+     * @throws IOException If the file cannot be read or is malformed
+     */
+    public static IinRangeIndex load(Path path) throws IOException {
+        return new IinRangeIndex(path, readTable(path));
+    }
+
+    /**
+     * Loads the table named by the {@value #FILE_PROPERTY} system property, if set,
+     * and installs it in {@link CardValidator}.
+     * @return The installed index, or null if the property is not set
+     * @throws IOException If the file cannot be read or is malformed
+     */
+    public static IinRangeIndex installConfigured() throws IOException {
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file == null || file.trim().isEmpty()) {
+            return null;
+        }
+        IinRangeIndex index = load(Paths.get(file.trim()));
+        CardValidator.setIinIndex(index);
+        return index;
+    }
+
+    /**
+     * Re-reads the table file and atomically replaces the current ranges.
+     * Lookups running concurrently keep using the previous table.
+     * @throws IOException If the file cannot be read or is malformed; the current table is kept
+     */
+    public void reload() throws IOException {
+        this.table = readTable(path);
+    }
+
+    /**
+     * Gets the brand of the range containing the card number.
+     * @param cardNumber The card number, may contain separators
+     * @return The brand name, or null if no range matches
+     */
+    public String lookup(CharSequence cardNumber) {
+        if (cardNumber == null) {
+            return null;
+        }
+        long key = 0;
+        int digits = 0;
+        for (int i = 0, n = cardNumber.length(); i < n && digits < KEY_DIGITS; i++) {
+            int d = cardNumber.charAt(i) - '0';
+            if (d >= 0 && d <= 9) {
+                key = key * 10 + d;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return null;
+        }
+        for (; digits < KEY_DIGITS; digits++) {
+            key *= 10;
+        }
+        return lookupKey(key);
+    }
+
+    /**
+     * Gets the brand of the range containing an {@value #KEY_DIGITS}-digit key.
+     * @param key The first {@value #KEY_DIGITS} digits of a card number
+     * @return The brand name, or null if no range matches
+     */
+    public String lookupKey(long key) {
+        Table t = this.table;
+        long[] lows = t.lows;
+        int lo = 0;
+        int hi = lows.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lows[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (hi >= 0 && key <= t.highs[hi]) {
+            return t.brands[t.brandIds[hi]];
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of disjoint ranges in the current table
+     */
+    public int size() {
+        return table.lows.length;
+    }
+
+    private static Table readTable(Path path) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        RangeList parsed = new RangeList();
+        Map<String, Integer> brandIds = new HashMap<>();
+        List<String> brands = new ArrayList<>();
+        byte[] brandBytes = new byte[256];
+        int line = 0;
+        int limit = data.limit();
+        int pos = 0;
+        while (pos < limit) {
+            line++;
+            int end = pos;
+            while (end < limit && data.get(end) != '\n') {
+                end++;
+            }
+            int next = end + 1;
+            while (end > pos && isBlank(data.get(end - 1))) {
+                end--;
+            }
+            while (pos < end && isBlank(data.get(pos))) {
+                pos++;
+            }
+            if (pos == end || data.get(pos) == '#') {
+                pos = next;
+                continue;
+            }
+
+            int firstComma = indexOf(data, pos, end, (byte) ',');
+            int secondComma = firstComma < 0 ? -1 : indexOf(data, firstComma + 1, end, (byte) ',');
+            if (secondComma < 0) {
+                throw new IOException("Malformed IIN range at line " + line + ": expected low,high,brand");
+            }
+            long low = parseBound(data, pos, firstComma, 0, line);
+            long high = parseBound(data, firstComma + 1, secondComma, 9, line);
+            if (low > high) {
+                throw new IOException("Malformed IIN range at line " + line + ": low bound above high bound");
+            }
+
+            int brandStart = secondComma + 1;
+            while (brandStart < end && isBlank(data.get(brandStart))) {
+                brandStart++;
+            }
+            int brandLength = end - brandStart;
+            if (brandLength == 0) {
+                throw new IOException("Malformed IIN range at line " + line + ": missing brand");
+            }
+            if (brandLength > brandBytes.length) {
+                brandBytes = new byte[brandLength];
+            }
+            for (int i = 0; i < brandLength; i++) {
+                brandBytes[i] = data.get(brandStart + i);
+            }
+            String brand = new String(brandBytes, 0, brandLength, StandardCharsets.UTF_8);
+            Integer brandId = brandIds.get(brand);
+            if (brandId == null) {
+                brandId = brands.size();
+                brandIds.put(brand, brandId);
+                brands.add(brand);
+            }
+
+            parsed.add(low, high, brandId);
+            pos = next;
+        }
+
+        return flatten(parsed, brands.toArray(new String[0]));
+    }
+
+    /**
+     * Turns possibly nested ranges into sorted, disjoint ranges where the innermost range wins.
+     */
+    private static Table flatten(RangeList ranges, String[] brands) throws IOException {
+        Integer[] order = new Integer[ranges.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // Outer ranges before the ranges nested in them; the sort is stable so later lines win ties
+        Arrays.sort(order, (a, b) -> {
+            int byLow = Long.compare(ranges.lows[a], ranges.lows[b]);
+            return byLow != 0 ? byLow : Long.compare(ranges.highs[b], ranges.highs[a]);
+        });
+
+        RangeList out = new RangeList();
+        long[] openHighs = new long[16];
+        int[] openBrands = new int[16];
+        int depth = 0;
+        long cursor = 0;
+        for (int i : order) {
+            long low = ranges.lows[i];
+            long high = ranges.highs[i];
+            while (depth > 0 && openHighs[depth - 1] < low) {
+                depth--;
+                out.addMerged(cursor, openHighs[depth], openBrands[depth]);
+                cursor = openHighs[depth] + 1;
+            }
+            if (depth > 0) {
+                if (high > openHighs[depth - 1]) {
+                    throw new IOException("IIN ranges partially overlap at " + low + "-" + high);
+                }
+                out.addMerged(cursor, low - 1, openBrands[depth - 1]);
+            }
+            if (depth == openHighs.length) {
+                openHighs = Arrays.copyOf(openHighs, depth * 2);
+                openBrands = Arrays.copyOf(openBrands, depth * 2);
+            }
+            openHighs[depth] = high;
+            openBrands[depth] = ranges.brandIds[i];
+            depth++;
+            cursor = low;
+        }
+        while (depth > 0) {
+            depth--;
+            out.addMerged(cursor, openHighs[depth], openBrands[depth]);
+            cursor = openHighs[depth] + 1;
+        }
+
+        return new Table(Arrays.copyOf(out.lows, out.size), Arrays.copyOf(out.highs, out.size),
+                Arrays.copyOf(out.brandIds, out.size), brands);
+    }
+
+    private static long parseBound(MappedByteBuffer data, int from, int to, int padDigit, int line)
+            throws IOException {
+        while (from < to && isBlank(data.get(from))) {
+            from++;
+        }
+        while (to > from && isBlank(data.get(to - 1))) {
+            to--;
+        }
+        int length = to - from;
+        if (length == 0 || length > KEY_DIGITS) {
+            throw new IOException("Malformed IIN range at line " + line
+                    + ": bounds must have 1 to " + KEY_DIGITS + " digits");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int d = data.get(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new IOException("Malformed IIN range at line " + line + ": bounds must be digits");
+            }
+            value = value * 10 + d;
+        }
+        for (int i = length; i < KEY_DIGITS; i++) {
+            value = value * 10 + padDigit;
+        }
+        return value;
+    }
+
+    private static int indexOf(MappedByteBuffer data, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (data.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Growable parallel arrays of ranges used while loading.
+     */
+    private static final class RangeList {
+        long[] lows = new long[1024];
+        long[] highs = new long[1024];
+        int[] brandIds = new int[1024];
+        int size;
+
+        void add(long low, long high, int brandId) {
+            if (size == lows.length) {
+                lows = Arrays.copyOf(lows, size * 2);
+                highs = Arrays.copyOf(highs, size * 2);
+                brandIds = Arrays.copyOf(brandIds, size * 2);
+            }
+            lows[size] = low;
+            highs[size] = high;
+            brandIds[size] = brandId;
+            size++;
+        }
+
+        void addMerged(long low, long high, int brandId) {
+            if (low > high) {
+                return;
+            }
+            if (size > 0 && brandIds[size - 1] == brandId && highs[size - 1] + 1 == low) {
+                highs[size - 1] = high;
+                return;
+            }
+            add(low, high, brandId);
+        }
+    }
+}
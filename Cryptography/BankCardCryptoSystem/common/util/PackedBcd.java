@@ -0,0 +1,147 @@
+package common.util;
+
+/**
+ * Packs short card-number strings into two {@code long} words, four bits per character.
+ * <p>
+ * Nibbles 0-9 hold digits, {@value #SPACE} a space and {@value #DASH} a dash; unused
+ * positions are filled with {@value #END}. Character {@code i} lives in word {@code i / 16},
+ * most significant nibble first, so comparing the words as unsigned values orders the
+ * strings like their digits. Up to {@value #MAX_LENGTH} characters fit; anything longer
+ * or containing other characters is not packable and must be kept as a String.
+ */
+public class PackedBcd {
+    public static final int MAX_LENGTH = 32;
+
+    /** Nibble stored for a space separator. */
+    public static final int SPACE = 0xA;
+    /** Nibble stored for a dash separator. */
+    public static final int DASH = 0xB;
+    /** Nibble marking the end of the string. */
+    public static final int END = 0xF;
+
+    /** Value of a word holding no characters. */
+    public static final long EMPTY_WORD = -1L;
+
+    private static final int CHARS_PER_WORD = 16;
+    private static final char[] CHARS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', ' ', '-', 0, 0, 0, 0
+    };
+
+    /**
+     * Checks whether a string can be packed.
+     * @param text The string to check
+     * @return true if it has at most {@value #MAX_LENGTH} characters, all digits, spaces or dashes
+     */
+    public static boolean isPackable(CharSequence text) {
+        if (text == null || text.length() > MAX_LENGTH) {
+            return false;
+        }
+        for (int i = 0, n = text.length(); i < n; i++) {
+            if (nibbleOf(text.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Packs one word of a packable string.
+     * @param text A string for which {@link #isPackable} returned true
+     * @param word 0 for characters 0-15, 1 for characters 16-31
+     * @return The packed word
+     */
+    public static long pack(CharSequence text, int word) {
+        long packed = EMPTY_WORD;
+        int start = word * CHARS_PER_WORD;
+        int end = Math.min(text.length(), start + CHARS_PER_WORD);
+        for (int i = start; i < end; i++) {
+            int shift = (CHARS_PER_WORD - 1 - (i - start)) * 4;
+            packed = (packed & ~(0xFL << shift)) | ((long) nibbleOf(text.charAt(i)) << shift);
+        }
+        return packed;
+    }
+
+    /**
+     * Gets the number of characters held by a packed pair.
+     * @param high The first word
+     * @param low The second word
+     * @return The string length
+     */
+    public static int length(long high, long low) {
+        if (low != EMPTY_WORD) {
+            return CHARS_PER_WORD + usedNibbles(low);
+        }
+        return usedNibbles(high);
+    }
+
+    /**
+     * Unpacks a packed pair into {@code out}, which must have room for {@link #length} chars.
+     * @param high The first word
+     * @param low The second word
+     * @param out The destination
+     * @param offset Where to write the first character
+     * @return The number of characters written
+     */
+    public static int unpack(long high, long low, char[] out, int offset) {
+        int length = length(high, low);
+        for (int i = 0; i < length; i++) {
+            long word = i < CHARS_PER_WORD ? high : low;
+            int shift = (CHARS_PER_WORD - 1 - (i & (CHARS_PER_WORD - 1))) * 4;
+            out[offset + i] = CHARS[(int) (word >>> shift) & 0xF];
+        }
+        return length;
+    }
+
+    /**
+     * Unpacks a packed pair into a new String.
+     * @param high The first word
+     * @param low The second word
+     * @return The original string
+     */
+    public static String unpack(long high, long low) {
+        char[] chars = new char[length(high, low)];
+        unpack(high, low, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Checks whether a packed pair holds only digits, with no separators.
+     * @param high The first word
+     * @param low The second word
+     * @return true if every character is a digit
+     */
+    public static boolean isDigits(long high, long low) {
+        int length = length(high, low);
+        for (int i = 0; i < length; i++) {
+            long word = i < CHARS_PER_WORD ? high : low;
+            int shift = (CHARS_PER_WORD - 1 - (i & (CHARS_PER_WORD - 1))) * 4;
+            if (((word >>> shift) & 0xF) > 9) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int nibbleOf(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c == ' ') {
+            return SPACE;
+        }
+        if (c == '-') {
+            return DASH;
+        }
+        return -1;
+    }
+
+    // Characters are packed from the top, so the used count is the position of the first END nibble
+    private static int usedNibbles(long word) {
+        for (int i = 0; i < CHARS_PER_WORD; i++) {
+            if (((word >>> ((CHARS_PER_WORD - 1 - i) * 4)) & 0xF) == END) {
+                return i;
+            }
+        }
+        return CHARS_PER_WORD;
+    }
+}
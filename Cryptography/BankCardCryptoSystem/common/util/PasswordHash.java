@@ -0,0 +1,147 @@
+package common.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A stored password hash parsed into its binary parts.
+ * <p>
+ * The text form is {@code algorithm:iterations:salt:hash} with Base64 salt and hash.
+ * Parsing it once and keeping the record avoids splitting and Base64-decoding the
+ * stored string on every login. Two algorithms are understood:
+ * <ul>
+ *   <li>{@value PasswordHasher#ALGORITHM} - the current format</li>
+ *   <li>{@value #LEGACY_ALGORITHM} - iterated SHA-256 written by earlier versions,
+ *       still accepted so existing hashes keep working</li>
+ * </ul>
+ */
+public final class PasswordHash {
+    /** Algorithm name of hashes written before the move to PBKDF2. */
+    public static final String LEGACY_ALGORITHM = "SHA-256";
+
+    private static final ThreadLocal<MessageDigest> LEGACY_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(LEGACY_ALGORITHM);
+        } catch (Exception e) {
+            throw new IllegalStateException("Hashing algorithm not available", e);
+        }
+    });
+
+    private final boolean legacy;
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    PasswordHash(boolean legacy, int iterations, byte[] salt, byte[] hash) {
+        this.legacy = legacy;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Parses a stored hash.
+     * @param storedHash The stored hash in {@code algorithm:iterations:salt:hash} form
+     * @return The parsed record, or null if the string is not a supported hash
+     */
+    public static PasswordHash parse(String storedHash) {
+        if (storedHash == null) {
+            return null;
+        }
+        String[] parts = storedHash.split(":");
+        if (parts.length != 4) {
+            return null;
+        }
+        boolean legacy;
+        if (PasswordHasher.ALGORITHM.equals(parts[0])) {
+            legacy = false;
+        } else if (LEGACY_ALGORITHM.equals(parts[0])) {
+            legacy = true;
+        } else {
+            return null;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            if (iterations <= 0) {
+                return null;
+            }
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] hash = Base64.getDecoder().decode(parts[3]);
+            return new PasswordHash(legacy, iterations, salt, hash);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks a password against this hash in constant time.
+     * @param password The password to check
+     * @return true if the password matches, false otherwise
+     */
+    public boolean verify(char[] password) {
+        byte[] candidate = legacy
+                ? legacyDigest(password, salt, iterations)
+                : PasswordHasher.derive(password, salt, iterations, hash.length * 8);
+        try {
+            return MessageDigest.isEqual(hash, candidate);
+        } finally {
+            Arrays.fill(candidate, (byte) 0);
+        }
+    }
+
+    /**
+     * @return true if this hash should be recomputed with the current algorithm and cost
+     */
+    public boolean needsRehash() {
+        return legacy || iterations < PasswordHasher.iterations();
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * @return The text form, suitable for storage and {@link #parse(String)}
+     */
+    public String format() {
+        return (legacy ? LEGACY_ALGORITHM : PasswordHasher.ALGORITHM) + ":" + iterations + ":"
+                + Base64.getEncoder().encodeToString(salt) + ":"
+                + Base64.getEncoder().encodeToString(hash);
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+
+    /**
+     * Iterated SHA-256 used by earlier versions: hash(password || salt || iterations), re-hashed
+     * {@code iterations} times. Reuses one output buffer for all rounds.
+     */
+    private static byte[] legacyDigest(char[] password, byte[] salt, int iterations) {
+        MessageDigest digest = LEGACY_DIGEST.get();
+        digest.reset();
+        digest.update(new String(password).getBytes(StandardCharsets.UTF_8));
+        digest.update(salt);
+        digest.update(String.valueOf(iterations).getBytes(StandardCharsets.UTF_8));
+        byte[] out = new byte[digest.getDigestLength()];
+        try {
+            for (int i = 0; i < iterations; i++) {
+                if (i > 0) {
+                    digest.update(out);
+                }
+                digest.digest(out, 0, out.length);
+            }
+        } catch (DigestException e) {
+            throw new IllegalStateException("Digest buffer too small", e);
+        }
+        return out;
+    }
+}
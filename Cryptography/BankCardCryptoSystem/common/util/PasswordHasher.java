@@ -0,0 +1,117 @@
+package common.util;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PBKDF2-HMAC-SHA256 password hashing with a cost calibrated to this machine.
+ * <p>
+ * Each thread keeps its own {@link SecretKeyFactory}, so hashing never contends on
+ * a shared instance or pays the provider lookup per call. The iteration count is
+ * chosen once, on first use or by an explicit {@link #calibrate()} at startup, so
+ * that one verification takes about the number of milliseconds given by
+ * {@value #TARGET_MILLIS_PROPERTY} (default {@value #DEFAULT_TARGET_MILLIS}), and
+ * never less than {@value #MIN_ITERATIONS} iterations. Setting
+ * {@value #ITERATIONS_PROPERTY} skips calibration and uses a fixed count.
+ */
+public class PasswordHasher {
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    public static final String TARGET_MILLIS_PROPERTY = "bankcard.pbkdf2.targetMillis";
+    public static final String ITERATIONS_PROPERTY = "bankcard.pbkdf2.iterations";
+
+    public static final int MIN_ITERATIONS = 10000;
+    public static final int DEFAULT_TARGET_MILLIS = 50;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_LENGTH_BITS = 256;
+    private static final int PROBE_ITERATIONS = 20000;
+    private static final int PROBE_ROUNDS = 5;
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Hashing algorithm not available", e);
+        }
+    });
+
+    private static volatile int iterations;
+
+    /**
+     * Hashes a password with a fresh random salt and the calibrated cost.
+     * @param password The password to hash
+     * @return The parsed hash record; use {@link PasswordHash#format()} for storage
+     */
+    public static PasswordHash hash(char[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+        int cost = iterations();
+        return new PasswordHash(false, cost, salt, derive(password, salt, cost, KEY_LENGTH_BITS));
+    }
+
+    /**
+     * Derives a PBKDF2-HMAC-SHA256 key.
+     * @param password The password
+     * @param salt The salt
+     * @param iterations The iteration count
+     * @param keyLengthBits The derived key length in bits
+     * @return The derived key bytes
+     */
+    public static byte[] derive(char[] password, byte[] salt, int iterations, int keyLengthBits) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLengthBits);
+        try {
+            return FACTORY.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error hashing password", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Gets the iteration count used for new hashes, calibrating on first use.
+     * @return The iteration count
+     */
+    public static int iterations() {
+        int cost = iterations;
+        if (cost == 0) {
+            cost = calibrate();
+        }
+        return cost;
+    }
+
+    /**
+     * Measures this machine and picks the iteration count for new hashes.
+     * Call it during startup so the first login does not pay for the measurement.
+     * @return The chosen iteration count
+     */
+    public static synchronized int calibrate() {
+        if (iterations != 0) {
+            return iterations;
+        }
+        Integer fixed = Integer.getInteger(ITERATIONS_PROPERTY);
+        if (fixed != null) {
+            iterations = Math.max(MIN_ITERATIONS, fixed);
+            return iterations;
+        }
+
+        long targetNanos = Integer.getInteger(TARGET_MILLIS_PROPERTY, DEFAULT_TARGET_MILLIS) * 1_000_000L;
+        char[] probe = "calibration".toCharArray();
+        byte[] salt = new byte[SALT_LENGTH];
+        long best = Long.MAX_VALUE;
+        // The first rounds include JIT warm-up, so keep the fastest one
+        for (int i = 0; i < PROBE_ROUNDS; i++) {
+            long start = System.nanoTime();
+            Arrays.fill(derive(probe, salt, PROBE_ITERATIONS, KEY_LENGTH_BITS), (byte) 0);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long scaled = PROBE_ITERATIONS * targetNanos / Math.max(1, best);
+        iterations = (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, scaled));
+        return iterations;
+    }
+}
@@ -0,0 +1,138 @@
+package common.util;
+
+/**
+ * Table-driven digit shift cipher shared by all card encryption paths.
+ * <p>
+ * Each digit {@code d} is replaced by {@code (d + shift) mod 10} on encryption and
+ * {@code (d - shift) mod 10} on decryption; every other character is left unchanged.
+ * The substitutions for all ten shifts are precomputed in 10x10 tables, so the
+ * kernels are a single table load per character and work in place on
+ * {@code char[]} and {@code byte[]} buffers without creating intermediate Strings.
+ */
+public class ShiftCipher {
+    // Row s holds the ASCII substitute of every digit for shift s
+    private static final byte[][] ENCRYPT_TABLE = new byte[10][10];
+    private static final byte[][] DECRYPT_TABLE = new byte[10][10];
+
+    static {
+        for (int shift = 0; shift < 10; shift++) {
+            for (int d = 0; d < 10; d++) {
+                ENCRYPT_TABLE[shift][d] = (byte) ('0' + (d + shift) % 10);
+                DECRYPT_TABLE[shift][d] = (byte) ('0' + (d - shift + 10) % 10);
+            }
+        }
+    }
+
+    /**
+     * Encrypts a card number into a new String.
+     *
+     * @param cardNumber the card number; non-digit characters are copied unchanged
+     * @param shift the shift value
+     * @return the encrypted card number
+     */
+    public static String encrypt(CharSequence cardNumber, int shift) {
+        return transform(cardNumber, ENCRYPT_TABLE[normalize(shift)]);
+    }
+
+    /**
+     * Decrypts card data into a new String.
+     *
+     * @param encryptedData the encrypted card data; non-digit characters are copied unchanged
+     * @param shift the shift value used for encryption
+     * @return the decrypted card number
+     */
+    public static String decrypt(CharSequence encryptedData, int shift) {
+        return transform(encryptedData, DECRYPT_TABLE[normalize(shift)]);
+    }
+
+    /**
+     * Encrypts the digits in {@code chars[offset, offset + length)} in place.
+     */
+    public static void encrypt(char[] chars, int offset, int length, int shift) {
+        apply(chars, offset, length, ENCRYPT_TABLE[normalize(shift)]);
+    }
+
+    /**
+     * Decrypts the digits in {@code chars[offset, offset + length)} in place.
+     */
+    public static void decrypt(char[] chars, int offset, int length, int shift) {
+        apply(chars, offset, length, DECRYPT_TABLE[normalize(shift)]);
+    }
+
+    /**
+     * Encrypts the ASCII digits in {@code bytes[offset, offset + length)} in place.
+     * For a uniform shift this is also the bulk mode: pass the whole record buffer at once.
+     */
+    public static void encrypt(byte[] bytes, int offset, int length, int shift) {
+        apply(bytes, offset, length, ENCRYPT_TABLE[normalize(shift)]);
+    }
+
+    /**
+     * Decrypts the ASCII digits in {@code bytes[offset, offset + length)} in place.
+     * For a uniform shift this is also the bulk mode: pass the whole record buffer at once.
+     */
+    public static void decrypt(byte[] bytes, int offset, int length, int shift) {
+        apply(bytes, offset, length, DECRYPT_TABLE[normalize(shift)]);
+    }
+
+    /**
+     * Encrypts fixed-width records in place, each with its own shift.
+     *
+     * @param bytes the buffer holding the records
+     * @param offset the index of the first record
+     * @param recordWidth the size of each record in bytes
+     * @param shifts the shift of each record; its length is the record count
+     */
+    public static void encryptRecords(byte[] bytes, int offset, int recordWidth, int[] shifts) {
+        for (int i = 0, p = offset; i < shifts.length; i++, p += recordWidth) {
+            apply(bytes, p, recordWidth, ENCRYPT_TABLE[normalize(shifts[i])]);
+        }
+    }
+
+    /**
+     * Decrypts fixed-width records in place, each with its own shift.
+     *
+     * @param bytes the buffer holding the records
+     * @param offset the index of the first record
+     * @param recordWidth the size of each record in bytes
+     * @param shifts the shift of each record; its length is the record count
+     */
+    public static void decryptRecords(byte[] bytes, int offset, int recordWidth, int[] shifts) {
+        for (int i = 0, p = offset; i < shifts.length; i++, p += recordWidth) {
+            apply(bytes, p, recordWidth, DECRYPT_TABLE[normalize(shifts[i])]);
+        }
+    }
+
+    private static int normalize(int shift) {
+        return Math.floorMod(shift, 10);
+    }
+
+    private static String transform(CharSequence input, byte[] table) {
+        int length = input.length();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            int d = c - '0';
+            chars[i] = d >= 0 && d <= 9 ? (char) table[d] : c;
+        }
+        return new String(chars);
+    }
+
+    private static void apply(char[] chars, int offset, int length, byte[] table) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int d = chars[i] - '0';
+            if (d >= 0 && d <= 9) {
+                chars[i] = (char) table[d];
+            }
+        }
+    }
+
+    private static void apply(byte[] bytes, int offset, int length, byte[] table) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d >= 0 && d <= 9) {
+                bytes[i] = table[d];
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package common.util;
+
+/**
+ * {@link CipherEngine} for the digit shift cipher; the parameter is the shift value.
+ */
+public class ShiftCipherEngine implements CipherEngine {
+    public static final byte TAG = 1;
+    public static final String NAME = "SHIFT";
+
+    @Override
+    public byte getTag() {
+        return TAG;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void encrypt(char[] chars, int offset, int length, int parameter) {
+        ShiftCipher.encrypt(chars, offset, length, parameter);
+    }
+
+    @Override
+    public void decrypt(char[] chars, int offset, int length, int parameter) {
+        ShiftCipher.decrypt(chars, offset, length, parameter);
+    }
+
+    @Override
+    public String encrypt(CharSequence cardNumber, int parameter) {
+        return ShiftCipher.encrypt(cardNumber, parameter);
+    }
+
+    @Override
+    public String decrypt(CharSequence encryptedData, int parameter) {
+        return ShiftCipher.decrypt(encryptedData, parameter);
+    }
+}
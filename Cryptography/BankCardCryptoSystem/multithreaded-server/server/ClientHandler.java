@@ -1,18 +1,46 @@
 package multithreaded.server;
 
+import common.util.BinaryProtocol;
+import common.util.ErrorHandler;
+import common.util.FrameCodec;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * Handles communication with a single client connection in a separate thread.
+ * <p>
+ * The handler reads a blocking channel and frames commands with a {@link FrameCodec}, so
+ * a command may arrive over several reads and a client may pipeline many in one write.
+ * A client that opens with {@link BinaryProtocol#HANDSHAKE} speaks the binary protocol.
+ * Commands carrying a request id are answered as they complete, possibly out of order;
+ * for an untagged text command it waits for the response before running the next, so
+ * it is meant for a thread of its own, ideally a virtual one: waiting parks the virtual
+ * thread, and nothing on the command path holds a monitor while it waits, so the
+ * carrier thread is free to run other connections meanwhile.
  */
 public class ClientHandler implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
     private final SocketChannel clientChannel;
     private final CommandProcessor commandProcessor;
-    private String sessionId;
-    private boolean isRunning;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile String sessionId;
+    private volatile boolean isRunning;
+    // Set by the first read, before any command runs
+    private FrameCodec codec;
+    // The latest LOGIN or RESUME, answered or not; used only by the handler thread
+    private CompletableFuture<String> loginInFlight;
 
     /**
      * Creates a new ClientHandler for the given client channel.
@@ -27,51 +55,229 @@ public class ClientHandler implements Runnable {
 
     @Override
     public void run() {
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        List<ByteBuffer> responses = new ArrayList<>();
         
         try {
             while (isRunning && clientChannel.isConnected()) {
-                // Read request
+                // Read whatever has arrived; it may hold part of a command or several
                 buffer.clear();
                 int bytesRead = clientChannel.read(buffer);
                 if (bytesRead == -1) {
                     break; // Client disconnected
                 }
-
-                String request = new String(buffer.array(), 0, bytesRead, StandardCharsets.UTF_8).trim();
-                System.out.println("Received: " + request);
-
-                // Process command
-                String response = commandProcessor.processCommand(request, sessionId);
-                
-                // Handle session management
-                if (response.startsWith("AUTH_SUCCESS")) {
-                    sessionId = response.split("\\s+")[1];
-                } else if (response.equals("LOGOUT_SUCCESS")) {
-                    sessionId = null;
+                buffer.flip();
+                if (codec == null) {
+                    if (bytesRead == 0) {
+                        continue;
+                    }
+                    // The first byte tells how this client frames its commands
+                    codec = new FrameCodec(FrameCodec.detect(buffer.get(0)), Reactor.MAX_COMMAND_BYTES);
+                    if (codec.getFraming() == FrameCodec.Framing.VARINT_PREFIXED) {
+                        // Binary protocol: take the handshake and echo it to agree
+                        buffer.get();
+                        responses.add(ByteBuffer.wrap(new byte[] {BinaryProtocol.HANDSHAKE}));
+                    }
                 }
+                codec.feed(buffer);
 
-                // Send response
-                sendResponse(response);
+                try {
+                    byte[] frame;
+                    while ((frame = codec.next()) != null) {
+                        byte[] response = handle(frame);
+                        if (response != null) {
+                            responses.add(ByteBuffer.wrap(response));
+                        }
+                    }
+                } catch (FrameCodec.FrameTooLongException e) {
+                    // The stream cannot be resynchronized; answer what came before and close
+                    responses.add(ByteBuffer.wrap(encode(
+                        codec.getFraming() == FrameCodec.Framing.VARINT_PREFIXED ? 0 : BinaryProtocol.UNTAGGED, "ERROR Command too long")));
+                    isRunning = false;
+                }
+                // Answer a pipelined batch in one write
+                if (!responses.isEmpty()) {
+                    sendResponses(responses.toArray(new ByteBuffer[0]));
+                    responses.clear();
+                }
             }
         } catch (Exception e) {
-            ErrorHandler.handleException("Client handler error", e);
+            if (isRunning) {
+                ErrorHandler.handleException("Client handler error", e);
+            }
         } finally {
             closeConnection();
         }
     }
     
     /**
-     * Sends a response to the client.
-     * @param response The response to send
-     * @throws IOException If an I/O error occurs
+     * Runs the command in one frame. An untagged text command is answered before the
+     * next one runs. A command with a request id is answered whenever it completes, so
+     * a LOGIN hashing on the verifier pool does not hold up the commands behind it;
+     * only while there is no session yet do they wait for the LOGIN or RESUME.
+     * @param frame The frame
+     * @return The framed response, or null if there is none to send yet
+     */
+    private byte[] handle(byte[] frame) {
+        long requestId;
+        boolean login;
+        boolean opensSession;
+        Function<String, CompletableFuture<String>> command;
+        if (codec.getFraming() == FrameCodec.Framing.VARINT_PREFIXED) {
+            BinaryProtocol.Request request;
+            try {
+                request = BinaryProtocol.Request.decode(frame);
+            } catch (IllegalArgumentException e) {
+                return encode(BinaryProtocol.Request.peekRequestId(frame), "ERROR " + e.getMessage());
+            }
+            requestId = request.getRequestId();
+            login = request.getOpcode() == BinaryProtocol.LOGIN;
+            opensSession = login || request.getOpcode() == BinaryProtocol.RESUME;
+            command = session -> commandProcessor.processRequestAsync(request, session);
+        } else {
+            String text = new String(frame, StandardCharsets.UTF_8).trim();
+            if (text.isEmpty()) {
+                return null;
+            }
+            try {
+                requestId = BinaryProtocol.tagOf(text);
+            } catch (IllegalArgumentException e) {
+                return encode(BinaryProtocol.UNTAGGED, "ERROR " + e.getMessage());
+            }
+            if (requestId == BinaryProtocol.UNTAGGED) {
+                // LOGIN is hashed on the password verifier pool; this thread just waits
+                return encode(requestId, answer(commandProcessor.processCommandAsync(text, sessionId),
+                    CommandProcessor.isLogin(text)));
+            }
+            String body = BinaryProtocol.untag(text).trim();
+            login = CommandProcessor.isLogin(body);
+            opensSession = CommandProcessor.opensSession(body);
+            command = session -> commandProcessor.processCommandAsync(body, session);
+        }
+        
+        CompletableFuture<String> pending;
+        if (sessionId == null && loginInFlight != null && !loginInFlight.isDone()) {
+            pending = loginInFlight.thenCompose(ignored -> command.apply(sessionId));
+        } else {
+            pending = command.apply(sessionId);
+        }
+        CompletableFuture<String> answered = pending.handle((response, error) ->
+            track(error == null ? response : errorResponse(error), login));
+        if (opensSession) {
+            loginInFlight = answered;
+        }
+        if (answered.isDone()) {
+            return encode(requestId, answered.join());
+        }
+        answered.thenAccept(response -> sendLater(encode(requestId, response)));
+        return null;
+    }
+    
+    /**
+     * Waits for a command's response and updates the session state from it.
+     * @param pending The command's response
+     * @param login Whether the command is a LOGIN
+     * @return The response to send
+     */
+    private String answer(CompletableFuture<String> pending, boolean login) {
+        try {
+            return track(pending.join(), login);
+        } catch (CompletionException e) {
+            return track(errorResponse(e), login);
+        }
+    }
+    
+    /**
+     * Updates the session state from a response.
+     * @param response The response
+     * @param login Whether it answers a LOGIN
+     * @return The response to send
      */
-    private void sendResponse(String response) throws IOException {
+    private String track(String response, boolean login) {
         if (response == null) {
-            response = "ERROR No response from server";
+            return "ERROR No response from server";
+        }
+        // Handle session management
+        if (response.startsWith("AUTH_SUCCESS")) {
+            String opened = response.split("\\s+")[1];
+            if (!isRunning) {
+                // A login that finished after the client left must not leave a session
+                // behind, as the client never learned it; a resumed one is only released
+                if (login) {
+                    commandProcessor.processCommand("LOGOUT", opened);
+                } else {
+                    commandProcessor.detach(opened);
+                }
+                return response;
+            }
+            // Every LOGIN or RESUME holds its session, so the one it replaces is released
+            String previous = sessionId;
+            sessionId = opened;
+            if (previous != null) {
+                commandProcessor.detach(previous);
+            }
+        } else if ("LOGOUT_SUCCESS".equals(response)) {
+            sessionId = null;
+        }
+        return response;
+    }
+    
+    private static String errorResponse(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+            ? error.getCause() : error;
+        return cause instanceof RejectedExecutionException
+            ? "ERROR BUSY Server overloaded, try again later"
+            : "ERROR " + cause.getMessage();
+    }
+    
+    /**
+     * Frames a response in the connection's protocol.
+     * @param requestId The request id, or {@link BinaryProtocol#UNTAGGED}
+     * @param response The response
+     * @return The bytes to write
+     */
+    private byte[] encode(long requestId, String response) {
+        if (codec.getFraming() == FrameCodec.Framing.VARINT_PREFIXED) {
+            return codec.encode(BinaryProtocol.Response.encode(requestId, response));
+        }
+        return codec.encode(requestId == BinaryProtocol.UNTAGGED
+            ? response : BinaryProtocol.tag(requestId, response));
+    }
+    
+    /**
+     * Sends a response that completed after its batch was written.
+     * @param response The framed response
+     */
+    private void sendLater(byte[] response) {
+        if (!isRunning) {
+            return;
+        }
+        try {
+            sendResponses(new ByteBuffer[] {ByteBuffer.wrap(response)});
+        } catch (IOException e) {
+            if (isRunning) {
+                ErrorHandler.handleException("Error sending response", e);
+                closeConnection();
+            }
+        }
+    }
+    
+    /**
+     * Sends framed responses to the client.
+     * @param responses The responses, already framed
+     * @throws IOException If an I/O error occurs
+     */
+    private void sendResponses(ByteBuffer[] responses) throws IOException {
+        // Late responses come from other threads; a frame must not be split by another
+        writeLock.lock();
+        try {
+            ByteBuffer last = responses[responses.length - 1];
+            while (last.hasRemaining()) {
+                clientChannel.write(responses);
+            }
+        } finally {
+            writeLock.unlock();
         }
-        ByteBuffer responseBuffer = ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.UTF_8));
-        clientChannel.write(responseBuffer);
     }
     
     /**
@@ -79,14 +285,17 @@ public class ClientHandler implements Runnable {
      */
     public void closeConnection() {
         isRunning = false;
-        if (sessionId != null) {
-            commandProcessor.processCommand("LOGOUT", sessionId);
+        // The session stays open for the client to resume on a new connection
+        String held = sessionId;
+        if (held != null) {
             sessionId = null;
+            commandProcessor.detach(held);
         }
         if (clientChannel != null && clientChannel.isOpen()) {
             try {
+                SocketAddress address = clientChannel.getRemoteAddress();
                 clientChannel.close();
-                System.out.println("Client disconnected: " + clientChannel.getRemoteAddress());
+                System.out.println("Client disconnected: " + address);
             } catch (IOException e) {
                 ErrorHandler.handleException("Error closing client channel", e);
             }
@@ -3,26 +3,188 @@ package multithreaded.server;
 import common.model.CardData;
 import common.model.User;
 import common.model.AccessLevel;
+import common.store.CardCache;
+import common.store.CardFilter;
+import common.store.CardPage;
+import common.store.CardPartitions;
+import common.store.CardRepository;
+import common.store.CardStore;
+import common.store.ConnectionPool;
+import common.store.JdbcCardRepository;
+import common.store.JdbcUserRepository;
+import common.store.SessionStateStore;
+import common.store.TokenVault;
+import common.store.UserRepository;
+import common.util.BinaryProtocol;
+import common.util.CipherEngines;
+import common.util.CryptoUtil;
 import common.util.ErrorHandler;
-import common.util.SecurityUtils;
+import common.util.IinRangeIndex;
+import common.util.PasswordHasher;
 
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Processes commands received from clients.
+ * <p>
+ * A session outlives the connection that opened it. When a connection closes its
+ * session is only {@link #detach detached}, and any connection can take it up again
+ * with {@code RESUME sessionId}, also after a restart that restored it. A session no
+ * connection has used for 30 minutes expires, or after the number of seconds set by
+ * {@value #SESSION_IDLE_SECONDS_PROPERTY}; only LOGOUT ends one sooner.
  */
 public class CommandProcessor {
+    /** System property overriding how long a detached session may stay idle, in seconds. */
+    public static final String SESSION_IDLE_SECONDS_PROPERTY = "bankcard.session.idleSeconds";
+
+    private static final long DEFAULT_SESSION_IDLE_SECONDS = 30 * 60;
+    private static final long MAX_SWEEP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
     private final Map<String, User> users = new ConcurrentHashMap<>();
     private final Map<String, String> sessions = new ConcurrentHashMap<>();
-    private final Map<String, CardData> cards = new ConcurrentHashMap<>();
+    // How many connections use each session, and since when an unused one has been idle
+    private final Map<String, SessionUse> sessionUses = new ConcurrentHashMap<>();
+    private final long sessionIdleMillis = TimeUnit.SECONDS.toMillis(
+        Long.getLong(SESSION_IDLE_SECONDS_PROPERTY, DEFAULT_SESSION_IDLE_SECONDS));
+    private final AtomicLong nextSweep = new AtomicLong();
+    private final CardPartitions cards;
+    private final CardRepository cardStore;
+    private final ConnectionPool database;
+    private final UserRepository userRepository;
+    private final SessionStateStore sessionStore;
+    private final TokenVault tokens = new TokenVault();
+    private final PasswordVerifier passwordVerifier = new PasswordVerifier();
+    
+    // Cards returned by LIST when no limit is given
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    private static final int SESSION_ID_BYTES = 16;
     
-    // In-memory storage for demo (replace with database in production)
+    // Session IDs are journaled and outlive restarts, so they must not be guessable
+    private static final SecureRandom secureRandom = new SecureRandom();
+    
+    // Users and cards are kept in memory, backed by the configured storage
     public CommandProcessor() {
+        // Pick the password hashing cost now so the first login does not pay for it
+        PasswordHasher.calibrate();
+        
+        try {
+            IinRangeIndex.installConfigured();
+        } catch (IOException e) {
+            ErrorHandler.handleException("Failed to load IIN range table", e);
+        }
+        
+        // Users and cards go to the database if one is configured, otherwise cards
+        // go to the card store if a store directory is configured
+        ConnectionPool pool = null;
+        UserRepository userRepo = null;
+        CardRepository store = null;
+        try {
+            pool = ConnectionPool.openConfigured();
+            if (pool != null) {
+                userRepo = new JdbcUserRepository(pool);
+                store = new JdbcCardRepository(pool);
+            } else {
+                store = CardStore.openConfigured("multithreaded");
+            }
+        } catch (SQLException | IOException e) {
+            ErrorHandler.handleException("Failed to open card storage", e);
+        }
+        if (store != null) {
+            // Stored cards must outlive the process, and with them the key
+            CipherEngines.requirePersistentKey();
+        }
+        this.database = pool;
+        this.userRepository = userRepo;
+        this.cardStore = store;
+        
+        if (userRepository != null) {
+            userRepository.load(user -> users.put(user.getUsername(), user));
+        }
         // Add some test users
-        byte[] salt = SecurityUtils.generateSalt();
-        users.put("admin", new User("admin", 
-            SecurityUtils.hashPassword("admin123", salt), salt, AccessLevel.ADMIN));
+        if (!users.containsKey("admin")) {
+            User admin = new User("admin", CryptoUtil.hashPassword("admin123"), AccessLevel.ADMIN);
+            users.put("admin", admin);
+            if (userRepository != null) {
+                userRepository.save(admin);
+            }
+        }
+        
+        // With a store behind them, the in-memory cards can be bounded and spill to it
+        CardCache cache = CardCache.fromConfiguration();
+        if (cache != null && store == null) {
+            System.err.println(CardCache.MAX_CARDS_PROPERTY + " needs " + CardStore.DIR_PROPERTY
+                + " or " + ConnectionPool.URL_PROPERTY + " to be set; keeping every card in memory");
+        }
+        this.cards = new CardPartitions(store, cache);
+        if (store != null) {
+            store.load((owner, card) -> cards.partition(owner).put(card));
+        }
+        
+        // Restore sessions and lockouts so a restart does not log everyone out
+        SessionStateStore state = null;
+        try {
+            state = SessionStateStore.openConfigured("multithreaded");
+            if (state != null) {
+                state.restore(sessions, users);
+            }
+            // No connection uses a restored session until a client resumes it
+            long now = System.currentTimeMillis();
+            for (String sessionId : sessions.keySet()) {
+                sessionUses.put(sessionId, new SessionUse(0, now));
+            }
+        } catch (IOException e) {
+            ErrorHandler.handleException("Failed to restore sessions", e);
+        }
+        this.sessionStore = state;
+    }
+    
+    /**
+     * Processes a command from a client without blocking on password hashing.
+     * LOGIN is verified on the {@link PasswordVerifier} pool and its future completes
+     * when the hash finishes; every other command completes immediately.
+     * @param command The command string
+     * @param sessionId The client's session ID, or null if not authenticated
+     * @return A future completed with the response to send back to the client
+     */
+    public CompletableFuture<String> processCommandAsync(String command, String sessionId) {
+        if (command != null) {
+            String[] parts = command.trim().split("\\s+", 2);
+            if (parts[0].equalsIgnoreCase("LOGIN")) {
+                return handleLoginAsync(parts.length > 1 ? parts[1] : "");
+            }
+        }
+        return CompletableFuture.completedFuture(processCommand(command, sessionId));
+    }
+    
+    /**
+     * @param command A text command, without a request id tag
+     * @return Whether it is a LOGIN, which completes later than other commands
+     */
+    static boolean isLogin(String command) {
+        return isCommand(command, "LOGIN");
+    }
+    
+    /**
+     * @param command A text command, without a request id tag
+     * @return Whether it is a LOGIN or RESUME, which set the connection's session
+     */
+    static boolean opensSession(String command) {
+        return isLogin(command) || isCommand(command, "RESUME");
+    }
+    
+    private static boolean isCommand(String command, String name) {
+        return command.regionMatches(true, 0, name, 0, name.length())
+            && (command.length() == name.length() || Character.isWhitespace(command.charAt(name.length())));
     }
     
     /**
@@ -43,15 +205,23 @@ public class CommandProcessor {
         try {
             switch (cmd) {
                 case "LOGIN":
-                    return handleLogin(args);
+                    return handleLoginAsync(args).join();
                 case "LOGOUT":
                     return handleLogout(sessionId);
+                case "RESUME":
+                    return handleResume(args.trim());
                 case "ENCRYPT":
                     return handleEncrypt(args, sessionId);
                 case "DECRYPT":
                     return handleDecrypt(args, sessionId);
                 case "LIST":
-                    return handleList(sessionId);
+                    return handleList(args, sessionId);
+                case "TOKENIZE":
+                    return handleTokenize(args, sessionId);
+                case "DETOKENIZE":
+                    return handleDetokenize(args, sessionId);
+                case "STATS":
+                    return handleStats(sessionId);
                 default:
                     return "ERROR Unknown command: " + cmd;
             }
@@ -61,28 +231,188 @@ public class CommandProcessor {
         }
     }
     
-    private String handleLogin(String args) {
+    /**
+     * Processes a request from a binary protocol client. The fields arrive already
+     * parsed, so this skips the text parsing of {@link #processCommandAsync}; the
+     * response is the same text the text protocol would get.
+     * @param request The decoded request
+     * @param sessionId The client's session ID, or null if not authenticated
+     * @return A future completed with the response to send back to the client
+     */
+    public CompletableFuture<String> processRequestAsync(BinaryProtocol.Request request, String sessionId) {
+        if (request.getOpcode() == BinaryProtocol.LOGIN) {
+            return loginAsync(request.getValue(), request.getSecondValue());
+        }
+        
+        try {
+            String response;
+            switch (request.getOpcode()) {
+                case BinaryProtocol.LOGOUT:
+                    response = handleLogout(sessionId);
+                    break;
+                case BinaryProtocol.ENCRYPT:
+                    response = encrypt(request.getValue(), request.getShift(), sessionId);
+                    break;
+                case BinaryProtocol.DECRYPT:
+                    response = decrypt(request.getValue(), sessionId);
+                    break;
+                case BinaryProtocol.LIST:
+                    response = handleList(request.getValue(), sessionId);
+                    break;
+                case BinaryProtocol.TOKENIZE:
+                    response = tokenize(request.getValue(), sessionId);
+                    break;
+                case BinaryProtocol.DETOKENIZE:
+                    response = detokenize(request.getValue(), sessionId);
+                    break;
+                case BinaryProtocol.STATS:
+                    response = handleStats(sessionId);
+                    break;
+                case BinaryProtocol.RESUME:
+                    response = handleResume(request.getValue());
+                    break;
+                default:
+                    response = "ERROR Unknown opcode: " + request.getOpcode();
+                    break;
+            }
+            return CompletableFuture.completedFuture(response);
+        } catch (Exception e) {
+            ErrorHandler.handleException("Command processing error", e);
+            return CompletableFuture.completedFuture("ERROR " + e.getMessage());
+        }
+    }
+    
+    private CompletableFuture<String> handleLoginAsync(String args) {
         String[] credentials = args.split("\\s+", 2);
         if (credentials.length != 2) {
-            return "ERROR Invalid login format. Use: LOGIN username password";
+            return CompletableFuture.completedFuture("ERROR Invalid login format. Use: LOGIN username password");
         }
         
-        String username = credentials[0];
-        String password = credentials[1];
-        
+        return loginAsync(credentials[0], credentials[1]);
+    }
+    
+    private CompletableFuture<String> loginAsync(String username, String password) {
         User user = users.get(username);
-        if (user == null || !user.validatePassword(password)) {
-            return "ERROR Invalid username or password";
+        if (user == null) {
+            return CompletableFuture.completedFuture("ERROR Invalid username or password");
         }
         
-        String sessionId = generateSessionId();
-        sessions.put(sessionId, username);
+        return passwordVerifier.verify(user, password).handle((valid, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if (cause instanceof RejectedExecutionException) {
+                    return "ERROR BUSY Too many logins in progress, try again later";
+                }
+                ErrorHandler.handleException("Login error", cause);
+                return "ERROR " + cause.getMessage();
+            }
+            if (sessionStore != null) {
+                sessionStore.loginStateChanged(user);
+            }
+            if (userRepository != null) {
+                userRepository.save(user);
+            }
+            if (!valid) {
+                return "ERROR Invalid username or password";
+            }
+            String sessionId = generateSessionId();
+            sessionUses.put(sessionId, new SessionUse(1, 0));
+            sessions.put(sessionId, username);
+            if (sessionStore != null) {
+                sessionStore.sessionOpened(sessionId, username);
+            }
+            expireIdleSessions();
+            return "AUTH_SUCCESS " + sessionId;
+        });
+    }
+    
+    /**
+     * Attaches a connection to a session opened earlier, possibly on another connection
+     * or before a restart.
+     * @param sessionId The session ID
+     * @return {@code AUTH_SUCCESS sessionId}, as for a LOGIN, or an error if there is no such session
+     */
+    private String handleResume(String sessionId) {
+        if (sessionId.isEmpty() || sessionId.contains(" ")) {
+            return "ERROR Invalid format. Use: RESUME sessionId";
+        }
+        expireIdleSessions();
+        expireIfIdle(sessionId, System.currentTimeMillis());
+        if (sessionUses.computeIfPresent(sessionId, (id, use) -> use.attach()) == null) {
+            return "ERROR Invalid or expired session";
+        }
         return "AUTH_SUCCESS " + sessionId;
     }
     
+    /**
+     * Releases a connection's hold on its session without ending it. Called when the
+     * connection closes; the session stays open for a RESUME until it has been idle
+     * for the session idle time.
+     * @param sessionId The session ID the connection held
+     */
+    public void detach(String sessionId) {
+        long now = System.currentTimeMillis();
+        sessionUses.computeIfPresent(sessionId, (id, use) -> use.detach(now));
+        expireIdleSessions();
+    }
+    
+    /**
+     * Ends sessions that no connection has used for the idle time, looking at most
+     * once a minute.
+     */
+    private void expireIdleSessions() {
+        long now = System.currentTimeMillis();
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + Math.min(sessionIdleMillis, MAX_SWEEP_MILLIS))) {
+            return;
+        }
+        for (String sessionId : sessionUses.keySet()) {
+            expireIfIdle(sessionId, now);
+        }
+    }
+    
+    private void expireIfIdle(String sessionId, long now) {
+        boolean[] expired = new boolean[1];
+        sessionUses.computeIfPresent(sessionId, (id, use) -> {
+            expired[0] = use.connections == 0 && now - use.idleSince >= sessionIdleMillis;
+            return expired[0] ? null : use;
+        });
+        if (expired[0]) {
+            closeSession(sessionId);
+        }
+    }
+    
+    private void closeSession(String sessionId) {
+        if (sessions.remove(sessionId) != null && sessionStore != null) {
+            sessionStore.sessionClosed(sessionId);
+        }
+    }
+    
+    /**
+     * Releases the resources held by this processor.
+     */
+    public void shutdown() {
+        passwordVerifier.shutdown();
+        tokens.close();
+        if (cardStore != null) {
+            cardStore.close();
+        }
+        if (userRepository != null) {
+            userRepository.close();
+        }
+        if (database != null) {
+            database.close();
+        }
+        if (sessionStore != null) {
+            sessionStore.close();
+        }
+    }
+    
     private String handleLogout(String sessionId) {
         if (sessionId != null) {
-            sessions.remove(sessionId);
+            sessionUses.remove(sessionId);
+            closeSession(sessionId);
         }
         return "LOGOUT_SUCCESS";
     }
@@ -98,23 +428,48 @@ public class CommandProcessor {
         }
         
         try {
-            String cardNumber = parts[0];
-            int shift = Integer.parseInt(parts[1]);
-            
-            if (!CardData.validate(cardNumber)) {
-                return "ERROR Invalid card number";
-            }
-            
-            CardData card = new CardData(cardNumber, shift);
-            String encrypted = card.encrypt();
-            cards.put(encrypted, card);
-            
-            return "ENCRYPTED " + encrypted;
+            return encrypt(parts[0], Integer.parseInt(parts[1]), sessionId);
         } catch (NumberFormatException e) {
             return "ERROR Invalid shift value";
         }
     }
     
+    private String encrypt(String cardNumber, int shift, String sessionId) {
+        String owner = ownerOf(sessionId);
+        if (owner == null) {
+            return "ERROR Not authenticated";
+        }
+        if (!CardData.validate(cardNumber)) {
+            return "ERROR Invalid card number";
+        }
+        // Stored as bare digits, whatever separators the client used
+        cardNumber = CardData.digitsOf(cardNumber);
+        
+        // A number the user already stored is not encrypted or written again; the
+        // response says so, since its ciphertext keeps its original shift and cipher
+        CardPartitions.Partition partition = cards.partition(owner);
+        CardData existing = partition.findDuplicate(cardNumber);
+        if (existing != null) {
+            return "DUPLICATE " + existing.getEncryptedData();
+        }
+        
+        CardData card = new CardData(cardNumber, shift, CipherEngines.getDefault());
+        String encrypted = card.encrypt();
+        // Checked again under the partition's lock, so a concurrent ENCRYPT of the same
+        // number stores it once; written to the store first, since the cache may evict
+        // the card straight away
+        existing = partition.putIfAbsent(card, stored -> {
+            if (cardStore != null) {
+                cardStore.save(owner, stored);
+            }
+        });
+        if (existing != null) {
+            return "DUPLICATE " + existing.getEncryptedData();
+        }
+        
+        return "ENCRYPTED " + encrypted;
+    }
+    
     private String handleDecrypt(String args, String sessionId) {
         if (!isAuthenticated(sessionId)) {
             return "ERROR Not authenticated";
@@ -126,44 +481,238 @@ public class CommandProcessor {
         }
         
         try {
-            String encryptedData = parts[0];
-            int shift = Integer.parseInt(parts[1]);
-            
-            CardData card = cards.get(encryptedData);
-            if (card == null) {
-                return "ERROR Card data not found";
-            }
-            
-            String decrypted = card.decrypt();
-            return "DECRYPTED " + decrypted;
+            // The shift is checked but not needed; each card knows its own
+            Integer.parseInt(parts[1]);
         } catch (NumberFormatException e) {
             return "ERROR Invalid shift value";
         }
+        return decrypt(parts[0], sessionId);
     }
     
-    private String handleList(String sessionId) {
+    private String decrypt(String encryptedData, String sessionId) {
+        String owner = ownerOf(sessionId);
+        if (owner == null) {
+            return "ERROR Not authenticated";
+        }
+        
+        // Only the caller's own cards can be decrypted
+        CardPartitions.Partition partition = cards.find(owner);
+        CardData card = partition != null ? partition.get(encryptedData) : null;
+        if (card == null) {
+            return "ERROR Card data not found";
+        }
+        
+        String decrypted = card.decrypt();
+        return "DECRYPTED " + decrypted;
+    }
+    
+    private String handleList(String args, String sessionId) {
         if (!isAuthenticated(sessionId)) {
             return "ERROR Not authenticated";
         }
         
-        if (cards.isEmpty()) {
+        // Paging arguments are pulled out before the rest is read as filters
+        int limit = DEFAULT_LIST_LIMIT;
+        String cursor = null;
+        StringBuilder filters = new StringBuilder();
+        for (String arg : args.trim().split("\\s+")) {
+            String lower = arg.toLowerCase();
+            if (lower.startsWith("limit=")) {
+                try {
+                    limit = Integer.parseInt(arg.substring(6));
+                } catch (NumberFormatException e) {
+                    return "ERROR Invalid limit: " + arg.substring(6);
+                }
+                if (limit <= 0) {
+                    return "ERROR Invalid limit: " + limit;
+                }
+            } else if (lower.startsWith("cursor=")) {
+                cursor = arg.substring(7);
+            } else {
+                filters.append(arg).append(' ');
+            }
+        }
+        
+        // Only the caller's partition is searched
+        CardPartitions.Partition partition = cards.find(sessions.get(sessionId));
+        CardPage page;
+        try {
+            CardFilter filter = parseFilter(filters.toString());
+            if (partition == null) {
+                return "No cards stored";
+            }
+            page = partition.findPage(filter, cursor, limit);
+        } catch (IllegalArgumentException e) {
+            return "ERROR " + e.getMessage();
+        }
+        
+        if (page.getCards().isEmpty() && cursor == null) {
             return "No cards stored";
         }
         
         StringBuilder result = new StringBuilder("STORED CARDS:\\n");
-        cards.forEach((encrypted, card) -> {
-            result.append(String.format("- %s (shift: %d)\\n", 
-                encrypted, card.getEncryptionShift()));
-        });
+        for (CardData card : page.getCards()) {
+            result.append(String.format("- %s (shift: %d, cipher: %s)\\n", 
+                card.getEncryptedData(), card.getEncryptionShift(),
+                CipherEngines.forTag(card.getCipherTag()).getName()));
+        }
+        if (page.hasMore()) {
+            result.append("NEXT ").append(page.getNextCursor());
+        }
         return result.toString();
     }
     
+    private String handleTokenize(String args, String sessionId) {
+        if (!isAuthenticated(sessionId)) {
+            return "ERROR Not authenticated";
+        }
+        
+        String cardNumber = args.trim();
+        if (cardNumber.isEmpty() || cardNumber.contains(" ")) {
+            return "ERROR Invalid format. Use: TOKENIZE cardNumber";
+        }
+        return tokenize(cardNumber, sessionId);
+    }
+    
+    private String tokenize(String cardNumber, String sessionId) {
+        String owner = ownerOf(sessionId);
+        if (owner == null) {
+            return "ERROR Not authenticated";
+        }
+        if (!CardData.validate(cardNumber)) {
+            return "ERROR Invalid card number";
+        }
+        try {
+            return "TOKEN " + tokens.tokenize(owner, cardNumber);
+        } catch (IllegalArgumentException e) {
+            return "ERROR Invalid card number";
+        }
+    }
+    
+    private String handleDetokenize(String args, String sessionId) {
+        if (!isAuthenticated(sessionId)) {
+            return "ERROR Not authenticated";
+        }
+        
+        String token = args.trim();
+        if (token.isEmpty() || token.contains(" ")) {
+            return "ERROR Invalid format. Use: DETOKENIZE token";
+        }
+        return detokenize(token, sessionId);
+    }
+    
+    private String detokenize(String token, String sessionId) {
+        String owner = ownerOf(sessionId);
+        if (owner == null) {
+            return "ERROR Not authenticated";
+        }
+        
+        // Only tokens issued to the caller can be resolved
+        String cardNumber = tokens.detokenize(owner, token);
+        if (cardNumber == null) {
+            return "ERROR Token not found";
+        }
+        return "CARD " + cardNumber;
+    }
+    
+    private String handleStats(String sessionId) {
+        if (!isAuthenticated(sessionId)) {
+            return "ERROR Not authenticated";
+        }
+        
+        CardCache cache = cards.getCache();
+        return "STATS cards=" + cards.size() + " partitions=" + cards.partitionCount()
+            + " tokens=" + tokens.size() + " filteredMisses=" + cards.filteredMisses()
+            + (cache != null ? " " + cache : "");
+    }
+    
+    /**
+     * Parses LIST filters of the form {@code key=value}: last4, bin, brand (use _ for
+     * spaces), owner, from and to (epoch millis). Paging is set separately with
+     * {@code limit=N} and {@code cursor=TOKEN}; a page with more after it ends in
+     * {@code NEXT TOKEN}.
+     * @param args The arguments after LIST
+     * @return The filter
+     * @throws IllegalArgumentException If an argument is not a known filter
+     */
+    private CardFilter parseFilter(String args) {
+        CardFilter filter = new CardFilter();
+        if (args.trim().isEmpty()) {
+            return filter;
+        }
+        for (String arg : args.trim().split("\\s+")) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Invalid filter: " + arg + ". Use: LIST [key=value ...]");
+            }
+            String key = arg.substring(0, eq).toLowerCase();
+            String value = arg.substring(eq + 1);
+            try {
+                switch (key) {
+                    case "last4":
+                        filter.setLast4(value);
+                        break;
+                    case "bin":
+                        filter.setBinPrefix(value);
+                        break;
+                    case "brand":
+                        filter.setBrand(value.replace('_', ' '));
+                        break;
+                    case "owner":
+                        filter.setOwner(value);
+                        break;
+                    case "from":
+                        filter.setCreatedFrom(Long.parseLong(value));
+                        break;
+                    case "to":
+                        filter.setCreatedTo(Long.parseLong(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown filter: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid time value: " + value);
+            }
+        }
+        return filter;
+    }
+    
     private boolean isAuthenticated(String sessionId) {
         return sessionId != null && sessions.containsKey(sessionId);
     }
     
+    private String ownerOf(String sessionId) {
+        return sessionId != null ? sessions.get(sessionId) : null;
+    }
+    
     private String generateSessionId() {
-        return "SESS_" + System.currentTimeMillis() + "_" + 
-               (int)(Math.random() * 1000);
+        byte[] bytes = new byte[SESSION_ID_BYTES];
+        secureRandom.nextBytes(bytes);
+        return "SESS_" + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+    
+    /**
+     * The connections using one session; changed only inside the map's compute methods.
+     */
+    private static final class SessionUse {
+        private int connections;
+        private long idleSince;
+        
+        SessionUse(int connections, long idleSince) {
+            this.connections = connections;
+            this.idleSince = idleSince;
+        }
+        
+        SessionUse attach() {
+            connections++;
+            return this;
+        }
+        
+        SessionUse detach(long now) {
+            if (connections > 0 && --connections == 0) {
+                idleSince = now;
+            }
+            return this;
+        }
     }
 }
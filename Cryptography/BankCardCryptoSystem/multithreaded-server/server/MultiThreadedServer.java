@@ -2,23 +2,60 @@ package multithreaded.server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A multi-threaded server that handles multiple client connections using Java NIO.
+ * <p>
+ * One acceptor thread takes new connections and deals them out in turn to a set of
+ * {@link Reactor}s, one per core by default. Each reactor owns its connections' reads
+ * and writes on its own selector; commands run on a bounded worker pool, and a
+ * command that finds the pool's queue full is answered with {@code ERROR BUSY}.
+ * <p>
+ * With {@value #MODE_PROPERTY} set to {@code virtual}, each connection instead gets a
+ * {@link ClientHandler} on its own virtual thread, reading a blocking channel; on a
+ * runtime without virtual threads it falls back to platform threads, which is also
+ * what {@code platform} selects.
  */
 public class MultiThreadedServer {
+    /** System property setting the number of reactors; defaults to one per core. */
+    public static final String REACTORS_PROPERTY = "bankcard.server.reactors";
+    /** System property setting the number of command worker threads; defaults to one per core. */
+    public static final String WORKERS_PROPERTY = "bankcard.server.workers";
+    /** System property setting how many commands may wait for a worker. */
+    public static final String QUEUE_CAPACITY_PROPERTY = "bankcard.server.queueCapacity";
+    /** System property choosing how connections are served: reactor, virtual or platform. */
+    public static final String MODE_PROPERTY = "bankcard.server.mode";
+
+    public static final String MODE_REACTOR = "reactor";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_PLATFORM = "platform";
+
+    private static final int DEFAULT_QUEUE_PER_WORKER = 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+
     private final int port;
     private ServerSocketChannel serverChannel;
     private Selector selector;
-    private boolean isServerWorking;
-    private final ExecutorService executorService;
+    private volatile boolean isServerWorking;
+    private final ThreadPoolExecutor executorService;
     private final CommandProcessor commandProcessor;
+    private final Reactor[] reactors;
+    private final String mode;
+    // Connections served by their own thread, when not in reactor mode
+    private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private int nextReactor;
 
     /**
      * Creates a new MultiThreadedServer instance.
@@ -26,7 +63,20 @@ public class MultiThreadedServer {
      */
     public MultiThreadedServer(int port) {
         this.port = port;
-        this.executorService = Executors.newCachedThreadPool();
+        int cores = Runtime.getRuntime().availableProcessors();
+        int workers = Integer.getInteger(WORKERS_PROPERTY, cores);
+        this.executorService = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Integer.getInteger(QUEUE_CAPACITY_PROPERTY,
+                        workers * DEFAULT_QUEUE_PER_WORKER)),
+                new NamedThreadFactory("command-worker-"), new ThreadPoolExecutor.AbortPolicy());
+        this.reactors = new Reactor[Math.max(1, Integer.getInteger(REACTORS_PROPERTY, cores))];
+        String configuredMode = System.getProperty(MODE_PROPERTY, MODE_REACTOR).trim().toLowerCase();
+        if (!configuredMode.equals(MODE_REACTOR) && !configuredMode.equals(MODE_VIRTUAL)
+                && !configuredMode.equals(MODE_PLATFORM)) {
+            System.err.println("Unknown " + MODE_PROPERTY + " '" + configuredMode + "'; using " + MODE_REACTOR);
+            configuredMode = MODE_REACTOR;
+        }
+        this.mode = configuredMode;
         this.commandProcessor = new CommandProcessor();
         
         // Add shutdown hook to ensure clean server shutdown
@@ -38,73 +88,139 @@ public class MultiThreadedServer {
      */
     public void start() {
         try {
-            // Open a selector
-            selector = Selector.open();
-            
-            // Open a server socket channel
-            serverChannel = ServerSocketChannel.open();
-            serverChannel.bind(new InetSocketAddress(port));
-            serverChannel.configureBlocking(false);
-            
-            // Register the server socket channel with the selector for accept operations
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            if (mode.equals(MODE_REACTOR)) {
+                runReactors();
+            } else {
+                runThreadPerConnection();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (isServerWorking) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+        } finally {
+            stop();
+        }
+    }
+    
+    private void runReactors() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor("reactor-" + (i + 1), commandProcessor, executorService);
+            reactors[i].start();
+        }
+        
+        // Open a selector
+        selector = Selector.open();
+        
+        // Open a server socket channel
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        
+        // Register the server socket channel with the selector for accept operations
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        
+        System.out.println("Server started on port " + port + " with " + reactors.length
+            + " reactors and " + executorService.getCorePoolSize() + " workers");
+        isServerWorking = true;
+        
+        // Accept loop; the reactors do everything else
+        while (isServerWorking) {
+            // Wait for events
+            int readyChannels = selector.select();
+            if (readyChannels == 0) {
+                if (!isServerWorking) {
+                    break; // Server is shutting down
+                }
+                continue;
+            }
             
-            System.out.println("Server started on port " + port);
-            isServerWorking = true;
+            // Process selected keys
+            Set<SelectionKey> selectedKeys = selector.selectedKeys();
+            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
             
-            // Main server loop
-            while (isServerWorking) {
-                // Wait for events
-                int readyChannels = selector.select();
-                if (readyChannels == 0) {
-                    if (!isServerWorking) {
-                        break; // Server is shutting down
-                    }
-                    continue;
-                }
+            while (keyIterator.hasNext()) {
+                SelectionKey key = keyIterator.next();
                 
-                // Process selected keys
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-                
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    
-                    if (key.isAcceptable()) {
-                        // Accept a new connection
-                        acceptConnection();
-                    } else if (key.isReadable()) {
-                        // Handle client read in a separate thread
-                        handleClientRead(key);
-                    }
-                    
-                    keyIterator.remove();
+                if (key.isAcceptable()) {
+                    acceptConnections();
                 }
+                
+                keyIterator.remove();
             }
-        } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
-        } finally {
-            stop();
         }
     }
     
-    private void acceptConnection() throws IOException {
-        SocketChannel clientChannel = serverChannel.accept();
-        clientChannel.configureBlocking(false);
-        
-        // Create a new client handler for this connection
-        ClientHandler clientHandler = new ClientHandler(clientChannel, commandProcessor);
+    private void runThreadPerConnection() throws IOException {
+        ThreadFactory factory = null;
+        if (mode.equals(MODE_VIRTUAL)) {
+            factory = virtualThreadFactory("client-");
+            if (factory == null) {
+                System.err.println("Virtual threads need Java 21 or later; using platform threads");
+            }
+        }
+        if (factory == null) {
+            factory = new NamedThreadFactory("client-");
+        }
         
-        // Start the client handler in a new thread
-        new Thread(clientHandler).start();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        System.out.println("Server started on port " + port + " with a "
+            + (factory instanceof NamedThreadFactory ? "platform" : "virtual") + " thread per connection");
+        isServerWorking = true;
         
-        System.out.println("Client connected: " + clientChannel.getRemoteAddress());
+        // Blocking accept; stop() closes the channel to end it
+        while (isServerWorking) {
+            SocketChannel clientChannel = serverChannel.accept();
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ClientHandler handler = new ClientHandler(clientChannel, commandProcessor);
+            handlers.add(handler);
+            factory.newThread(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    handlers.remove(handler);
+                }
+            }).start();
+        }
     }
     
-    private void handleClientRead(SelectionKey key) {
-        // This method is no longer used as we're handling clients in ClientHandler
-        // Keeping it for backward compatibility
-        key.interestOps(0); // Disable further read events
+    /**
+     * Looks up {@code Thread.ofVirtual().name(prefix, 1).factory()} reflectively, so the
+     * server still builds for Java 11.
+     * @param prefix The thread name prefix
+     * @return The factory, or null if the runtime has no virtual threads
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    private void acceptConnections() throws IOException {
+        // Drain the backlog so a burst of connects needs one wakeup
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            reactors[nextReactor].register(clientChannel);
+            nextReactor = (nextReactor + 1) % reactors.length;
+        }
+    }
+    
+    /**
+     * @return The number of open client connections
+     */
+    public int getConnectionCount() {
+        int count = handlers.size();
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                count += reactor.getConnectionCount();
+            }
+        }
+        return count;
     }
     
     /**
@@ -112,12 +228,26 @@ public class MultiThreadedServer {
      */
     public void stop() {
         isServerWorking = false;
+        // Called by both the shutdown hook and the accept loop on its way out
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
         
         // Wake up the selector to exit the select() call
         if (selector != null) {
             selector.wakeup();
         }
         
+        // Close client connections before their workers go away
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                reactor.stop();
+            }
+        }
+        for (ClientHandler handler : handlers) {
+            handler.stop();
+        }
+        
         // Shutdown the executor service
         executorService.shutdown();
         try {
@@ -129,6 +259,9 @@ public class MultiThreadedServer {
             Thread.currentThread().interrupt();
         }
         
+        // Stop the password verifier pool
+        commandProcessor.shutdown();
+        
         // Close server channel
         if (serverChannel != null) {
             try {
@@ -150,53 +283,33 @@ public class MultiThreadedServer {
         System.out.println("Server stopped");
     }
     
-    public static void main(String[] args) {
-        int port = 8080; // Default port
-        if (args.length > 0) {
-        buffer.clear();
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
 
-        int readBytes = clientChannel.read(buffer);
-        if (readBytes < 0) {
-            return null;
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
         }
 
-        buffer.flip();
-        byte[] clientInputBytes = new byte[buffer.remaining()];
-        buffer.get(clientInputBytes);
-
-        return new String(clientInputBytes, StandardCharsets.UTF_8);
-    }
-
-    private void writeClientOutput(SocketChannel clientChannel, String output) throws IOException {
-        if (output == null || output.isEmpty()) {
-            return;
-        }
-        
-        buffer.clear();
-        buffer.put(output.getBytes(StandardCharsets.UTF_8));
-        buffer.flip();
-        
-        while (buffer.hasRemaining()) {
-            clientChannel.write(buffer);
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
         }
     }
-
-    private void accept(Selector selector, SelectionKey key) throws IOException {
-        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-        SocketChannel clientChannel = serverChannel.accept();
-        clientChannel.configureBlocking(false);
-        clientChannel.register(selector, SelectionKey.OP_READ);
-        System.out.println("New client connected: " + clientChannel.getRemoteAddress());
-    }
-
-    private void closeClient(SocketChannel clientChannel) {
-        if (clientChannel != null && clientChannel.isOpen()) {
+    
+    public static void main(String[] args) {
+        int port = 8080; // Default port
+        if (args.length > 0) {
             try {
-                System.out.println("Client disconnected: " + clientChannel.getRemoteAddress());
-                clientChannel.close();
-            } catch (IOException e) {
-                System.err.println("Error closing client channel: " + e.getMessage());
+                port = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid port number. Using default port " + port);
             }
         }
+
+        MultiThreadedServer server = new MultiThreadedServer(port);
+        server.start();
     }
 }
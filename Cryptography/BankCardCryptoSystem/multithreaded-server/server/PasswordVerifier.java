@@ -0,0 +1,176 @@
+package multithreaded.server;
+
+import common.model.User;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password verification on a dedicated, bounded pool so that expensive
+ * hashing never runs on connection threads.
+ * <p>
+ * The pool has one thread per core and a fixed-size queue. When the queue is
+ * full new attempts are rejected immediately instead of piling up, and
+ * concurrent attempts with the same username and password share a single
+ * in-flight hash computation. Attempts are matched by username and a keyed digest
+ * of the password, so the password itself is not kept while the hash runs.
+ */
+public class PasswordVerifier {
+    public static final String QUEUE_CAPACITY_PROPERTY = "bankcard.login.queueCapacity";
+
+    private static final int DEFAULT_QUEUE_PER_THREAD = 32;
+    private static final String DIGEST_ALGORITHM = "HmacSHA256";
+    private static final int DIGEST_KEY_BYTES = 32;
+
+    private final ThreadPoolExecutor executor;
+    private final Map<AttemptKey, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    // Keys the password digests, so a digest left in memory cannot be looked up offline
+    private final SecretKeySpec digestKey;
+
+    /**
+     * Creates a verifier sized to the machine: one thread per core and a queue
+     * of {@value #QUEUE_CAPACITY_PROPERTY} entries (default 32 per thread).
+     */
+    public PasswordVerifier() {
+        this(Runtime.getRuntime().availableProcessors(),
+             Integer.getInteger(QUEUE_CAPACITY_PROPERTY,
+                 Runtime.getRuntime().availableProcessors() * DEFAULT_QUEUE_PER_THREAD));
+    }
+
+    /**
+     * Creates a verifier with an explicit size.
+     * @param threads The number of hashing threads
+     * @param queueCapacity The number of attempts that may wait for a thread
+     */
+    public PasswordVerifier(int threads, int queueCapacity) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new VerifierThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        byte[] key = new byte[DIGEST_KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        this.digestKey = new SecretKeySpec(key, DIGEST_ALGORITHM);
+        Arrays.fill(key, (byte) 0);
+    }
+
+    /**
+     * Verifies a password asynchronously.
+     * @param user The user logging in
+     * @param password The password to check
+     * @return A future completed with the result, or completed exceptionally with
+     *         {@link RejectedExecutionException} if the verifier is saturated
+     */
+    public CompletableFuture<Boolean> verify(User user, String password) {
+        AttemptKey key = new AttemptKey(user.getUsername(), digest(password));
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    created.complete(user.validatePassword(password));
+                } catch (Throwable t) {
+                    created.completeExceptionally(t);
+                } finally {
+                    inFlight.remove(key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    /**
+     * @param password A password
+     * @return Its digest under this verifier's key
+     */
+    private byte[] digest(String password) {
+        byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            Mac mac = Mac.getInstance(DIGEST_ALGORITHM);
+            mac.init(digestKey);
+            return mac.doFinal(bytes);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * @return The number of attempts waiting for a hashing thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting attempts and waits briefly for running ones to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Identifies attempts that can share one hash computation.
+     */
+    private static final class AttemptKey {
+        private final String username;
+        private final byte[] passwordDigest;
+        private final int hash;
+
+        AttemptKey(String username, byte[] passwordDigest) {
+            this.username = username;
+            this.passwordDigest = passwordDigest;
+            this.hash = 31 * username.hashCode() + Arrays.hashCode(passwordDigest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof AttemptKey)) return false;
+            AttemptKey other = (AttemptKey) o;
+            return username.equals(other.username) && Arrays.equals(passwordDigest, other.passwordDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class VerifierThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "password-verifier-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package multithreaded.server;
+
+import common.util.BinaryProtocol;
+import common.util.ErrorHandler;
+import common.util.FrameCodec;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * An event loop owning a share of the client connections.
+ * <p>
+ * Each reactor has its own selector and thread and does every read and write for its
+ * connections without blocking. Commands are framed by a {@link FrameCodec}, newline or
+ * length-prefixed as the client chose, or come as {@link BinaryProtocol} frames from a
+ * client that asked for them. Complete ones are run on the shared worker pool and
+ * answered in the same form: untagged text commands one at a time and in order, and
+ * commands carrying a request id as soon as each completes. Responses are queued back to the reactor, which writes them. An idle connection
+ * holds no thread and no buffer, only a partial command if one arrived.
+ */
+class Reactor implements Runnable {
+    /** Longest command accepted; a longer one closes the connection. */
+    static final int MAX_COMMAND_BYTES = FrameCodec.DEFAULT_MAX_FRAME_BYTES;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Commands queued on one connection before the reactor stops reading from it
+    private static final int MAX_OUTSTANDING = 64;
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final Selector selector;
+    private final CommandProcessor commandProcessor;
+    private final Executor workers;
+    private final Thread thread;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    // Used only by the reactor thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    /**
+     * Opens the reactor's selector. Call {@link #start} to run it.
+     * @param name The name of the reactor thread
+     * @param commandProcessor The command processor to handle client requests
+     * @param workers The pool commands run on
+     * @throws IOException If the selector cannot be opened
+     */
+    Reactor(String name, CommandProcessor commandProcessor, Executor workers) throws IOException {
+        this.selector = Selector.open();
+        this.commandProcessor = commandProcessor;
+        this.workers = workers;
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted connection to this reactor. Safe to call from any thread.
+     * @param channel The client's socket channel
+     */
+    void register(SocketChannel channel) {
+        registrations.add(channel);
+        wakeup();
+    }
+
+    /**
+     * @return The number of open connections owned by this reactor
+     */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                // Cleared before draining, so a request queued after this still wakes us
+                wakeupPending.set(false);
+                registerPending();
+                flushPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(connection);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                ErrorHandler.handleException("Reactor error", e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Stops the loop and closes every connection it owns.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connectionCount.incrementAndGet();
+            } catch (IOException e) {
+                ErrorHandler.handleException("Error registering client", e);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void read(Connection connection) {
+        readBuffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (bytesRead < 0) {
+            close(connection);
+            return;
+        }
+        if (bytesRead == 0) {
+            return;
+        }
+
+        // The first byte tells how this client frames its commands
+        readBuffer.flip();
+        if (connection.codec == null) {
+            connection.codec = new FrameCodec(FrameCodec.detect(readBuffer.get(0)), MAX_COMMAND_BYTES);
+            if (connection.codec.getFraming() == FrameCodec.Framing.VARINT_PREFIXED) {
+                // Binary protocol: take the handshake and echo it to agree
+                readBuffer.get();
+                connection.binary = true;
+                connection.output.add(ByteBuffer.wrap(new byte[] {BinaryProtocol.HANDSHAKE}));
+                flush(connection);
+            }
+        }
+        connection.codec.feed(readBuffer);
+        try {
+            byte[] frame;
+            while ((frame = connection.codec.next()) != null) {
+                if (connection.binary) {
+                    submitRequest(connection, frame);
+                } else {
+                    submitCommand(connection, new String(frame, StandardCharsets.UTF_8).trim());
+                }
+            }
+        } catch (FrameCodec.FrameTooLongException e) {
+            try {
+                connection.channel.write(ByteBuffer.wrap(
+                    connection.encode(connection.binary ? 0 : BinaryProtocol.UNTAGGED, "ERROR Command too long")));
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+            close(connection);
+        }
+    }
+
+    private void submitCommand(Connection connection, String command) {
+        if (command.isEmpty()) {
+            return;
+        }
+        long requestId;
+        try {
+            requestId = BinaryProtocol.tagOf(command);
+        } catch (IllegalArgumentException e) {
+            String error = "ERROR " + e.getMessage();
+            submit(connection, BinaryProtocol.UNTAGGED, false, false, sessionId -> CompletableFuture.completedFuture(error));
+            return;
+        }
+        String body = requestId == BinaryProtocol.UNTAGGED ? command : BinaryProtocol.untag(command).trim();
+        submit(connection, requestId, CommandProcessor.opensSession(body), CommandProcessor.isLogin(body),
+            sessionId -> commandProcessor.processCommandAsync(body, sessionId));
+    }
+
+    private void submitRequest(Connection connection, byte[] frame) {
+        BinaryProtocol.Request request;
+        try {
+            request = BinaryProtocol.Request.decode(frame);
+        } catch (IllegalArgumentException e) {
+            String error = "ERROR " + e.getMessage();
+            submit(connection, BinaryProtocol.Request.peekRequestId(frame), false, false,
+                sessionId -> CompletableFuture.completedFuture(error));
+            return;
+        }
+        int opcode = request.getOpcode();
+        submit(connection, request.getRequestId(), opcode == BinaryProtocol.LOGIN || opcode == BinaryProtocol.RESUME,
+            opcode == BinaryProtocol.LOGIN, sessionId -> commandProcessor.processRequestAsync(request, sessionId));
+    }
+
+    /**
+     * Runs a command on the worker pool. An untagged text command waits for the
+     * connection's earlier untagged ones, so they are answered in order. A command with
+     * a request id starts at once and may be answered before commands sent ahead of it,
+     * so a slow LOGIN does not hold up the ENCRYPTs behind it; only while the
+     * connection has no session yet does it wait for a LOGIN or RESUME in flight.
+     * @param connection The connection
+     * @param requestId The id its response carries, or {@link BinaryProtocol#UNTAGGED}
+     * @param opensSession Whether the command is a LOGIN or RESUME
+     * @param login Whether the command is a LOGIN
+     * @param command Runs the command given the session at the time it runs
+     */
+    private void submit(Connection connection, long requestId, boolean opensSession, boolean login,
+            Function<String, CompletableFuture<String>> command) {
+        if (connection.outstanding.incrementAndGet() >= MAX_OUTSTANDING && !connection.readPaused) {
+            // Stop reading until the worker pool catches up with this client
+            connection.readPaused = true;
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        CompletableFuture<?> after;
+        if (requestId == BinaryProtocol.UNTAGGED) {
+            after = connection.pending;
+        } else if (connection.sessionId == null && connection.login != null) {
+            after = connection.login;
+        } else {
+            after = DONE;
+        }
+        CompletableFuture<Void> done = after
+            .thenComposeAsync(ignored -> command.apply(connection.sessionId), workers)
+            .handle((response, error) -> {
+                connection.outstanding.decrementAndGet();
+                connection.respond(requestId, error == null ? response : errorResponse(error), login);
+                return null;
+            });
+        if (requestId == BinaryProtocol.UNTAGGED) {
+            connection.pending = done;
+        }
+        if (opensSession) {
+            connection.login = done;
+        }
+    }
+
+    private static String errorResponse(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+            ? error.getCause() : error;
+        if (cause instanceof RejectedExecutionException) {
+            return "ERROR BUSY Server overloaded, try again later";
+        }
+        return "ERROR " + cause.getMessage();
+    }
+
+    private void flushPending() {
+        Connection connection;
+        while ((connection = writable.poll()) != null) {
+            if (connection.key.isValid()) {
+                flush(connection);
+            }
+        }
+    }
+
+    private void flush(Connection connection) {
+        connection.queuedForWrite.set(false);
+        try {
+            ByteBuffer buffer;
+            while ((buffer = connection.output.peek()) != null) {
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // Socket buffer full; finish when it drains
+                    connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.output.poll();
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        int ops = connection.key.interestOps() & ~SelectionKey.OP_WRITE;
+        if (connection.readPaused && connection.outstanding.get() < MAX_OUTSTANDING / 2) {
+            connection.readPaused = false;
+            ops |= SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    private void close(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        connectionCount.decrementAndGet();
+        connection.key.cancel();
+        // The session stays open for the client to resume on a new connection
+        String sessionId = connection.sessionId;
+        if (sessionId != null) {
+            connection.sessionId = null;
+            commandProcessor.detach(sessionId);
+        }
+        closeQuietly(connection.channel);
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment());
+                }
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            ErrorHandler.handleException("Error closing reactor", e);
+        }
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            closeQuietly(channel);
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ErrorHandler.handleException("Error closing client channel", e);
+        }
+    }
+
+    /**
+     * The state of one client connection.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicBoolean queuedForWrite = new AtomicBoolean();
+        volatile String sessionId;
+        volatile boolean closed;
+        // Used only by the reactor thread
+        SelectionKey key;
+        boolean readPaused;
+        // Created on the first read; holds any partial command between reads
+        FrameCodec codec;
+        // Set on the first read, before any command is queued
+        boolean binary;
+        // Tail of the untagged command chain; each runs after the previous one answered
+        CompletableFuture<?> pending = DONE;
+        // The latest LOGIN or RESUME, answered or not
+        CompletableFuture<?> login;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Frames a response in the connection's protocol.
+         */
+        byte[] encode(long requestId, String response) {
+            if (binary) {
+                return codec.encode(BinaryProtocol.Response.encode(requestId, response));
+            }
+            return codec.encode(requestId == BinaryProtocol.UNTAGGED
+                ? response : BinaryProtocol.tag(requestId, response));
+        }
+
+        /**
+         * Updates the session state from a response and queues it for the reactor to write.
+         * Called from worker threads.
+         * @param login Whether the response answers a LOGIN
+         */
+        void respond(long requestId, String response, boolean login) {
+            if (response == null) {
+                response = "ERROR No response from server";
+            }
+            if (response.startsWith("AUTH_SUCCESS")) {
+                String opened = response.split("\\s+")[1];
+                if (closed) {
+                    // A login that finished after the client left must not leave a session
+                    // behind, as the client never learned it; a resumed one is only released
+                    if (login) {
+                        commandProcessor.processCommand("LOGOUT", opened);
+                    } else {
+                        commandProcessor.detach(opened);
+                    }
+                    return;
+                }
+                // Every LOGIN or RESUME holds its session, so the one it replaces is released
+                String previous = sessionId;
+                sessionId = opened;
+                if (previous != null) {
+                    commandProcessor.detach(previous);
+                }
+            } else if ("LOGOUT_SUCCESS".equals(response)) {
+                sessionId = null;
+            }
+            if (closed) {
+                return;
+            }
+            output.add(ByteBuffer.wrap(encode(requestId, response)));
+            if (queuedForWrite.compareAndSet(false, true)) {
+                writable.add(this);
+                wakeup();
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package rmi.server;
 
 import common.model.CardData;
+import common.store.CardFilter;
+import common.store.CardPage;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -30,12 +32,15 @@ public interface BankService extends Remote {
     boolean logout(String sessionId) throws RemoteException;
     
     /**
-     * Encrypts a card number using the specified shift value.
+     * Encrypts a card number using the specified shift value. A card number the
+     * user already stored is not stored again: its existing ciphertext is returned,
+     * encrypted with the shift and cipher it was first stored with, and {@code shift}
+     * is ignored. {@link #decryptCard} decrypts it whatever shift it is given.
      *
      * @param sessionId The session ID for authentication
      * @param cardNumber The card number to encrypt
-     * @param shift The shift value for encryption (1-9)
-     * @return The encrypted card data
+     * @param shift The shift value for encryption (1-9); ignored for a stored number
+     * @return The encrypted card data, or the stored ciphertext for a stored number
      * @throws RemoteException if a remote communication error occurs
      * @throws SecurityException if the session is invalid or user is not authorized
      */
@@ -62,9 +67,67 @@ public interface BankService extends Remote {
      * @return List of card data objects
      * @throws RemoteException if a remote communication error occurs
      * @throws SecurityException if the session is invalid or user is not authorized
+     * @deprecated The whole listing is built and sent in one response; use
+     *             {@link #listCards(String, CardFilter, String, int)} to fetch it in pages
      */
+    @Deprecated
     List<CardData> listCards(String sessionId) throws RemoteException, SecurityException;
     
+    /**
+     * Gets the current user's encrypted cards that match a filter. The owner
+     * criterion is always replaced by the current user.
+     *
+     * @param sessionId The session ID for authentication
+     * @param filter The last four digits, BIN prefix, brand and creation time criteria
+     * @return List of matching card data objects
+     * @throws RemoteException if a remote communication error occurs
+     * @throws SecurityException if the session is invalid or user is not authorized
+     * @deprecated The whole listing is built and sent in one response; use
+     *             {@link #listCards(String, CardFilter, String, int)} to fetch it in pages
+     */
+    @Deprecated
+    List<CardData> listCards(String sessionId, CardFilter filter) throws RemoteException, SecurityException;
+    
+    /**
+     * Gets one page of the current user's encrypted cards that match a filter, so a
+     * large listing is fetched in bounded responses. The owner criterion is always
+     * replaced by the current user.
+     *
+     * @param sessionId The session ID for authentication
+     * @param filter The last four digits, BIN prefix, brand and creation time criteria
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param pageSize The most cards to return, capped at 1000
+     * @return The page of matching card data objects and the cursor for the next one
+     * @throws RemoteException if a remote communication error occurs
+     * @throws SecurityException if the session is invalid or user is not authorized
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    CardPage listCards(String sessionId, CardFilter filter, String cursor, int pageSize)
+            throws RemoteException, SecurityException;
+    
+    /**
+     * Replaces a card number with a token that keeps its length and last four digits
+     * but can never pass the Luhn check.
+     *
+     * @param sessionId The session ID for authentication
+     * @param cardNumber The card number to tokenize
+     * @return The token
+     * @throws RemoteException if a remote communication error occurs or the card number is invalid
+     * @throws SecurityException if the session is invalid or user is not authorized
+     */
+    String tokenizeCard(String sessionId, String cardNumber) throws RemoteException, SecurityException;
+    
+    /**
+     * Looks up the card number behind a token issued to the current user.
+     *
+     * @param sessionId The session ID for authentication
+     * @param token The token
+     * @return The card number
+     * @throws RemoteException if a remote communication error occurs or the token is unknown
+     * @throws SecurityException if the session is invalid or user is not authorized
+     */
+    String detokenizeCard(String sessionId, String token) throws RemoteException, SecurityException;
+    
     /**
      * Validates if a session is still active.
      *
@@ -1,11 +1,36 @@
 package rmi.server;
 
+import common.model.AccessLevel;
+import common.model.CardData;
+import common.model.User;
+import common.store.CardCache;
+import common.store.CardFilter;
+import common.store.CardPage;
+import common.store.CardPartitions;
+import common.store.CardRepository;
+import common.store.CardStore;
+import common.store.ConnectionPool;
+import common.store.JdbcCardRepository;
+import common.store.JdbcUserRepository;
+import common.store.SessionStateStore;
+import common.store.TokenVault;
+import common.store.UserRepository;
+import common.util.CipherEngines;
+import common.util.CryptoUtil;
+import common.util.IinRangeIndex;
+import common.util.PasswordHasher;
+
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.HashMap;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implementation of the RMI server for bank card encryption/decryption service.
@@ -13,19 +38,101 @@ import java.util.Map;
 public class RMIServerImpl implements BankService {
     private static final int RMI_PORT = 1099;
     private static final String SERVICE_NAME = "BankCardService";
+    // Sessions expire 30 minutes after they are opened
+    private static final long SESSION_MILLIS = 30 * 60 * 1000;
     private Registry registry;
     
-    // In-memory storage for demonstration (replace with database in production)
-    private final Map<String, String> userCredentials;
-    private final Map<String, String> cardData;
+    // Users are kept in memory, backed by the database if one is configured
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final CardPartitions cardData;
+    private final CardRepository cardStore;
+    private final ConnectionPool database;
+    private final UserRepository userRepository;
+    private final TokenVault tokens = new TokenVault();
+    // Session ID to username, kept by the session store across restarts
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+    // Session ID to the time it was opened, or restored after a restart
+    private final Map<String, Long> sessionStarts = new ConcurrentHashMap<>();
+    private final SessionStateStore sessionStore;
 
     public RMIServerImpl() {
-        this.userCredentials = new HashMap<>();
-        this.cardData = new HashMap<>();
+        // Pick the password hashing cost now so the first login does not pay for it
+        PasswordHasher.calibrate();
+        
+        try {
+            IinRangeIndex.installConfigured();
+        } catch (IOException e) {
+            System.err.println("Error loading IIN range table: " + e.getMessage());
+        }
         
-        // Add some test users (in real app, use a database)
-        userCredentials.put("admin", "admin123");
-        userCredentials.put("user1", "password1");
+        // Reload cards persisted by earlier runs, from the database if one is configured,
+        // otherwise from the card store if a store directory is configured
+        ConnectionPool pool = null;
+        UserRepository userRepo = null;
+        CardRepository store = null;
+        try {
+            pool = ConnectionPool.openConfigured();
+            if (pool != null) {
+                userRepo = new JdbcUserRepository(pool);
+                store = new JdbcCardRepository(pool);
+            } else {
+                store = CardStore.openConfigured("rmi");
+            }
+        } catch (SQLException | IOException e) {
+            System.err.println("Error opening card storage: " + e.getMessage());
+        }
+        if (store != null) {
+            // Stored cards must outlive the process, and with them the key
+            CipherEngines.requirePersistentKey();
+        }
+        this.database = pool;
+        this.userRepository = userRepo;
+        this.cardStore = store;
+        
+        if (userRepository != null) {
+            userRepository.load(user -> users.put(user.getUsername(), user));
+        }
+        // Add some test users
+        addUserIfMissing("admin", "admin123", AccessLevel.ADMIN);
+        addUserIfMissing("user1", "password1", AccessLevel.USER);
+        
+        // With a store behind them, the in-memory cards can be bounded and spill to it
+        CardCache cache = CardCache.fromConfiguration();
+        if (cache != null && store == null) {
+            System.err.println(CardCache.MAX_CARDS_PROPERTY + " needs " + CardStore.DIR_PROPERTY
+                + " or " + ConnectionPool.URL_PROPERTY + " to be set; keeping every card in memory");
+        }
+        this.cardData = new CardPartitions(store, cache);
+        if (store != null) {
+            store.load((owner, card) -> cardData.partition(owner).put(card));
+        }
+        
+        // Restore sessions and lockouts so a restart does not log everyone out; a restored
+        // session gets a full 30 minutes from the restart
+        SessionStateStore state = null;
+        try {
+            state = SessionStateStore.openConfigured("rmi");
+            if (state != null) {
+                state.restore(sessions, users);
+            }
+        } catch (IOException e) {
+            System.err.println("Error restoring sessions: " + e.getMessage());
+        }
+        this.sessionStore = state;
+        long now = System.currentTimeMillis();
+        for (String sessionId : sessions.keySet()) {
+            sessionStarts.put(sessionId, now);
+        }
+    }
+
+    private void addUserIfMissing(String username, String password, AccessLevel accessLevel) {
+        if (!users.containsKey(username)) {
+            User user = new User(username, CryptoUtil.hashPassword(password), accessLevel);
+            users.put(username, user);
+            if (userRepository != null) {
+                userRepository.save(user);
+            }
+        }
     }
 
     /**
@@ -69,50 +176,114 @@ public class RMIServerImpl implements BankService {
         } catch (Exception e) {
             System.err.println("Error stopping RMI server: " + e.getMessage());
         }
+        
+        tokens.close();
+        if (cardStore != null) {
+            cardStore.close();
+        }
+        if (userRepository != null) {
+            userRepository.close();
+        }
+        if (database != null) {
+            database.close();
+        }
+        if (sessionStore != null) {
+            sessionStore.close();
+        }
+    }
+
+    @Override
+    public String login(String username, String password) throws RemoteException {
+        if (username == null || password == null) {
+            return null;
+        }
+        User user = users.get(username);
+        if (user == null) {
+            return null;
+        }
+        // Each RMI call has a thread of its own, so the hash is checked right here
+        boolean valid = user.validatePassword(password);
+        if (sessionStore != null) {
+            sessionStore.loginStateChanged(user);
+        }
+        if (userRepository != null) {
+            userRepository.save(user);
+        }
+        if (!valid) {
+            return null;
+        }
+        String sessionId = UUID.randomUUID().toString();
+        sessionStarts.put(sessionId, System.currentTimeMillis());
+        sessions.put(sessionId, username);
+        if (sessionStore != null) {
+            sessionStore.sessionOpened(sessionId, username);
+        }
+        return sessionId;
     }
 
     @Override
-    public String encryptCard(String cardNumber, int shift) throws RemoteException {
+    public boolean logout(String sessionId) throws RemoteException {
+        return sessionId != null && closeSession(sessionId);
+    }
+
+    @Override
+    public String encryptCard(String sessionId, String cardNumber, int shift)
+            throws RemoteException, SecurityException {
+        String username = requireSession(sessionId);
         if (!isValidCardNumber(cardNumber)) {
             throw new RemoteException("Invalid card number");
         }
+        // Stored as bare digits, whatever separators the client used
+        cardNumber = CardData.digitsOf(cardNumber);
         
-        StringBuilder result = new StringBuilder();
-        for (char c : cardNumber.toCharArray()) {
-            if (Character.isDigit(c)) {
-                int original = Character.getNumericValue(c);
-                int encrypted = (original + shift) % 10;
-                result.append(encrypted);
-            } else {
-                result.append(c);
-            }
+        // A number the user already stored keeps its first ciphertext, shift and cipher
+        CardPartitions.Partition partition = cardData.partition(username);
+        CardData existing = partition.findDuplicate(cardNumber);
+        if (existing != null) {
+            return existing.getEncryptedData();
         }
         
-        // Store the encrypted data (in real app, use a database)
-        String encryptedData = result.toString();
-        cardData.put(encryptedData, cardNumber);
+        CardData card;
+        try {
+            card = new CardData(cardNumber, shift, CipherEngines.getDefault());
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException("Encryption failed: " + e.getMessage());
+        }
         
-        return encryptedData;
+        // Checked again under the partition's lock, so concurrent calls store a number once
+        try {
+            existing = partition.putIfAbsent(card, stored -> {
+                if (cardStore != null) {
+                    cardStore.save(username, stored);
+                }
+            });
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new RemoteException("Card could not be stored: " + e.getMessage());
+        }
+        return existing != null ? existing.getEncryptedData() : card.getEncryptedData();
     }
 
     @Override
-    public String decryptCard(String encryptedData, int shift) throws RemoteException {
+    public String decryptCard(String sessionId, String encryptedData, int shift)
+            throws RemoteException, SecurityException {
+        String username = requireSession(sessionId);
         if (encryptedData == null || encryptedData.trim().isEmpty()) {
             throw new RemoteException("Encrypted data cannot be empty");
         }
         
-        StringBuilder result = new StringBuilder();
-        for (char c : encryptedData.toCharArray()) {
-            if (Character.isDigit(c)) {
-                int encrypted = Character.getNumericValue(c);
-                int decrypted = (encrypted - shift + 10) % 10;
-                result.append(decrypted);
-            } else {
-                result.append(c);
-            }
+        // Stored records decrypt with the engine recorded in their cipher tag;
+        // unknown data is assumed to come from the default engine. Only the caller's
+        // own cards are looked up.
+        CardPartitions.Partition partition = cardData.find(username);
+        CardData card = partition != null ? partition.get(encryptedData) : null;
+        String decryptedCard;
+        try {
+            decryptedCard = card != null
+                ? card.decrypt()
+                : CipherEngines.getDefault().decrypt(encryptedData, shift);
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException("Decryption failed: " + e.getMessage());
         }
-        
-        String decryptedCard = result.toString();
         if (!isValidCardNumber(decryptedCard)) {
             throw new RemoteException("Decryption resulted in an invalid card number");
         }
@@ -121,45 +292,104 @@ public class RMIServerImpl implements BankService {
     }
 
     @Override
-    public boolean login(String username, String password) throws RemoteException {
-        if (username == null || password == null) {
-            return false;
+    @Deprecated
+    public List<CardData> listCards(String sessionId) throws RemoteException, SecurityException {
+        return listCards(sessionId, new CardFilter());
+    }
+
+    @Override
+    @Deprecated
+    public List<CardData> listCards(String sessionId, CardFilter filter)
+            throws RemoteException, SecurityException {
+        String username = requireSession(sessionId);
+        // Users only ever see their own cards, so only their partition is searched
+        filter.setOwner(username);
+        CardPartitions.Partition partition = cardData.find(username);
+        return partition != null ? partition.find(filter) : new ArrayList<>();
+    }
+
+    @Override
+    public CardPage listCards(String sessionId, CardFilter filter, String cursor, int pageSize)
+            throws RemoteException, SecurityException {
+        String username = requireSession(sessionId);
+        filter.setOwner(username);
+        CardPartitions.Partition partition = cardData.find(username);
+        return partition != null
+            ? partition.findPage(filter, cursor, pageSize)
+            : new CardPage(new ArrayList<>(), null);
+    }
+
+    @Override
+    public String tokenizeCard(String sessionId, String cardNumber)
+            throws RemoteException, SecurityException {
+        String username = requireSession(sessionId);
+        if (!isValidCardNumber(cardNumber)) {
+            throw new RemoteException("Invalid card number");
+        }
+        return tokens.tokenize(username, cardNumber);
+    }
+
+    @Override
+    public String detokenizeCard(String sessionId, String token)
+            throws RemoteException, SecurityException {
+        String username = requireSession(sessionId);
+        String cardNumber = token != null ? tokens.detokenize(username, token.trim()) : null;
+        if (cardNumber == null) {
+            throw new RemoteException("Token not found");
         }
-        String storedPassword = userCredentials.get(username);
-        return password.equals(storedPassword);
+        return cardNumber;
+    }
+
+    @Override
+    public boolean validateSession(String sessionId) throws RemoteException {
+        return findSession(sessionId) != null;
     }
     
     /**
-     * Validates a card number using the Luhn algorithm.
+     * Looks up an active session, dropping it if it has expired.
+     * @param sessionId The session ID
+     * @return The session's username, or null if it does not exist or has expired
      */
-    private boolean isValidCardNumber(String cardNumber) {
-        if (cardNumber == null || cardNumber.trim().isEmpty()) {
-            return false;
+    private String findSession(String sessionId) {
+        if (sessionId == null) {
+            return null;
         }
-        
-        // Remove all non-digit characters
-        String digits = cardNumber.replaceAll("\\D", "");
-        
-        // Check if the card number starts with 3,4,5, or 6 and has between 12-19 digits
-        if (!digits.matches("^[3456]\\d{11,18}$")) {
+        String username = sessions.get(sessionId);
+        if (username == null) {
+            return null;
+        }
+        Long start = sessionStarts.get(sessionId);
+        if (start == null || System.currentTimeMillis() - start > SESSION_MILLIS) {
+            closeSession(sessionId);
+            return null;
+        }
+        return username;
+    }
+    
+    private String requireSession(String sessionId) {
+        String username = findSession(sessionId);
+        if (username == null) {
+            throw new SecurityException("Invalid or expired session");
+        }
+        return username;
+    }
+    
+    private boolean closeSession(String sessionId) {
+        sessionStarts.remove(sessionId);
+        if (sessions.remove(sessionId) == null) {
             return false;
         }
-        
-        // Luhn algorithm
-        int sum = 0;
-        boolean alternate = false;
-        for (int i = digits.length() - 1; i >= 0; i--) {
-            int n = Integer.parseInt(digits.substring(i, i + 1));
-            if (alternate) {
-                n *= 2;
-                if (n > 9) {
-                    n = (n % 10) + 1;
-                }
-            }
-            sum += n;
-            alternate = !alternate;
+        if (sessionStore != null) {
+            sessionStore.sessionClosed(sessionId);
         }
-        return (sum % 10 == 0);
+        return true;
+    }
+    
+    /**
+     * Validates a card number using the Luhn algorithm.
+     */
+    private boolean isValidCardNumber(String cardNumber) {
+        return CardData.validate(cardNumber);
     }
     
     public static void main(String[] args) {
@@ -168,6 +398,9 @@ public class RMIServerImpl implements BankService {
             RMIServerImpl server = new RMIServerImpl();
             server.start();
             
+            // Flush stored cards on Ctrl+C
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            
             System.out.println("Bank Card RMI Server is running...");
             System.out.println("Press Ctrl+C to stop the server");
             
@@ -178,17 +411,4 @@ public class RMIServerImpl implements BankService {
             e.printStackTrace();
         }
     }
-    
-    private static class SessionInfo {
-        private final long creationTime;
-        
-        public SessionInfo() {
-            this.creationTime = System.currentTimeMillis();
-        }
-        
-        public boolean isExpired() {
-            // Sessions expire after 30 minutes
-            return System.currentTimeMillis() - creationTime > 30 * 60 * 1000;
-        }
-    }
 }